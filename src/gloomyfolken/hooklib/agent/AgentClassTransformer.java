@@ -0,0 +1,45 @@
+package gloomyfolken.hooklib.agent;
+
+import gloomyfolken.hooklib.asm.ClassDataSource;
+import gloomyfolken.hooklib.asm.ClassMetadataReader;
+import gloomyfolken.hooklib.asm.HookClassTransformer;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+/**
+ * Адаптер HookClassTransformer к java.lang.instrument: вставляет хуки при загрузке и ретрансформации классов.
+ * Классы, которые загружает загрузчик bootstrap, не трансформируются: класс с хуками из них всё равно не виден.
+ * Суперклассы и методы других классов во время трансформации ищутся через ClassLoader трансформируемого класса.
+ */
+public class AgentClassTransformer implements ClassFileTransformer {
+
+    private final HookClassTransformer transformer;
+    // классы, которые загружаются во время трансформации (например, сам ASM), трансформировать нельзя
+    private final ThreadLocal<Boolean> transforming = new ThreadLocal<Boolean>();
+
+    public AgentClassTransformer(HookClassTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (loader == null || className == null || transforming.get() != null) return null;
+        transforming.set(Boolean.TRUE);
+        ClassMetadataReader classMetadataReader = transformer.getClassMetadataReader();
+        classMetadataReader.setThreadClassDataSource(new ClassDataSource.ResourceSource(loader));
+        try {
+            String name = className.replace('/', '.');
+            if (!transformer.hasHooks(name, classfileBuffer)) return null;
+            return transformer.transform(name, classfileBuffer);
+        } catch (Throwable t) {
+            // исключение из ClassFileTransformer джава молча проглатывает, так что его нужно хотя бы залогировать
+            transformer.logger.severe("Can not transform class " + className, t);
+            return null;
+        } finally {
+            classMetadataReader.setThreadClassDataSource(null);
+            transforming.remove();
+        }
+    }
+}
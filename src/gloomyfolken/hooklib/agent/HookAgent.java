@@ -0,0 +1,239 @@
+package gloomyfolken.hooklib.agent;
+
+import gloomyfolken.hooklib.asm.AsmHook;
+import gloomyfolken.hooklib.asm.HookClassTransformer;
+
+import java.io.File;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Запуск хуклибы как java-агента, без FML. Агент подключается при старте джавы через
+ * -javaagent:hooklib.jar=net.example.Hooks,net.example.OtherHooks (вызывается premain) или к уже запущенной
+ * джаве через Attach API (вызывается agentmain). В аргументах агента - классы с хуками через запятую.
+ * <p/>
+ * После подключения классы с хуками можно добавлять через addHookContainer(): хуки из них вставляются
+ * и в загруженные классы через Instrumentation.retransformClasses, и в те, что будут загружены позже.
+ * Для этого в манифесте джарника должны быть Premain-Class и/или Agent-Class и Can-Retransform-Classes: true.
+ * <p/>
+ * Для настройки хуков без перезапуска есть режим слежения (см. watch()): изменённые классы с хуками
+ * перечитываются, а затронутые ими классы трансформируются заново. Чтобы вместе с хуками обновлялся и код
+ * хук-методов, в манифесте нужен ещё и Can-Redefine-Classes: true.
+ */
+public class HookAgent {
+
+    private static Instrumentation instrumentation;
+    private static HookClassTransformer transformer;
+    // классы с хуками, добавленные через агента, в порядке добавления
+    private static final Set<String> hookContainers = new LinkedHashSet<String>();
+    private static HookContainerWatcher watcher;
+
+    public static void premain(String args, Instrumentation inst) {
+        attach(args, inst);
+    }
+
+    public static void agentmain(String args, Instrumentation inst) {
+        attach(args, inst);
+    }
+
+    private static synchronized void attach(String args, Instrumentation inst) {
+        if (instrumentation == null) {
+            instrumentation = inst;
+            transformer = new HookClassTransformer();
+            // без этого при ретрансформации класса пропадут хуки, которые в него уже вставлены
+            transformer.keepInjectedHooks = true;
+            // ретрансформация не может добавлять поля и методы, а классы, загруженные позже, тоже могут
+            // ретрансформироваться
+            transformer.preserveClassLayout = true;
+            transformer.profileFromProperties();
+            inst.addTransformer(new AgentClassTransformer(transformer), inst.isRetransformClassesSupported());
+        }
+        if (args != null) {
+            for (String className : args.split(",")) {
+                className = className.trim();
+                if (!className.isEmpty()) addHookContainer(className);
+            }
+        }
+        String watchDir = System.getProperty("hooklib.agent.watch");
+        if (watchDir != null) {
+            watch(new File(watchDir), Long.getLong("hooklib.agent.watch.interval", 500));
+        }
+    }
+
+    /**
+     * @return true, если агент подключён
+     */
+    public static synchronized boolean isAttached() {
+        return instrumentation != null;
+    }
+
+    /**
+     * @throws IllegalStateException если агент не подключён
+     */
+    public static synchronized HookClassTransformer getTransformer() {
+        checkAttached();
+        return transformer;
+    }
+
+    /**
+     * Регистрирует хуки из класса и вставляет их в уже загруженные классы.
+     *
+     * @return количество трансформированных заново классов
+     * @throws IllegalStateException если агент не подключён
+     */
+    public static synchronized int addHookContainer(String className) {
+        checkAttached();
+        hookContainers.add(className);
+        return retransform(transformer.registerHookContainer(className));
+    }
+
+    /**
+     * @return классы с хуками, добавленные через агента
+     */
+    public static synchronized List<String> getHookContainers() {
+        return new ArrayList<String>(hookContainers);
+    }
+
+    /**
+     * Заменяет хуки из класса с хуками на хуки из его нового байткода. Сначала, если класс уже загружен, через
+     * Instrumentation.redefineClasses обновляется код хук-методов, потом старые хуки удаляются, новые
+     * регистрируются, и трансформируются заново только классы, затронутые старыми или новыми хуками.
+     * Если класс с хуками не удалось переопределить (например, в нём появился новый метод), старые хуки
+     * остаются как были: иначе новые хуки вызывали бы несуществующие методы.
+     *
+     * @return количество трансформированных заново классов
+     * @throws IllegalStateException если агент не подключён
+     */
+    public static synchronized int reloadHookContainer(String className, byte[] classData) {
+        checkAttached();
+        if (!redefineHookContainer(className, classData)) return 0;
+
+        List<AsmHook> oldHooks;
+        List<AsmHook> newHooks;
+        // классы, которые загружаются в других потоках, должны увидеть либо старые хуки, либо новые
+        synchronized (transformer) {
+            oldHooks = transformer.unregisterHookContainer(className);
+            try {
+                newHooks = transformer.registerHookContainer(classData);
+            } catch (RuntimeException e) {
+                for (AsmHook hook : oldHooks) {
+                    transformer.registerHook(hook);
+                }
+                throw e;
+            }
+        }
+        hookContainers.add(className);
+
+        List<AsmHook> affectingHooks = new ArrayList<AsmHook>(oldHooks);
+        affectingHooks.addAll(newHooks);
+        transformer.logger.debug("Reloaded hooks container " + className + ": " + oldHooks.size() + " hooks " +
+                "removed, " + newHooks.size() + " hooks added");
+        return retransform(affectingHooks);
+    }
+
+    /**
+     * Начинает следить за .class-файлами классов с хуками, добавленных через агента, в папке classesDir
+     * (например, build/classes/java/main) и перечитывать их при изменении (см. reloadHookContainer()).
+     * То же самое включается свойством hooklib.agent.watch с путём к папке, интервал проверки в миллисекундах -
+     * свойством hooklib.agent.watch.interval.
+     *
+     * @throws IllegalStateException если агент не подключён или уже следит за папкой
+     */
+    public static synchronized void watch(File classesDir, long intervalMillis) {
+        checkAttached();
+        if (watcher != null) {
+            throw new IllegalStateException("HookLib agent already watches " + watcher.classesDir);
+        }
+        watcher = new HookContainerWatcher(classesDir, intervalMillis);
+        watcher.start();
+        transformer.logger.debug("Watching hooks containers in " + classesDir.getAbsolutePath());
+    }
+
+    /**
+     * @return false, если класс с хуками загружен и переопределить его не удалось
+     */
+    private static boolean redefineHookContainer(String className, byte[] classData) {
+        List<ClassDefinition> definitions = new ArrayList<ClassDefinition>(1);
+        for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+            if (loadedClass.getName().equals(className)) {
+                definitions.add(new ClassDefinition(loadedClass, classData));
+            }
+        }
+        if (definitions.isEmpty()) return true;
+        if (!instrumentation.isRedefineClassesSupported()) {
+            transformer.logger.warning("Can not reload hooks container " + className + ": redefinition is not " +
+                    "supported, add Can-Redefine-Classes to the manifest");
+            return false;
+        }
+        try {
+            instrumentation.redefineClasses(definitions.toArray(new ClassDefinition[0]));
+            return true;
+        } catch (Throwable t) {
+            transformer.logger.severe("Can not reload hooks container " + className + ", restart is needed " +
+                    "to apply the changes", t);
+            return false;
+        }
+    }
+
+    /**
+     * Трансформирует заново загруженные классы, в которые нужно вставить хотя бы один из хуков.
+     * Если ретрансформация не поддерживается, хуки попадут только в классы, загруженные позже.
+     *
+     * @return количество трансформированных заново классов
+     */
+    public static synchronized int retransform(List<AsmHook> hooks) {
+        checkAttached();
+        if (hooks.isEmpty()) return 0;
+        if (!instrumentation.isRetransformClassesSupported()) {
+            transformer.logger.warning("Retransformation is not supported, hooks will be injected only into " +
+                    "classes loaded later");
+            return 0;
+        }
+
+        Map<String, Class<?>> loadedClasses = new HashMap<String, Class<?>>();
+        for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+            if (loadedClass.getClassLoader() == null || !instrumentation.isModifiableClass(loadedClass)) continue;
+            loadedClasses.put(loadedClass.getName(), loadedClass);
+            // суперклассы загруженных классов известны и так, читать их байткод для шаблонов не нужно
+            Class<?> superClass = loadedClass.isInterface() ? Object.class : loadedClass.getSuperclass();
+            transformer.getClassMetadataReader().putSuperClass(loadedClass.getName().replace('.', '/'),
+                    superClass == null ? null : superClass.getName().replace('.', '/'));
+        }
+
+        List<String> targets = transformer.getTargetClasses(loadedClasses.keySet(), hooks);
+        Class<?>[] classes = new Class<?>[targets.size()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = loadedClasses.get(targets.get(i));
+        }
+        if (classes.length == 0) return 0;
+
+        try {
+            instrumentation.retransformClasses(classes);
+            return classes.length;
+        } catch (Throwable t) {
+            // один сломанный класс не должен мешать остальным, так что классы пробуются по одному
+            int retransformed = 0;
+            for (Class<?> target : classes) {
+                try {
+                    instrumentation.retransformClasses(target);
+                    retransformed++;
+                } catch (Throwable e) {
+                    transformer.logger.severe("Can not retransform class " + target.getName(), e);
+                }
+            }
+            return retransformed;
+        }
+    }
+
+    private static void checkAttached() {
+        if (instrumentation == null) {
+            throw new IllegalStateException("HookLib agent is not attached.");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package gloomyfolken.hooklib.agent;
+
+import gloomyfolken.hooklib.asm.HookClassTransformer;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Поток, который раз в заданный интервал проверяет время изменения .class-файлов классов с хуками, добавленных
+ * через HookAgent, и перечитывает изменённые через HookAgent.reloadHookContainer().
+ * Время первой проверки только запоминается: хуки из исходного класса уже зарегистрированы.
+ */
+class HookContainerWatcher extends Thread {
+
+    final File classesDir;
+    private final long intervalMillis;
+    private final Map<String, Long> lastModified = new HashMap<String, Long>();
+
+    HookContainerWatcher(File classesDir, long intervalMillis) {
+        super("HookLib hooks container watcher");
+        this.classesDir = classesDir;
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            for (String className : HookAgent.getHookContainers()) {
+                check(className);
+            }
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void check(String className) {
+        File file = new File(classesDir, className.replace('.', File.separatorChar) + ".class");
+        long modified = file.lastModified();
+        Long previous = lastModified.put(className, modified);
+        if (previous == null || previous == modified || modified == 0) return;
+
+        HookClassTransformer transformer = HookAgent.getTransformer();
+        try {
+            long startTime = System.nanoTime();
+            int retransformed = HookAgent.reloadHookContainer(className, FileUtils.readFileToByteArray(file));
+            transformer.logger.debug("Hooks container " + className + " reloaded in " +
+                    (System.nanoTime() - startTime) / 1000000 + " ms, " + retransformed + " classes retransformed");
+        } catch (Throwable t) {
+            // файл мог быть прочитан, пока компилятор его ещё записывал, так что на следующей проверке стоит
+            // попробовать снова
+            lastModified.put(className, previous);
+            transformer.logger.severe("Can not reload hooks container " + className, t);
+        }
+    }
+}
@@ -2,12 +2,14 @@ package gloomyfolken.hooklib.asm;
 
 import gloomyfolken.hooklib.asm.HookInjectorFactory.MethodEnter;
 import gloomyfolken.hooklib.asm.HookInjectorFactory.MethodExit;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.objectweb.asm.Opcodes.*;
@@ -21,19 +23,27 @@ import static org.objectweb.asm.Type.*;
  * targetClass (целевой класс) - класс, где находится метод, куда вставляется хук
  * hookMethod (хук-метод) - ваш статический метод, который вызывается из стороннего кода
  * hookClass (класс с хуком) - класс, в котором содержится хук-метод
+ * <p/>
+ * Хук создаётся через newBuilder() и после build() не меняется: параметры лежат в массивах, а типы и строки
+ * с описаниями общие для всех хуков (см. TypeHelper#intern), так что даже десятки тысяч хуков занимают немного.
+ * Лениво считаются только hashCode (одинаково в любом потоке) и тело хук-метода для HookDispatch.INLINED,
+ * которое читается под блокировкой один раз на хук и все его копии (см. InlinedBodyHolder).
+ * Два хука с одинаковыми параметрами равны, повторно такой хук не регистрируется.
  */
 public class AsmHook implements Cloneable, Comparable<AsmHook> {
 
     private String targetClassName; // через точки
+    private String targetClassPattern; // шаблон, по которому хук скопирован для targetClassName, см. copyForClass
     private String targetMethodName;
-    private List<Type> targetMethodParameters = new ArrayList<Type>(2);
+    private Type[] targetMethodParameters = NO_TYPES;
     private Type targetMethodReturnType; //если не задано, то не проверяется
+    private boolean anyTargetMethodDescription; // целевой метод ищется только по названию
 
     private String hooksClassName; // через точки
     private String hookMethodName;
     // -1 - значение return
-    private List<Integer> transmittableVariableIds = new ArrayList<Integer>(2);
-    private List<Type> hookMethodParameters = new ArrayList<Type>(2);
+    private int[] transmittableVariableIds = NO_VARIABLES;
+    private Type[] hookMethodParameters = NO_TYPES;
     private Type hookMethodReturnType = Type.VOID_TYPE;
     private boolean hasReturnValueParameter; // если в хук-метод передается значение из return
 
@@ -43,20 +53,64 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
 
     private HookInjectorFactory injectorFactory = ON_ENTER_FACTORY;
     private HookPriority priority = HookPriority.NORMAL;
+    private HookDispatch dispatch = HookDispatch.STATIC;
+    private InlinedBodyHolder inlinedBody; // для HookDispatch.INLINED, общий с копиями хука
+    private int sampleRate = 1;
+    private HookMetric metric = HookMetric.NONE;
+    private int memoizeSize; // 0 - целевой метод не оборачивается кэшем
+    private Object constantReplacement; // для замены константы без хук-метода
+    private boolean replaceBody;
+    private boolean includeOverrides; // хук копируется ещё и в переопределения целевого метода в наследниках
 
     public static final HookInjectorFactory ON_ENTER_FACTORY = MethodEnter.INSTANCE;
     public static final HookInjectorFactory ON_EXIT_FACTORY = MethodExit.INSTANCE;
 
+    private static final Type[] NO_TYPES = new Type[0];
+    private static final int[] NO_VARIABLES = new int[0];
+
+    private static final String ASYNC_HOOKS = "gloomyfolken/hooklib/runtime/AsyncHooks";
+    private static final String HOOK_RING = "gloomyfolken/hooklib/runtime/HookRing";
+    private static final String HOOK_TRACE = "gloomyfolken/hooklib/runtime/HookTrace";
+    private static final String TRACE_CURSOR = "gloomyfolken/hooklib/runtime/TraceCursor";
+
+    private static final String HOOK_METRICS = "gloomyfolken/hooklib/runtime/HookMetrics";
+    private static final String STATIC_INIT_PROFILER = "gloomyfolken/hooklib/runtime/StaticInitProfiler";
+    private static final String METRIC_BOOTSTRAP_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;" +
+            "Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;";
+    private static final Handle COUNTER_BOOTSTRAP = new Handle(H_INVOKESTATIC, HOOK_METRICS, "bootstrapCounter",
+            METRIC_BOOTSTRAP_DESC);
+    private static final Handle HISTOGRAM_BOOTSTRAP = new Handle(H_INVOKESTATIC, HOOK_METRICS, "bootstrapHistogram",
+            METRIC_BOOTSTRAP_DESC);
+
+    private static final Handle SWITCHABLE_BOOTSTRAP = new Handle(H_INVOKESTATIC,
+            "gloomyfolken/hooklib/runtime/SwitchableHooks", "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+                    "Ljava/lang/String;)Ljava/lang/invoke/CallSite;");
+
     // может быть без возвращаемого типа
     private String targetMethodDescription;
     private String hookMethodDescription;
     private String returnMethodName;
     // может быть без возвращаемого типа
     private String returnMethodDescription;
+    // метод выхода для парного хука, см. Builder#setAroundExitMethod
+    private String aroundExitMethodName;
+    private String aroundExitMethodDescription;
+    // описания заменяемого метода для хука, заменяющего вызов: если он static и если нет
+    private String redirectStaticDescription;
+    private String redirectVirtualDescription;
+    // описание поля для хука, следящего за записью в поле: тип второго параметра хук-метода
+    private String watchedFieldDescription;
 
     private boolean createMethod;
     private boolean isMandatory;
 
+    private int hashCode; // 0 - ещё не посчитан
+
+    private AsmHook() {
+
+    }
+
     protected String getTargetClassName() {
         return targetClassName;
     }
@@ -65,15 +119,114 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         return targetClassName.replace('.', '/');
     }
 
+    /**
+     * @return true, если вместо названия целевого класса указан шаблон: "префикс*" или "Класс+"
+     */
+    protected boolean isClassPattern() {
+        return targetClassName.endsWith("*") || targetClassName.endsWith("+");
+    }
+
+    /**
+     * @return true, если хук - копия хука с шаблоном целевого класса, сделанная для конкретного класса
+     */
+    protected boolean isPatternCopy() {
+        return targetClassPattern != null;
+    }
+
+    /**
+     * Копирует хук с шаблоном целевого класса для конкретного подходящего класса.
+     * Копия вставляется и удаляется из списка хуков класса так же, как и обычные хуки.
+     */
+    protected AsmHook copyForClass(String className) {
+        AsmHook copy = copy();
+        copy.targetClassPattern = targetClassName;
+        copy.targetClassName = className;
+        return copy;
+    }
+
+    /**
+     * Массивы и типы у копии общие с исходным хуком: после build() они всё равно не меняются.
+     */
+    private AsmHook copy() {
+        try {
+            AsmHook copy = (AsmHook) clone();
+            copy.hashCode = 0;
+            return copy;
+        } catch (CloneNotSupportedException impossible) {
+            throw new AssertionError(impossible);
+        }
+    }
+
+    /**
+     * Тип, под которым хук-метод получает this: сам целевой класс, базовый класс шаблона "Класс+"
+     * или Object для шаблона с префиксом.
+     */
+    private Type getTargetClassType() {
+        if (targetClassName.endsWith("+")) {
+            return TypeHelper.getType(targetClassName.substring(0, targetClassName.length() - 1));
+        }
+        if (targetClassName.endsWith("*")) {
+            return TypeHelper.getType("java.lang.Object");
+        }
+        return TypeHelper.getType(targetClassName);
+    }
+
     private String getHookClassInternalName() {
         return hooksClassName.replace('.', '/');
     }
 
+    protected String getHookClassName() {
+        return hooksClassName;
+    }
+
+    protected String getHookMethodName() {
+        return hookMethodName;
+    }
+
     protected boolean isTargetMethod(String name, String desc) {
-        return (targetMethodReturnType == null && desc.startsWith(targetMethodDescription) ||
+        if (isMethodPattern()) {
+            return name.regionMatches(0, targetMethodName, 0, targetMethodName.length() - 1);
+        }
+        return (anyTargetMethodDescription ||
+                targetMethodReturnType == null && desc.startsWith(targetMethodDescription) ||
                 desc.equals(targetMethodDescription)) && name.equals(targetMethodName);
     }
 
+    /**
+     * @return true, если хук вставляется во все методы целевого класса (targetMethod = "*") или во все методы,
+     * название которых начинается с префикса (targetMethod = "onUpdate*")
+     */
+    protected boolean isMethodPattern() {
+        return targetMethodName.endsWith("*");
+    }
+
+    /**
+     * @return true, если хук собирает метрику по местам внутри целевого метода, а не по самому хуку.
+     * Ключи таких метрик строятся по целевому классу и методу, поэтому хук-метод им не нужен.
+     */
+    private boolean hasSiteMetric() {
+        return metric.perSite;
+    }
+
+    protected HookMetric getMetric() {
+        return metric;
+    }
+
+    private static HookInjectorFactory getSiteMetricFactory(HookMetric metric) {
+        switch (metric) {
+            case ALLOCATIONS:
+                return HookInjectorFactory.Allocation.INSTANCE;
+            case LOCK_WAIT:
+                return HookInjectorFactory.LockWait.INSTANCE;
+            case LOOPS:
+                return HookInjectorFactory.LoopBackEdge.INSTANCE;
+            case STATIC_INIT:
+                return HookInjectorFactory.StaticInit.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Metric " + metric + " is not collected per site.");
+        }
+    }
+
     protected boolean getCreateMethod() {
         return createMethod;
     }
@@ -86,6 +239,22 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         return injectorFactory;
     }
 
+    protected boolean getReplaceBody() {
+        return replaceBody;
+    }
+
+    protected boolean getIncludeOverrides() {
+        return includeOverrides;
+    }
+
+    protected int getMemoizeSize() {
+        return memoizeSize;
+    }
+
+    protected String getMemoCacheId() {
+        return hooksClassName + '#' + hookMethodName;
+    }
+
     private boolean hasHookMethod() {
         return hookMethodName != null && hooksClassName != null;
     }
@@ -97,24 +266,104 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         MethodVisitor mv = classVisitor.visitMethod(Opcodes.ACC_PUBLIC,
                 superMethod == null ? targetMethodName : superMethod.name, targetMethodDescription, null, null);
         if (mv instanceof HookInjectorMethodVisitor) {
-            HookInjectorMethodVisitor inj = (HookInjectorMethodVisitor) mv;
-            inj.visitCode();
-            inj.visitLabel(new Label());
+            injectMethodBody((HookInjectorMethodVisitor) mv, superMethod);
+        } else {
+            throw new IllegalArgumentException("Hook injector not created");
+        }
+    }
+
+    /**
+     * Записывает новое тело целевого метода вместо исходного, которое было отброшено (см. Builder#setReplaceBody).
+     * Сам вызов хук-метода и return вставляет инжектор на входе в метод.
+     */
+    protected void replaceMethodBody(HookInjectorMethodVisitor inj) {
+        injectMethodBody(inj, null);
+    }
+
+    /**
+     * Генерирует тело метода: хуки вставляются инжекторами на входе и выходе, а после них - вызов супер-метода
+     * или return false/0/null. Если хук с ReturnCondition.ALWAYS уже вызвал return, то остальное было бы
+     * мёртвым кодом, поэтому не вставляется.
+     */
+    private void injectMethodBody(HookInjectorMethodVisitor inj, ClassMetadataReader.MethodReference superMethod) {
+        Type targetMethodReturnType = inj.methodType.getReturnType();
+        inj.visitCode();
+        inj.visitLabel(new Label());
+        if (returnCondition != ReturnCondition.ALWAYS || sampleRate > 1) {
             if (superMethod == null) {
                 injectDefaultValue(inj, targetMethodReturnType);
             } else {
                 injectSuperCall(inj, superMethod);
             }
             injectReturn(inj, targetMethodReturnType);
-            inj.visitLabel(new Label());
-            inj.visitMaxs(0, 0);
-            inj.visitEnd();
-        } else {
-            throw new IllegalArgumentException("Hook injector not created");
         }
+        inj.visitLabel(new Label());
+        inj.visitMaxs(0, 0);
+        inj.visitEnd();
     }
 
     protected void inject(HookInjectorMethodVisitor inj) {
+        Label skipLabel = sampleRate > 1 ? injectSampleGuard(inj) : null;
+        injectCall(inj);
+        if (skipLabel != null) {
+            inj.visitLabel(skipLabel);
+        }
+    }
+
+    /**
+     * Вставляет проверку счётчика вызовов для хука с sampleRate. Счётчик - синтетическое статическое поле
+     * в целевом классе, по одному на хук. Гонки при инкременте не страшны: важна частота, а не точное число.
+     * Если N - степень двойки, то это инкремент, маска и переход, иначе - инкремент, сравнение, переход
+     * и сброс счётчика на редкой ветке.
+     *
+     * @return label, к которому нужно перейти, если хук в этот раз вызывать не нужно, или null, если счётчик
+     * добавить нельзя
+     */
+    private Label injectSampleGuard(HookInjectorMethodVisitor inj) {
+        if ((inj.cv.classAccess & ACC_INTERFACE) != 0) {
+            // в интерфейсах все поля public static final
+            inj.cv.transformer.logger.warning("Can not add sample counter to interface " + targetClassName +
+                    ", hook will be called on every invocation: " + this);
+            return null;
+        }
+        if (inj.cv.transformer.preserveClassLayout) {
+            inj.cv.transformer.logger.warning("Can not add sample counter to class " + targetClassName + " without " +
+                    "changing its layout, hook will be called on every invocation: " + this);
+            return null;
+        }
+        String fieldName = inj.cv.getStaticIntField("sample", this);
+        Label skipLabel = inj.newLabel();
+        inj.visitFieldInsn(GETSTATIC, inj.cv.className, fieldName, "I");
+        inj.visitInsn(ICONST_1);
+        inj.visitInsn(IADD);
+        inj.visitInsn(DUP);
+        inj.visitFieldInsn(PUTSTATIC, inj.cv.className, fieldName, "I");
+        if ((sampleRate & (sampleRate - 1)) == 0) {
+            inj.visitLdcInsn(sampleRate - 1);
+            inj.visitInsn(IAND);
+            inj.visitJumpInsn(IFNE, skipLabel);
+        } else {
+            inj.visitLdcInsn(sampleRate);
+            inj.visitJumpInsn(IF_ICMPLT, skipLabel);
+            inj.visitInsn(ICONST_0);
+            inj.visitFieldInsn(PUTSTATIC, inj.cv.className, fieldName, "I");
+        }
+        return skipLabel;
+    }
+
+    private void injectCall(HookInjectorMethodVisitor inj) {
+        if (metric == HookMetric.COUNT) {
+            injectSiteCounter(inj, getMetricId());
+            return;
+        }
+        if (dispatch == HookDispatch.OUTLINED && inj.cv.transformer.preserveClassLayout) {
+            inj.cv.transformer.logger.warning("Can not add bridge method to class " + targetClassName + " without " +
+                    "changing its layout, hook will be injected as static call: " + this);
+        } else if (dispatch == HookDispatch.OUTLINED && canBeOutlined(inj)) {
+            injectOutlined(inj);
+            return;
+        }
+
         Type targetMethodReturnType = inj.methodType.getReturnType();
 
         // сохраняем значение, которое было передано return в локальную переменную
@@ -127,7 +376,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         // вызываем хук-метод
         int hookResultLocalId = -1;
         if (hasHookMethod()) {
-            injectInvokeStatic(inj, returnLocalId, hookMethodName, hookMethodDescription);
+            injectHookMethodCall(inj, returnLocalId);
 
             if (returnValue == ReturnValue.HOOK_RETURN_VALUE || returnCondition.requiresCondition) {
                 hookResultLocalId = inj.newLocal(hookMethodReturnType);
@@ -152,19 +401,10 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
             }
 
             // вставляем в стак значение, которое необходимо вернуть
-            if (returnValue == ReturnValue.NULL) {
-                inj.visitInsn(Opcodes.ACONST_NULL);
-            } else if (returnValue == ReturnValue.PRIMITIVE_CONSTANT) {
-                inj.visitLdcInsn(primitiveConstant);
-            } else if (returnValue == ReturnValue.HOOK_RETURN_VALUE) {
+            if (returnValue == ReturnValue.HOOK_RETURN_VALUE) {
                 inj.visitVarInsn(hookMethodReturnType.getOpcode(21), hookResultLocalId); //loadLocal
-            } else if (returnValue == ReturnValue.ANOTHER_METHOD_RETURN_VALUE) {
-                String returnMethodDescription = this.returnMethodDescription;
-                // если не был определён заранее нужный возвращаемый тип, то добавляем его к описанию
-                if (returnMethodDescription.endsWith(")")) {
-                    returnMethodDescription += targetMethodReturnType.getDescriptor();
-                }
-                injectInvokeStatic(inj, returnLocalId, returnMethodName, returnMethodDescription);
+            } else {
+                injectReturnValue(inj, targetMethodReturnType, returnLocalId);
             }
 
             // вызываем return
@@ -180,6 +420,372 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         }
     }
 
+    /**
+     * Вставляет инкремент счётчика id из HookMetrics. Стек при этом не меняется.
+     */
+    protected void injectSiteCounter(HookInjectorMethodVisitor inj, String id) {
+        if (canUseInvokeDynamic(inj)) {
+            inj.visitInvokeDynamicInsn("increment", "()V", COUNTER_BOOTSTRAP, id);
+        } else {
+            inj.visitLdcInsn(id);
+            inj.visitMethodInsn(INVOKESTATIC, HOOK_METRICS, "increment", "(Ljava/lang/String;)V", false);
+        }
+    }
+
+    /**
+     * Вставляет захват монитора, который лежит на стеке. Время начала ожидания сохраняется в локальную
+     * переменную, а захват монитора - последняя вставленная инструкция: всё, что после него, должно
+     * попасть в участок, где исключение освобождает монитор, поэтому время пишется отдельно в injectMonitorWait().
+     *
+     * @param startTimeLocalId номер локальной переменной типа long
+     */
+    protected void injectMonitorEnter(HookInjectorMethodVisitor inj, int startTimeLocalId) {
+        inj.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        inj.getBasicVisitor().visitVarInsn(LSTORE, startTimeLocalId);
+        inj.getBasicVisitor().visitInsn(MONITORENTER);
+    }
+
+    /**
+     * Вставляет запись времени ожидания монитора в гистограмму id. Стек при этом не меняется.
+     *
+     * @param startTimeLocalId переменная, в которую injectMonitorEnter() сохранил время начала
+     */
+    protected void injectMonitorWait(HookInjectorMethodVisitor inj, int startTimeLocalId, String id) {
+        inj.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        inj.getBasicVisitor().visitVarInsn(LLOAD, startTimeLocalId);
+        inj.visitInsn(LSUB);
+        if (canUseInvokeDynamic(inj)) {
+            inj.visitInvokeDynamicInsn("record", "(J)V", HISTOGRAM_BOOTSTRAP, id);
+        } else {
+            inj.visitLdcInsn(id);
+            inj.visitInsn(DUP_X2);
+            inj.visitInsn(POP);
+            inj.visitMethodInsn(INVOKESTATIC, HOOK_METRICS, "record", "(Ljava/lang/String;J)V", false);
+        }
+    }
+
+    /**
+     * Вставляет начало замера статического инициализатора и сохраняет время начала в новую локальную переменную.
+     *
+     * @return номер локальной переменной
+     */
+    protected int injectStaticInitEnter(HookInjectorMethodVisitor inj) {
+        inj.visitLdcInsn(inj.cv.className.replace('/', '.'));
+        inj.visitMethodInsn(INVOKESTATIC, STATIC_INIT_PROFILER, "enter", "(Ljava/lang/String;)J", false);
+        int startTimeLocalId = inj.newLocal(LONG_TYPE);
+        inj.getBasicVisitor().visitVarInsn(LSTORE, startTimeLocalId);
+        return startTimeLocalId;
+    }
+
+    /**
+     * Вставляет конец замера статического инициализатора. Стек при этом не меняется.
+     */
+    protected void injectStaticInitExit(HookInjectorMethodVisitor inj, int startTimeLocalId) {
+        inj.visitLdcInsn(inj.cv.className.replace('/', '.'));
+        inj.getBasicVisitor().visitVarInsn(LLOAD, startTimeLocalId);
+        inj.visitMethodInsn(INVOKESTATIC, STATIC_INIT_PROFILER, "exit", "(Ljava/lang/String;J)V", false);
+    }
+
+    /**
+     * Вставляет вызов хук-метода входа парного хука и сохраняет его результат в новую локальную переменную.
+     *
+     * @return номер локальной переменной с результатом или -1, если хук-метод возвращает void
+     */
+    protected int injectAroundEnter(HookInjectorMethodVisitor inj) {
+        if (metric == HookMetric.TIMING) {
+            inj.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            int startTimeLocalId = inj.newLocal(LONG_TYPE);
+            inj.getBasicVisitor().visitVarInsn(LSTORE, startTimeLocalId);
+            return startTimeLocalId;
+        }
+        injectHookMethodCall(inj, -1);
+        if (hookMethodReturnType == VOID_TYPE) {
+            return -1;
+        }
+        // переменная живёт до конца метода, поэтому её номер не должен пройти через переназначение ещё раз
+        int stateLocalId = inj.newLocal(hookMethodReturnType);
+        inj.getBasicVisitor().visitVarInsn(hookMethodReturnType.getOpcode(ISTORE), stateLocalId);
+        return stateLocalId;
+    }
+
+    /**
+     * Вставляет вызов метода выхода парного хука. Стек при этом не меняется.
+     */
+    protected void injectAroundExit(HookInjectorMethodVisitor inj, int stateLocalId) {
+        if (metric == HookMetric.TIMING) {
+            boolean indy = canUseInvokeDynamic(inj);
+            if (!indy) inj.visitLdcInsn(getMetricId());
+            inj.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            inj.getBasicVisitor().visitVarInsn(LLOAD, stateLocalId);
+            inj.visitInsn(LSUB);
+            if (indy) {
+                inj.visitInvokeDynamicInsn("record", "(J)V", HISTOGRAM_BOOTSTRAP, getMetricId());
+            } else {
+                inj.visitMethodInsn(INVOKESTATIC, HOOK_METRICS, "record", "(Ljava/lang/String;J)V", false);
+            }
+            return;
+        }
+        injectParameters(inj, -1);
+        if (stateLocalId != -1) {
+            inj.getBasicVisitor().visitVarInsn(hookMethodReturnType.getOpcode(ILOAD), stateLocalId);
+        }
+        inj.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), aroundExitMethodName,
+                aroundExitMethodDescription, false);
+    }
+
+    /**
+     * Проверяет, подходит ли вызов внутри целевого метода под хук, заменяющий вызов.
+     * Для static-метода описание хук-метода совпадает с описанием заменяемого, иначе первый параметр
+     * хук-метода - объект, у которого вызывается метод.
+     */
+    protected boolean isRedirectedInvocation(boolean isStatic, String desc) {
+        return desc.equals(isStatic ? redirectStaticDescription : redirectVirtualDescription);
+    }
+
+    /**
+     * Вставляет вызов хук-метода вместо заменяемого вызова. Всё нужное уже лежит на стеке.
+     */
+    protected void injectRedirect(HookInjectorMethodVisitor inj) {
+        inj.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), hookMethodName, hookMethodDescription, false);
+    }
+
+    protected String getWatchedFieldDescription() {
+        return watchedFieldDescription;
+    }
+
+    /**
+     * Вставляет запись в поле и вызов хук-метода после неё. Перед записью на стеке лежат объект (для PUTFIELD)
+     * и новое значение, так что их нужно продублировать под запись. Для PUTSTATIC вместо объекта передаётся null.
+     * Локальные переменные не используются, поэтому хук можно вставлять в любое место метода.
+     */
+    protected void injectFieldWrite(HookInjectorMethodVisitor inj, int opcode, String owner, String name,
+                                    String desc) {
+        boolean isWide = desc.equals("J") || desc.equals("D");
+        if (opcode == PUTSTATIC) {
+            inj.visitInsn(isWide ? DUP2 : DUP);
+            inj.visitFieldInsn(opcode, owner, name, desc);
+            inj.visitInsn(ACONST_NULL);
+            if (isWide) {
+                inj.visitInsn(DUP_X2);
+                inj.visitInsn(POP);
+            } else {
+                inj.visitInsn(SWAP);
+            }
+        } else if (isWide) {
+            // объект, значение -> объект, значение, объект, значение
+            inj.visitInsn(DUP2_X1);
+            inj.visitInsn(POP2);
+            inj.visitInsn(DUP_X2);
+            inj.visitInsn(DUP_X2);
+            inj.visitInsn(POP);
+            inj.visitInsn(DUP2_X1);
+            inj.visitFieldInsn(opcode, owner, name, desc);
+        } else {
+            inj.visitInsn(DUP2);
+            inj.visitFieldInsn(opcode, owner, name, desc);
+        }
+        inj.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), hookMethodName, hookMethodDescription, false);
+    }
+
+    /**
+     * Вставляет то, что загружается вместо заменяемой константы: значение системного свойства
+     * hooklib.constant.ключХука, заданное через Builder#setConstantReplacement значение или вызов хук-метода.
+     * Если хук-метод принимает параметр, то ему передаётся исходная константа.
+     */
+    protected void injectConstant(HookInjectorMethodVisitor inj, Object constant) {
+        Object replacement = constantReplacement;
+        if (hasHookMethod()) {
+            String property = System.getProperty("hooklib.constant." + getMetricId());
+            if (property != null) {
+                try {
+                    replacement = parseConstant(property, hookMethodReturnType);
+                } catch (NumberFormatException e) {
+                    inj.cv.transformer.logger.warning("Can not parse constant " + property + " for hook " + this);
+                }
+            }
+        }
+        if (replacement != null) {
+            inj.visitLdcInsn(replacement);
+            return;
+        }
+        if (hookMethodParameters.length != 0) {
+            inj.visitLdcInsn(constant);
+        }
+        if (dispatch == HookDispatch.INLINED) {
+            InlinedHookBody body = getInlinedBody(inj.cv.transformer);
+            if (body != null) {
+                body.inject(inj);
+                return;
+            }
+        }
+        inj.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), hookMethodName, hookMethodDescription, false);
+    }
+
+    /**
+     * Переводит строку в константу нужного типа для замены константы.
+     *
+     * @param type int, long, float, double или String
+     * @throws NumberFormatException если строку нельзя перевести в число нужного типа
+     */
+    static Object parseConstant(String value, Type type) {
+        switch (type.getSort()) {
+            case Type.INT:
+                return Integer.decode(value);
+            case Type.LONG:
+                return Long.decode(value);
+            case Type.FLOAT:
+                return Float.valueOf(value);
+            case Type.DOUBLE:
+                return Double.valueOf(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * @return тип константы, которую можно заменить хуком, или null для других объектов
+     */
+    static Type getConstantType(Object constant) {
+        if (constant instanceof Integer) return INT_TYPE;
+        if (constant instanceof Long) return LONG_TYPE;
+        if (constant instanceof Float) return FLOAT_TYPE;
+        if (constant instanceof Double) return DOUBLE_TYPE;
+        if (constant instanceof String) return getType(String.class);
+        return null;
+    }
+
+    private static boolean canUseInvokeDynamic(HookInjectorMethodVisitor inj) {
+        return (inj.cv.classVersion & 0xFFFF) >= V1_7;
+    }
+
+    private String getMetricId() {
+        return hooksClassName + '#' + hookMethodName;
+    }
+
+    private boolean canBeOutlined(HookInjectorMethodVisitor inj) {
+        // в интерфейсах до девятой джавы нельзя объявить private static метод
+        return hasHookMethod() && (inj.cv.classAccess & ACC_INTERFACE) == 0 &&
+                !(hasReturnValueParameter && returnValue == ReturnValue.ANOTHER_METHOD_RETURN_VALUE);
+    }
+
+    /**
+     * Вставляет хук с HookDispatch.OUTLINED: значения передаются в метод-переходник прямо со стека,
+     * без сохранения в новые локальные переменные.
+     */
+    private void injectOutlined(HookInjectorMethodVisitor inj) {
+        Type targetMethodReturnType = inj.methodType.getReturnType();
+
+        // значение из return лежит на стеке, его копия уходит в переходник первым параметром
+        if (hasReturnValueParameter) {
+            inj.visitInsn(targetMethodReturnType.getSize() == 2 ? DUP2 : DUP);
+        }
+        for (int i = 0; i < hookMethodParameters.length; i++) {
+            int variableId = transmittableVariableIds[i];
+            if (variableId == -1 || inj.isStatic && variableId == 0) continue;
+            if (inj.isStatic) variableId--;
+            injectLoad(inj, hookMethodParameters[i], variableId);
+        }
+        String bridgeDesc = getBridgeMethodDescription(inj.isStatic, targetMethodReturnType);
+        inj.visitMethodInsn(INVOKESTATIC, inj.cv.className,
+                inj.cv.getBridgeMethodName(this, bridgeDesc, inj.isStatic), bridgeDesc, false);
+
+        boolean returnsHookValue = returnValue == ReturnValue.HOOK_RETURN_VALUE;
+        if (returnCondition == ReturnCondition.NEVER || returnCondition == ReturnCondition.ALWAYS && !returnsHookValue) {
+            if (hookMethodReturnType != VOID_TYPE) {
+                inj.visitInsn(hookMethodReturnType.getSize() == 2 ? POP2 : POP);
+            }
+        }
+
+        if (returnCondition == ReturnCondition.ALWAYS) {
+            if (!returnsHookValue) {
+                injectReturnValue(inj, targetMethodReturnType, -1);
+            }
+            injectReturn(inj, targetMethodReturnType);
+        } else if (returnCondition != ReturnCondition.NEVER) {
+            // результат хук-метода одновременно и условие, и возвращаемое значение
+            if (returnsHookValue) {
+                inj.visitInsn(DUP);
+            }
+            Label label = inj.newLabel();
+            if (returnCondition == ReturnCondition.ON_TRUE) {
+                inj.visitJumpInsn(IFEQ, label);
+            } else if (returnCondition == ReturnCondition.ON_NULL) {
+                inj.visitJumpInsn(IFNONNULL, label);
+            } else if (returnCondition == ReturnCondition.ON_NOT_NULL) {
+                inj.visitJumpInsn(IFNULL, label);
+            }
+            if (!returnsHookValue) {
+                injectReturnValue(inj, targetMethodReturnType, -1);
+            }
+            injectReturn(inj, targetMethodReturnType);
+            inj.visitLabel(label);
+            if (returnsHookValue) {
+                inj.visitInsn(POP);
+            }
+        }
+    }
+
+    /**
+     * Вставляет в стак значение, которое необходимо вернуть, если это не значение хук-метода.
+     */
+    private void injectReturnValue(HookInjectorMethodVisitor inj, Type targetMethodReturnType, int returnLocalId) {
+        if (returnValue == ReturnValue.NULL) {
+            inj.visitInsn(Opcodes.ACONST_NULL);
+        } else if (returnValue == ReturnValue.PRIMITIVE_CONSTANT) {
+            inj.visitLdcInsn(primitiveConstant);
+        } else if (returnValue == ReturnValue.ANOTHER_METHOD_RETURN_VALUE) {
+            String returnMethodDescription = this.returnMethodDescription;
+            // если не был определён заранее нужный возвращаемый тип, то добавляем его к описанию
+            if (returnMethodDescription.endsWith(")")) {
+                returnMethodDescription += targetMethodReturnType.getDescriptor();
+            }
+            injectInvokeStatic(inj, returnLocalId, returnMethodName, returnMethodDescription);
+        }
+    }
+
+    private String getBridgeMethodDescription(boolean isStatic, Type targetMethodReturnType) {
+        List<Type> parameters = new ArrayList<Type>(hookMethodParameters.length);
+        if (hasReturnValueParameter) {
+            parameters.add(targetMethodReturnType);
+        }
+        for (int i = 0; i < hookMethodParameters.length; i++) {
+            int variableId = transmittableVariableIds[i];
+            if (variableId == -1 || isStatic && variableId == 0) continue;
+            parameters.add(hookMethodParameters[i]);
+        }
+        return Type.getMethodDescriptor(hookMethodReturnType, parameters.toArray(new Type[0]));
+    }
+
+    /**
+     * Создает метод-переходник для HookDispatch.OUTLINED: раскладывает параметры в порядке хук-метода,
+     * подставляет null вместо this для статических целевых методов и вызывает хук-метод.
+     */
+    protected void createBridgeMethod(HookInjectorClassVisitor classVisitor, String name, String desc,
+                                      boolean isStatic) {
+        Type[] bridgeParameters = Type.getArgumentTypes(desc);
+        MethodVisitor mv = classVisitor.visitSyntheticMethod(ACC_PRIVATE | ACC_STATIC, name, desc);
+        mv.visitCode();
+
+        int returnValueSlot = 0;
+        int nextSlot = hasReturnValueParameter ? bridgeParameters[0].getSize() : 0;
+        for (int i = 0; i < hookMethodParameters.length; i++) {
+            Type parameterType = hookMethodParameters[i];
+            int variableId = transmittableVariableIds[i];
+            if (variableId == -1) {
+                mv.visitVarInsn(parameterType.getOpcode(ILOAD), returnValueSlot);
+            } else if (isStatic && variableId == 0) {
+                mv.visitInsn(ACONST_NULL);
+            } else {
+                mv.visitVarInsn(parameterType.getOpcode(ILOAD), nextSlot);
+                nextSlot += parameterType.getSize();
+            }
+        }
+        mv.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), hookMethodName, hookMethodDescription, false);
+        mv.visitInsn(hookMethodReturnType.getOpcode(IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
     private void injectLoad(HookInjectorMethodVisitor inj, Type parameterType, int variableId) {
         int opcode;
         if (parameterType == INT_TYPE || parameterType == BYTE_TYPE || parameterType == CHAR_TYPE ||
@@ -199,8 +805,8 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
 
     private void injectSuperCall(HookInjectorMethodVisitor inj, ClassMetadataReader.MethodReference method) {
         int variableId = 0;
-        for (int i = 0; i <= targetMethodParameters.size(); i++) {
-            Type parameterType = i == 0 ? TypeHelper.getType(targetClassName) : targetMethodParameters.get(i - 1);
+        for (int i = 0; i <= targetMethodParameters.length; i++) {
+            Type parameterType = i == 0 ? TypeHelper.getType(targetClassName) : targetMethodParameters[i - 1];
             injectLoad(inj, parameterType, variableId);
             if (parameterType.getSort() == Type.DOUBLE || parameterType.getSort() == Type.LONG) {
                 variableId += 2;
@@ -255,10 +861,178 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         }
     }
 
+    private void injectHookMethodCall(HookInjectorMethodVisitor inj, int returnLocalId) {
+        if (dispatch == HookDispatch.SWITCHABLE) {
+            // invokedynamic появился только в седьмой джаве
+            if (canUseInvokeDynamic(inj)) {
+                injectParameters(inj, returnLocalId);
+                inj.visitInvokeDynamicInsn(hookMethodName, hookMethodDescription, SWITCHABLE_BOOTSTRAP,
+                        getHookClassInternalName());
+                return;
+            }
+            inj.cv.transformer.logger.warning("Class " + targetClassName + " is too old for invokedynamic, " +
+                    "switchable hook will be injected as static call: " + this);
+        } else if (dispatch == HookDispatch.ASYNC || dispatch == HookDispatch.TRACE) {
+            // для номера хука нужно статическое поле и ldc с классом
+            if ((inj.cv.classAccess & ACC_INTERFACE) == 0 && (inj.cv.classVersion & 0xFFFF) >= V1_5 &&
+                    !inj.cv.transformer.preserveClassLayout) {
+                injectRecord(inj, returnLocalId);
+                return;
+            }
+            inj.cv.transformer.logger.warning("Can not use " + dispatch + " dispatch in class " + targetClassName +
+                    ", hook will be injected as static call: " + this);
+        } else if (dispatch == HookDispatch.INLINED) {
+            InlinedHookBody body = getInlinedBody(inj.cv.transformer);
+            if (body != null) {
+                injectParameters(inj, returnLocalId);
+                body.inject(inj);
+                return;
+            }
+        }
+        injectInvokeStatic(inj, returnLocalId, hookMethodName, hookMethodDescription);
+    }
+
+    /**
+     * Вставляет запись примитивных параметров хук-метода вместо его вызова:
+     * для ASYNC - AsyncHooks.begin(id, size).putX(...)...commit() в кольцевой буфер текущего потока,
+     * для TRACE - HookTrace.begin(id, size).putX(...)...commit() в сегмент трассы.
+     * Номер хука регистрируется при первом выполнении и хранится в синтетическом поле целевого класса.
+     */
+    private void injectRecord(HookInjectorMethodVisitor inj, int returnLocalId) {
+        boolean trace = dispatch == HookDispatch.TRACE;
+        String owner = trace ? HOOK_TRACE : ASYNC_HOOKS;
+        String cursor = trace ? TRACE_CURSOR : HOOK_RING;
+
+        String fieldName = inj.cv.getStaticIntField(trace ? "trace" : "async", this);
+        Label registered = inj.newLabel();
+        inj.visitFieldInsn(GETSTATIC, inj.cv.className, fieldName, "I");
+        inj.visitInsn(DUP);
+        inj.visitJumpInsn(IFNE, registered);
+        inj.visitInsn(POP);
+        inj.visitLdcInsn(getHookClassInternalName());
+        inj.visitLdcInsn(hookMethodName);
+        inj.visitLdcInsn(hookMethodDescription);
+        if (trace) {
+            inj.visitMethodInsn(INVOKESTATIC, owner, "register",
+                    "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I", false);
+        } else {
+            inj.visitLdcInsn(Type.getObjectType(inj.cv.className));
+            inj.visitMethodInsn(INVOKESTATIC, owner, "register",
+                    "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/Class;)I", false);
+        }
+        inj.visitInsn(DUP);
+        inj.visitFieldInsn(PUTSTATIC, inj.cv.className, fieldName, "I");
+        inj.visitLabel(registered);
+
+        // в кольцевом буфере каждое значение занимает ячейку, в трассе - свой родной размер в байтах
+        int size = 0;
+        for (Type parameterType : hookMethodParameters) {
+            if (isPrimitive(parameterType)) size += trace ? getByteSize(parameterType) : 1;
+        }
+        inj.visitLdcInsn(size);
+        inj.visitMethodInsn(INVOKESTATIC, owner, "begin", "(II)L" + cursor + ";", false);
+
+        for (int i = 0; i < hookMethodParameters.length; i++) {
+            Type parameterType = hookMethodParameters[i];
+            if (!isPrimitive(parameterType)) continue;
+            int variableId = transmittableVariableIds[i];
+            if (variableId == -1) {
+                variableId = returnLocalId;
+            } else if (inj.isStatic) {
+                variableId--;
+            }
+            inj.visitInsn(DUP);
+            injectLoad(inj, parameterType, variableId);
+            Type putType = trace ? getCompactType(parameterType) : getSlotType(parameterType);
+            inj.visitMethodInsn(INVOKEVIRTUAL, cursor, "put" + getPutSuffix(putType),
+                    Type.getMethodDescriptor(VOID_TYPE, putType), false);
+        }
+        inj.visitMethodInsn(INVOKEVIRTUAL, cursor, "commit", "()V", false);
+    }
+
+    private static int getByteSize(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+                return 1;
+            case Type.CHAR:
+            case Type.SHORT:
+                return 2;
+            case Type.LONG:
+            case Type.DOUBLE:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    // boolean в трассе пишется одним байтом
+    private static Type getCompactType(Type type) {
+        return type == BOOLEAN_TYPE ? BYTE_TYPE : type;
+    }
+
+    // в ячейку кольцевого буфера всё, что меньше int, кладётся как int
+    private static Type getSlotType(Type type) {
+        switch (type.getSort()) {
+            case Type.LONG:
+            case Type.FLOAT:
+            case Type.DOUBLE:
+                return type;
+            default:
+                return INT_TYPE;
+        }
+    }
+
+    private static String getPutSuffix(Type type) {
+        String name = type.getClassName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type.getSort() >= Type.BOOLEAN && type.getSort() <= Type.DOUBLE;
+    }
+
+    /**
+     * @return тело хук-метода или null, если его нельзя скопировать, и хук вставляется как STATIC
+     */
+    private InlinedHookBody getInlinedBody(HookClassTransformer transformer) {
+        return inlinedBody.get(this, transformer);
+    }
+
+    /**
+     * Тело хук-метода для HookDispatch.INLINED. В build() его не прочитать: нужен ClassMetadataReader трансформера,
+     * так что оно читается при первой вставке. Копии хука (см. copyForClass()) делят его с исходным хуком,
+     * поэтому хук-метод читается один раз, даже если классы трансформируются в разных потоках.
+     */
+    private static class InlinedBodyHolder {
+
+        private InlinedHookBody body;
+        private boolean failed; // хук-метод нельзя скопировать, он вызывается как обычно
+
+        synchronized InlinedHookBody get(AsmHook hook, HookClassTransformer transformer) {
+            if (body == null && !failed) {
+                try {
+                    body = InlinedHookBody.load(transformer.classMetadataReader, hook.hooksClassName,
+                            hook.hookMethodName, hook.hookMethodDescription);
+                } catch (Exception e) {
+                    transformer.logger.warning("Can not inline hook method, it will be injected as static call: " +
+                            hook + ". Reason: " + e.getMessage());
+                    failed = true;
+                }
+            }
+            return body;
+        }
+    }
+
     private void injectInvokeStatic(HookInjectorMethodVisitor inj, int returnLocalId, String name, String desc) {
-        for (int i = 0; i < hookMethodParameters.size(); i++) {
-            Type parameterType = hookMethodParameters.get(i);
-            int variableId = transmittableVariableIds.get(i);
+        injectParameters(inj, returnLocalId);
+        inj.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), name, desc, false);
+    }
+
+    private void injectParameters(HookInjectorMethodVisitor inj, int returnLocalId) {
+        for (int i = 0; i < hookMethodParameters.length; i++) {
+            Type parameterType = hookMethodParameters[i];
+            int variableId = transmittableVariableIds[i];
             if (inj.isStatic) {
                 // если попытка передачи this из статического метода, то передаем null
                 if (variableId == 0) {
@@ -271,12 +1045,14 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
             if (variableId == -1) variableId = returnLocalId;
             injectLoad(inj, parameterType, variableId);
         }
-
-        inj.visitMethodInsn(INVOKESTATIC, getHookClassInternalName(), name, desc, false);
     }
 
     public String getPatchedMethodName() {
-        return targetClassName + '#' + targetMethodName + targetMethodDescription;
+        return targetClassName + '#' + targetMethodName + getTargetMethodDescriptionString();
+    }
+
+    private String getTargetMethodDescriptionString() {
+        return anyTargetMethodDescription ? "(*)" : targetMethodDescription;
     }
 
     @Override
@@ -285,7 +1061,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         sb.append("AsmHook: ");
 
         sb.append(targetClassName).append('#').append(targetMethodName);
-        sb.append(targetMethodDescription);
+        sb.append(getTargetMethodDescriptionString());
         sb.append(" -> ");
         sb.append(hooksClassName).append('#').append(hookMethodName);
         sb.append(hookMethodDescription);
@@ -294,27 +1070,97 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         sb.append(", ReturnValue=" + returnValue);
         if (returnValue == ReturnValue.PRIMITIVE_CONSTANT) sb.append(", Constant=" + primitiveConstant);
         sb.append(", InjectorFactory: " + injectorFactory.getClass().getName());
+        if (injectorFactory instanceof HookInjectorFactory.InvokeRedirect) sb.append(", Redirect=" + injectorFactory);
+        if (injectorFactory instanceof HookInjectorFactory.FieldWrite) sb.append(", Watch=" + injectorFactory);
+        if (injectorFactory instanceof HookInjectorFactory.ConstantModification) {
+            sb.append(", Constant=" + injectorFactory);
+            if (constantReplacement != null) sb.append(", Replacement=" + constantReplacement);
+        }
+        if (dispatch != HookDispatch.STATIC) sb.append(", Dispatch=" + dispatch);
+        if (aroundExitMethodName != null) sb.append(", AroundExit=" + aroundExitMethodName + aroundExitMethodDescription);
+        if (sampleRate > 1) sb.append(", SampleRate=" + sampleRate);
+        if (metric != HookMetric.NONE) sb.append(", Metric=" + metric);
+        if (targetClassPattern != null) sb.append(", Pattern=" + targetClassPattern);
+        if (memoizeSize > 0) sb.append(", Memoize=" + memoizeSize);
+        if (replaceBody) sb.append(", ReplaceBody");
+        if (includeOverrides) sb.append(", IncludeOverrides");
         sb.append(", CreateMethod = " + createMethod);
 
         return sb.toString();
     }
 
+    /**
+     * Хуки равны, если они вставляют одно и то же в одно и то же место. Описания методов не сравниваются:
+     * они однозначно получаются из остальных параметров.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof AsmHook)) return false;
+        AsmHook o = (AsmHook) obj;
+        return hashCode() == o.hashCode() &&
+                targetClassName.equals(o.targetClassName) && targetMethodName.equals(o.targetMethodName) &&
+                equal(targetClassPattern, o.targetClassPattern) &&
+                Arrays.equals(targetMethodParameters, o.targetMethodParameters) &&
+                equal(targetMethodReturnType, o.targetMethodReturnType) &&
+                anyTargetMethodDescription == o.anyTargetMethodDescription &&
+                equal(hooksClassName, o.hooksClassName) && equal(hookMethodName, o.hookMethodName) &&
+                Arrays.equals(transmittableVariableIds, o.transmittableVariableIds) &&
+                Arrays.equals(hookMethodParameters, o.hookMethodParameters) &&
+                hookMethodReturnType.equals(o.hookMethodReturnType) &&
+                returnCondition == o.returnCondition && returnValue == o.returnValue &&
+                equal(primitiveConstant, o.primitiveConstant) && equal(returnMethodName, o.returnMethodName) &&
+                injectorFactory.equals(o.injectorFactory) && priority == o.priority && dispatch == o.dispatch &&
+                sampleRate == o.sampleRate && metric == o.metric && memoizeSize == o.memoizeSize &&
+                equal(constantReplacement, o.constantReplacement) && replaceBody == o.replaceBody &&
+                includeOverrides == o.includeOverrides && equal(aroundExitMethodName, o.aroundExitMethodName) &&
+                createMethod == o.createMethod && isMandatory == o.isMandatory;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hashCode;
+        if (h == 0) {
+            h = targetClassName.hashCode();
+            h = 31 * h + targetMethodName.hashCode();
+            h = 31 * h + (targetMethodDescription == null ? 0 : targetMethodDescription.hashCode());
+            h = 31 * h + (hooksClassName == null ? 0 : hooksClassName.hashCode());
+            h = 31 * h + (hookMethodName == null ? 0 : hookMethodName.hashCode());
+            h = 31 * h + injectorFactory.hashCode();
+            hashCode = h;
+        }
+        return h;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Хуки с одинаковым приоритетом равны, так что сортировка оставляет их в порядке регистрации.
+     */
     @Override
     public int compareTo(AsmHook o) {
         if (injectorFactory.isPriorityInverted && o.injectorFactory.isPriorityInverted) {
-            return priority.ordinal() > o.priority.ordinal() ? -1 : 1;
+            return o.priority.ordinal() - priority.ordinal();
         } else if (!injectorFactory.isPriorityInverted && !o.injectorFactory.isPriorityInverted) {
-            return priority.ordinal() > o.priority.ordinal() ? 1 : -1;
+            return priority.ordinal() - o.priority.ordinal();
         } else {
             return injectorFactory.isPriorityInverted ? 1 : -1;
         }
     }
 
     public static Builder newBuilder() {
-        return new AsmHook().new Builder();
+        return new Builder();
     }
 
-    public class Builder extends AsmHook {
+    public static class Builder {
+
+        private final AsmHook hook = new AsmHook();
+        // параметры копятся в списках, а в хук попадают массивами при build()
+        private final List<Type> targetMethodParameters = new ArrayList<Type>(2);
+        private final List<Integer> transmittableVariableIds = new ArrayList<Integer>(2);
+        private final List<Type> hookMethodParameters = new ArrayList<Type>(2);
 
         private Builder() {
 
@@ -323,12 +1169,16 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
         /**
          * --- ОБЯЗАТЕЛЬНО ВЫЗВАТЬ ---
          * Определяет название класса, в который необходимо установить хук.
+         * Вместо названия можно указать шаблон: "net.minecraft.entity.*" - все классы, название которых
+         * начинается с префикса перед звёздочкой, или "net.minecraft.entity.Entity+" - сам класс и все его
+         * наследники. Хук с шаблоном копируется для каждого подходящего класса (см. HookClassTransformer) и
+         * получает this как Object или как базовый класс шаблона.
          *
          * @param className Название класса с указанием пакета, разделенное точками.
          *                  Например: net.minecraft.world.World
          */
         public Builder setTargetClass(String className) {
-            AsmHook.this.targetClassName = className;
+            hook.targetClassName = className;
             return this;
         }
 
@@ -336,12 +1186,16 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * --- ОБЯЗАТЕЛЬНО ВЫЗВАТЬ ---
          * Определяет название метода, в который необходимо вставить хук.
          * Если нужно пропатчить конструктор, то в названии метода нужно указать <init>.
+         * Можно указать "*", чтобы вставить хук во все методы класса, или префикс со звёздочкой ("onUpdate*"),
+         * чтобы вставить его во все методы, название которых начинается с префикса. В такой хук из целевого
+         * метода можно передать только this, если это не хук со стеком (setFieldWatch, setRedirect,
+         * setConstantModification) и не метрика по местам внутри метода.
          *
          * @param methodName Название метода.
          *                   Например: getBlockId
          */
         public Builder setTargetMethod(String methodName) {
-            AsmHook.this.targetMethodName = methodName;
+            hook.targetMethodName = methodName;
             return this;
         }
 
@@ -365,7 +1219,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          */
         public Builder addTargetMethodParameters(Type... parameterTypes) {
             for (Type type : parameterTypes) {
-                AsmHook.this.targetMethodParameters.add(type);
+                targetMethodParameters.add(type);
             }
             return this;
         }
@@ -386,6 +1240,16 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
             return addTargetMethodParameters(types);
         }
 
+        /**
+         * Хук будет применён к первому методу с подходящим названием, независимо от его параметров и
+         * возвращаемого типа. Удобно для хуков, у которых параметры хук-метода не связаны с параметрами
+         * целевого метода, например, для замены вызова (setRedirect).
+         */
+        public Builder setAnyTargetMethodDescription() {
+            hook.anyTargetMethodDescription = true;
+            return this;
+        }
+
         /**
          * Изменяет тип, возвращаемый целевым методом.
          * Вовращаемый тип используется, чтобы составить описание целевого метода.
@@ -396,7 +1260,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @see TypeHelper
          */
         public Builder setTargetMethodReturnType(Type returnType) {
-            AsmHook.this.targetMethodReturnType = returnType;
+            hook.targetMethodReturnType = returnType;
             return this;
         }
 
@@ -418,7 +1282,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          *                  Например: net.myname.mymod.asm.MyHooks
          */
         public Builder setHookClass(String className) {
-            AsmHook.this.hooksClassName = className;
+            hook.hooksClassName = className;
             return this;
         }
 
@@ -431,7 +1295,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          *                   Например: myFirstHook
          */
         public Builder setHookMethod(String methodName) {
-            AsmHook.this.hookMethodName = methodName;
+            hook.hookMethodName = methodName;
             return this;
         }
 
@@ -470,12 +1334,12 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @throws IllegalStateException если не задано название хук-метода или класса, который его содержит
          */
         public Builder addHookMethodParameter(Type parameterType, int variableId) {
-            if (!AsmHook.this.hasHookMethod()) {
+            if (!hook.hasHookMethod()) {
                 throw new IllegalStateException("Hook method is not specified, so can not append " +
                         "parameter to its parameters list.");
             }
-            AsmHook.this.hookMethodParameters.add(parameterType);
-            AsmHook.this.transmittableVariableIds.add(variableId);
+            hookMethodParameters.add(parameterType);
+            transmittableVariableIds.add(variableId);
             return this;
         }
 
@@ -498,12 +1362,12 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @throws IllegalStateException если не задан хук-метод
          */
         public Builder addThisToHookMethodParameters() {
-            if (!AsmHook.this.hasHookMethod()) {
+            if (!hook.hasHookMethod()) {
                 throw new IllegalStateException("Hook method is not specified, so can not append " +
                         "parameter to its parameters list.");
             }
-            AsmHook.this.hookMethodParameters.add(TypeHelper.getType(targetClassName));
-            AsmHook.this.transmittableVariableIds.add(0);
+            hookMethodParameters.add(hook.getTargetClassType());
+            transmittableVariableIds.add(0);
             return this;
         }
 
@@ -524,17 +1388,17 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @throws IllegalStateException если не задан хук-метод
          */
         public Builder addReturnValueToHookMethodParameters() {
-            if (!AsmHook.this.hasHookMethod()) {
+            if (!hook.hasHookMethod()) {
                 throw new IllegalStateException("Hook method is not specified, so can not append " +
                         "parameter to its parameters list.");
             }
-            if (AsmHook.this.targetMethodReturnType == Type.VOID_TYPE) {
+            if (hook.targetMethodReturnType == Type.VOID_TYPE) {
                 throw new IllegalStateException("Target method's return type is void, it does not make sense to " +
                         "transmit its return value to hook method.");
             }
-            AsmHook.this.hookMethodParameters.add(AsmHook.this.targetMethodReturnType);
-            AsmHook.this.transmittableVariableIds.add(-1);
-            AsmHook.this.hasReturnValueParameter = true;
+            hookMethodParameters.add(hook.targetMethodReturnType);
+            transmittableVariableIds.add(-1);
+            hook.hasReturnValueParameter = true;
             return this;
         }
 
@@ -553,12 +1417,12 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @see ReturnCondition
          */
         public Builder setReturnCondition(ReturnCondition condition) {
-            if (condition.requiresCondition && AsmHook.this.hookMethodName == null) {
+            if (condition.requiresCondition && hook.hookMethodName == null) {
                 throw new IllegalArgumentException("Hook method is not specified, so can not use return " +
                         "condition that depends on hook method.");
             }
 
-            AsmHook.this.returnCondition = condition;
+            hook.returnCondition = condition;
             Type returnType;
             switch (condition) {
                 case NEVER:
@@ -572,7 +1436,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
                     returnType = getType(Object.class);
                     break;
             }
-            AsmHook.this.hookMethodReturnType = returnType;
+            hook.hookMethodReturnType = returnType;
             return this;
         }
 
@@ -592,11 +1456,11 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          *                                  Нет смысла использовать значение, которое вернул хук-метод, если метод возвращает void.
          */
         public Builder setReturnValue(ReturnValue value) {
-            if (AsmHook.this.returnCondition == ReturnCondition.NEVER) {
+            if (hook.returnCondition == ReturnCondition.NEVER) {
                 throw new IllegalStateException("Current return condition is ReturnCondition.NEVER, so it does not " +
                         "make sense to specify the return value.");
             }
-            Type returnType = AsmHook.this.targetMethodReturnType;
+            Type returnType = hook.targetMethodReturnType;
             if (value != ReturnValue.VOID && returnType == VOID_TYPE) {
                 throw new IllegalArgumentException("Target method return value is void, so it does not make sense to " +
                         "return anything else.");
@@ -613,14 +1477,14 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
                 throw new IllegalArgumentException("Target method return value is a primitive, so it is impossible " +
                         "to return NULL.");
             }
-            if (value == ReturnValue.HOOK_RETURN_VALUE && !hasHookMethod()) {
+            if (value == ReturnValue.HOOK_RETURN_VALUE && !hook.hasHookMethod()) {
                 throw new IllegalArgumentException("Hook method is not specified, so can not use return " +
                         "value that depends on hook method.");
             }
 
-            AsmHook.this.returnValue = value;
+            hook.returnValue = value;
             if (value == ReturnValue.HOOK_RETURN_VALUE) {
-                AsmHook.this.hookMethodReturnType = AsmHook.this.targetMethodReturnType;
+                hook.hookMethodReturnType = hook.targetMethodReturnType;
             }
             return this;
         }
@@ -631,7 +1495,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @return тип возвращаемого значения хук-метода
          */
         public Type getHookMethodReturnType() {
-            return hookMethodReturnType;
+            return hook.hookMethodReturnType;
         }
 
         /**
@@ -640,11 +1504,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @param type
          */
         protected void setHookMethodReturnType(Type type) {
-            AsmHook.this.hookMethodReturnType = type;
-        }
-
-        private boolean isPrimitive(Type type) {
-            return type.getSort() > 0 && type.getSort() < 9;
+            hook.hookMethodReturnType = type;
         }
 
         /**
@@ -660,11 +1520,11 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          *                                  для примитивного типа, который возвращает целевой метод.
          */
         public Builder setPrimitiveConstant(Object constant) {
-            if (AsmHook.this.returnValue != ReturnValue.PRIMITIVE_CONSTANT) {
+            if (hook.returnValue != ReturnValue.PRIMITIVE_CONSTANT) {
                 throw new IllegalStateException("Return value is not PRIMITIVE_CONSTANT, so it does not make sence" +
                         "to specify that constant.");
             }
-            Type returnType = AsmHook.this.targetMethodReturnType;
+            Type returnType = hook.targetMethodReturnType;
             if (returnType == BOOLEAN_TYPE && !(constant instanceof Boolean) ||
                     returnType == CHAR_TYPE && !(constant instanceof Character) ||
                     returnType == BYTE_TYPE && !(constant instanceof Byte) ||
@@ -676,7 +1536,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
                 throw new IllegalArgumentException("Given object class does not math target method return type.");
             }
 
-            AsmHook.this.primitiveConstant = constant;
+            hook.primitiveConstant = constant;
             return this;
         }
 
@@ -689,12 +1549,12 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @throws IllegalStateException если возвращаемое значение не установлено на ANOTHER_METHOD_RETURN_VALUE
          */
         public Builder setReturnMethod(String methodName) {
-            if (AsmHook.this.returnValue != ReturnValue.ANOTHER_METHOD_RETURN_VALUE) {
+            if (hook.returnValue != ReturnValue.ANOTHER_METHOD_RETURN_VALUE) {
                 throw new IllegalStateException("Return value is not ANOTHER_METHOD_RETURN_VALUE, " +
                         "so it does not make sence to specify that method.");
             }
 
-            AsmHook.this.returnMethodName = methodName;
+            hook.returnMethodName = methodName;
             return this;
         }
 
@@ -709,7 +1569,207 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * @param factory Фабрика, создающая инжектор для этого хука
          */
         public Builder setInjectorFactory(HookInjectorFactory factory) {
-            AsmHook.this.injectorFactory = factory;
+            hook.injectorFactory = factory;
+            return this;
+        }
+
+        /**
+         * Делает хук парным: хук-метод вызывается на входе в целевой метод, а указанный метод выхода - на каждом
+         * выходе из него, в том числе через исключение. Метод выхода должен находиться в том же классе, что и
+         * хук-метод, принимать те же параметры и ещё один последний параметр - значение, которое вернул хук-метод
+         * на входе. Например, можно вернуть System.nanoTime() и на выходе посчитать время выполнения метода.
+         * Если stateType - void, то последнего параметра нет.
+         * Парный хук не может вызывать return.
+         *
+         * @param methodName название метода выхода
+         * @param stateType  тип, который возвращает хук-метод входа
+         * @throws IllegalStateException если не задан хук-метод
+         */
+        public Builder setAroundExitMethod(String methodName, Type stateType) {
+            if (!hook.hasHookMethod()) {
+                throw new IllegalStateException("Hook method is not specified, so can not use around exit method.");
+            }
+            hook.aroundExitMethodName = methodName;
+            hook.hookMethodReturnType = stateType;
+            hook.injectorFactory = HookInjectorFactory.Around.INSTANCE;
+            return this;
+        }
+
+        /**
+         * Вместо вставки в начало или конец целевого метода хук будет заменять вызовы указанного метода внутри
+         * целевого. Хук-метод получает всё, что лежало на стеке для вызова: объект, у которого вызывается
+         * метод (если метод не static), и параметры метода. Их нужно добавить через addHookMethodParameter,
+         * номер значения при этом не используется. Заменяются только вызовы, в которых указан именно этот класс.
+         * Так можно, например, подменить дорогой вспомогательный метод на кэширующий, не трогая остальной код.
+         *
+         * @param className  название класса с заменяемым методом через точки
+         * @param methodName название заменяемого метода
+         * @param returnType тип, который возвращает заменяемый метод (и хук-метод)
+         * @param ordinal    номер заменяемого вызова среди подходящих, начиная с нуля, или -1, чтобы заменить все
+         * @throws IllegalStateException если не задан хук-метод
+         */
+        public Builder setRedirect(String className, String methodName, Type returnType, int ordinal) {
+            if (!hook.hasHookMethod()) {
+                throw new IllegalStateException("Hook method is not specified, so can not redirect invocation.");
+            }
+            hook.injectorFactory = new HookInjectorFactory.InvokeRedirect(className.replace('.', '/'),
+                    methodName, ordinal);
+            hook.hookMethodReturnType = returnType;
+            return this;
+        }
+
+        /**
+         * Вместо вставки в начало или конец целевого метода хук будет вызываться после каждой записи в указанное
+         * поле внутри целевого метода (или всех методов класса, если название целевого метода - "*").
+         * Так можно найти, кто и как часто меняет поле, не перебирая все места записи вручную.
+         * Хук-метод принимает два параметра: объект, в поле которого записано значение (null для static-поля),
+         * и новое значение. Тип второго параметра должен совпадать с типом поля. Параметры нужно добавить через
+         * addHookMethodParameter, номер значения при этом не используется. Записи в конструкторе до вызова
+         * super() пропускаются.
+         *
+         * @param className название класса, в котором объявлено поле, через точки
+         * @param fieldName название поля
+         * @throws IllegalStateException если не задан хук-метод
+         */
+        public Builder setFieldWatch(String className, String fieldName) {
+            if (!hook.hasHookMethod()) {
+                throw new IllegalStateException("Hook method is not specified, so can not watch field.");
+            }
+            hook.injectorFactory = new HookInjectorFactory.FieldWrite(className.replace('.', '/'), fieldName);
+            return this;
+        }
+
+        /**
+         * Вместо вставки в начало или конец целевого метода хук будет заменять загрузку константы с заданным
+         * значением внутри целевого метода: ldc, bipush, sipush или xconst_n. Так можно менять размеры буферов,
+         * лимиты и границы циклов под конкретную сборку, не копируя код целевого метода.
+         * На место константы вставляется вызов хук-метода, который возвращает константу того же типа и может
+         * принимать один параметр того же типа - исходное значение (его нужно добавить через
+         * addHookMethodParameter, номер значения не используется). Вместо вызова хук-метода можно сразу
+         * подставить значение через setConstantReplacement. Кроме того, если при трансформации задано
+         * системное свойство hooklib.constant.название.класса.сХуками#названиеХукМетода, то подставляется
+         * его значение.
+         *
+         * @param constant исходное значение: Integer, Long, Float, Double или String. Все константы типов
+         *                 boolean, byte, char и short в байткоде - это int.
+         * @param ordinal  номер заменяемой константы среди подходящих, начиная с нуля, или -1, чтобы заменить все
+         * @throws IllegalArgumentException если у константы неподходящий тип
+         */
+        public Builder setConstantModification(Object constant, int ordinal) {
+            Type constantType = getConstantType(constant);
+            if (constantType == null) {
+                throw new IllegalArgumentException("Can not modify constant of " + constant.getClass());
+            }
+            hook.injectorFactory = new HookInjectorFactory.ConstantModification(constant, ordinal);
+            hook.hookMethodReturnType = constantType;
+            return this;
+        }
+
+        /**
+         * Задает значение, которое при трансформации подставляется вместо константы, заданной через
+         * setConstantModification. Хук-метод при этом не нужен.
+         *
+         * @throws IllegalArgumentException если тип значения не совпадает с типом константы
+         */
+        public Builder setConstantReplacement(Object replacement) {
+            if (!hook.hookMethodReturnType.equals(getConstantType(replacement))) {
+                throw new IllegalArgumentException("Replacement " + replacement + " does not match constant type " +
+                        hook.hookMethodReturnType);
+            }
+            hook.constantReplacement = replacement;
+            return this;
+        }
+
+        /**
+         * Задает способ вызова хук-метода из целевого метода.
+         * По умолчанию хук-метод вызывается обычным INVOKESTATIC.
+         *
+         * @see HookDispatch
+         */
+        public Builder setDispatch(HookDispatch dispatch) {
+            hook.dispatch = dispatch;
+            return this;
+        }
+
+        /**
+         * Задает частоту вызова хука: хук-метод будет вызываться только на каждом N-ном выполнении точки вставки.
+         * Остальные выполнения стоят один инкремент статического поля и один переход, поэтому так можно
+         * собирать телеметрию даже с очень горячих методов вроде тика сущностей.
+         * По умолчанию 1, то есть хук вызывается всегда.
+         * Нельзя использовать вместе с парными хуками (setAroundExitMethod).
+         *
+         * @throws IllegalArgumentException если rate меньше единицы
+         */
+        public Builder setSampleRate(int rate) {
+            if (rate < 1) {
+                throw new IllegalArgumentException("Sample rate must be positive: " + rate);
+            }
+            hook.sampleRate = rate;
+            return this;
+        }
+
+        /**
+         * Вместо вызова хук-метода собирает встроенную метрику в gloomyfolken.hooklib.runtime.HookMetrics.
+         * Хук-метод при этом должен быть задан (по нему строится ключ метрики), но не вызывается.
+         * Для HookMetric.TIMING инжектор заменяется на парный, чтобы замерить время до каждого выхода.
+         * Метрикам по местам внутри метода (ALLOCATIONS, LOCK_WAIT, LOOPS, STATIC_INIT) хук-метод не нужен, у них свой
+         * инжектор, и их можно вставлять во все методы класса через setTargetMethod("*") или во все методы
+         * с названием по шаблону.
+         *
+         * @see HookMetric
+         */
+        public Builder setMetric(HookMetric metric) {
+            hook.metric = metric;
+            if (metric == HookMetric.TIMING) {
+                hook.injectorFactory = HookInjectorFactory.Around.INSTANCE;
+            } else if (metric.perSite) {
+                hook.injectorFactory = getSiteMetricFactory(metric);
+            }
+            return this;
+        }
+
+        /**
+         * Оборачивает целевой метод кэшем результатов вместо вставки вызова хук-метода.
+         * Подходит для чистых, но дорогих методов, которые часто вызываются с одними и теми же параметрами:
+         * поиска рецептов, стоимости пути и т.п. Ключ кэша - this (для нестатических методов) и параметры.
+         * Хук-метод не вызывается, по его названию строится ключ кэша в gloomyfolken.hooklib.runtime.MemoCache,
+         * через который можно смотреть статистику и сбрасывать значения.
+         * Другие хуки в этот же метод вставляются в исходный метод и срабатывают только при промахе кэша.
+         *
+         * @param maxSize максимальное количество значений в кэше
+         * @throws IllegalArgumentException если maxSize меньше единицы
+         */
+        public Builder setMemoize(int maxSize) {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("Memoize cache size must be positive: " + maxSize);
+            }
+            hook.memoizeSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Отбрасывает исходное тело целевого метода: от него остаётся только вызов хук-метода и return.
+         * Это замена реализации целиком, например, медленного алгоритма на быстрый. В отличие от хука
+         * с ReturnCondition.ALWAYS на входе, мёртвый исходный код не остаётся в классе, не занимает metaspace
+         * и не мешает JIT-компилятору оценивать размер метода. Аннотации и сигнатура метода сохраняются.
+         * Можно использовать только с ReturnCondition.ALWAYS и хуком на входе в метод. Конструкторы, абстрактные
+         * и native-методы заменить нельзя. В хук-метод можно передавать только параметры целевого метода:
+         * других локальных переменных в новом теле нет.
+         */
+        public Builder setReplaceBody(boolean replaceBody) {
+            hook.replaceBody = replaceBody;
+            return this;
+        }
+
+        /**
+         * Кроме самого целевого метода, хук вставляется во все его переопределения в наследниках целевого класса.
+         * Наследники находятся по индексу иерархии ClassMetadataReader, который читает только заголовки классов
+         * и запоминает их, так что на каждый загружаемый класс приходится один проход по цепочке суперклассов.
+         * В наследнике, который метод не переопределяет, хук молча пропускается.
+         * Нельзя использовать с шаблоном целевого класса, memoize, createMethod, конструкторами и <clinit>.
+         */
+        public Builder setIncludeOverrides(boolean includeOverrides) {
+            hook.includeOverrides = includeOverrides;
             return this;
         }
 
@@ -718,7 +1778,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * Хуки с большим приоритетом вызаваются раньше.
          */
         public Builder setPriority(HookPriority priority) {
-            AsmHook.this.priority = priority;
+            hook.priority = priority;
             return this;
         }
 
@@ -729,7 +1789,7 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * от возвращаемого типа.
          */
         public Builder setCreateMethod(boolean createMethod) {
-            AsmHook.this.createMethod = createMethod;
+            hook.createMethod = createMethod;
             return this;
         }
 
@@ -738,28 +1798,60 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
          * будет не просто выведено сообщение в лог, а крашнется игра.
          */
         public Builder setMandatory(boolean isMandatory) {
-            AsmHook.this.isMandatory = isMandatory;
+            hook.isMandatory = isMandatory;
             return this;
         }
 
-        private String getMethodDesc(Type returnType, List<Type> paramTypes) {
-            Type[] paramTypesArray = paramTypes.toArray(new Type[0]);
+        private static String getMethodDesc(Type returnType, Type[] paramTypes) {
+            String desc;
             if (returnType == null) {
-                String voidDesc = Type.getMethodDescriptor(Type.VOID_TYPE, paramTypesArray);
-                return voidDesc.substring(0, voidDesc.length() - 1);
+                String voidDesc = Type.getMethodDescriptor(Type.VOID_TYPE, paramTypes);
+                desc = voidDesc.substring(0, voidDesc.length() - 1);
             } else {
-                return Type.getMethodDescriptor(returnType, paramTypesArray);
+                desc = Type.getMethodDescriptor(returnType, paramTypes);
+            }
+            return desc.intern();
+        }
+
+        private static Type[] toArray(List<Type> types) {
+            if (types.isEmpty()) return NO_TYPES;
+            Type[] array = new Type[types.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = TypeHelper.intern(types.get(i));
             }
+            return array;
+        }
+
+        private static String intern(String string) {
+            return string == null ? null : string.intern();
         }
 
         /**
-         * Создает хук по заданным параметрам.
+         * Создает хук по заданным параметрам. Билдер после этого можно использовать дальше:
+         * изменения в нём на созданный хук не влияют.
          *
          * @return полученный хук
          * @throws IllegalStateException если не был вызван какой-либо из обязательных методов
          */
         public AsmHook build() {
-            AsmHook hook = AsmHook.this;
+            AsmHook hook = this.hook.copy();
+
+            hook.targetClassName = intern(hook.targetClassName);
+            hook.targetMethodName = intern(hook.targetMethodName);
+            hook.hooksClassName = intern(hook.hooksClassName);
+            hook.hookMethodName = intern(hook.hookMethodName);
+            hook.returnMethodName = intern(hook.returnMethodName);
+            hook.aroundExitMethodName = intern(hook.aroundExitMethodName);
+            hook.targetMethodParameters = toArray(targetMethodParameters);
+            hook.hookMethodParameters = toArray(hookMethodParameters);
+            if (!transmittableVariableIds.isEmpty()) {
+                hook.transmittableVariableIds = new int[transmittableVariableIds.size()];
+                for (int i = 0; i < hook.transmittableVariableIds.length; i++) {
+                    hook.transmittableVariableIds[i] = transmittableVariableIds.get(i);
+                }
+            }
+            hook.targetMethodReturnType = TypeHelper.intern(hook.targetMethodReturnType);
+            hook.hookMethodReturnType = TypeHelper.intern(hook.hookMethodReturnType);
 
             if (hook.createMethod && hook.targetMethodReturnType == null) {
                 hook.targetMethodReturnType = hook.hookMethodReturnType;
@@ -767,16 +1859,32 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
             hook.targetMethodDescription = getMethodDesc(hook.targetMethodReturnType, hook.targetMethodParameters);
 
             if (hook.hasHookMethod()) {
-                hook.hookMethodDescription = Type.getMethodDescriptor(hook.hookMethodReturnType,
-                        hook.hookMethodParameters.toArray(new Type[0]));
+                hook.hookMethodDescription = getMethodDesc(hook.hookMethodReturnType, hook.hookMethodParameters);
             }
             if (hook.returnValue == ReturnValue.ANOTHER_METHOD_RETURN_VALUE) {
                 hook.returnMethodDescription = getMethodDesc(hook.targetMethodReturnType, hook.hookMethodParameters);
             }
-
-            try {
-                hook = (AsmHook) AsmHook.this.clone();
-            } catch (CloneNotSupportedException impossible) {
+            if (hook.aroundExitMethodName != null) {
+                Type[] exitParameters = hook.hookMethodParameters;
+                if (hook.hookMethodReturnType != VOID_TYPE) {
+                    exitParameters = Arrays.copyOf(exitParameters, exitParameters.length + 1);
+                    exitParameters[exitParameters.length - 1] = hook.hookMethodReturnType;
+                }
+                hook.aroundExitMethodDescription = getMethodDesc(VOID_TYPE, exitParameters);
+            }
+            if (hook.isMethodPattern()) {
+                hook.anyTargetMethodDescription = true;
+            }
+            if (hook.injectorFactory instanceof HookInjectorFactory.FieldWrite &&
+                    hook.hookMethodParameters.length == 2) {
+                hook.watchedFieldDescription = hook.hookMethodParameters[1].getDescriptor().intern();
+            }
+            if (hook.injectorFactory instanceof HookInjectorFactory.InvokeRedirect && hook.hasHookMethod()) {
+                hook.redirectStaticDescription = hook.hookMethodDescription;
+                if (hook.hookMethodParameters.length != 0) {
+                    hook.redirectVirtualDescription = getMethodDesc(hook.hookMethodReturnType,
+                            Arrays.copyOfRange(hook.hookMethodParameters, 1, hook.hookMethodParameters.length));
+                }
             }
 
             if (hook.targetClassName == null) {
@@ -804,6 +1912,198 @@ public class AsmHook implements Cloneable, Comparable<AsmHook> {
                         "because hook location is not return insn.");
             }
 
+            if (hook.dispatch == HookDispatch.SWITCHABLE) {
+                if (!hook.hasHookMethod()) {
+                    throw new IllegalStateException("Dispatch is SWITCHABLE, but hook method is not specified.");
+                }
+                if (hook.returnCondition == ReturnCondition.ALWAYS || hook.returnCondition == ReturnCondition.ON_NULL) {
+                    throw new IllegalStateException("Dispatch SWITCHABLE can not be used with return condition " +
+                            hook.returnCondition + ": disabled hook would trigger return.");
+                }
+            }
+
+            if (hook.metric != HookMetric.NONE) {
+                if (!hook.hasHookMethod() && !hook.hasSiteMetric()) {
+                    throw new IllegalStateException("Metric " + hook.metric + " needs hook method to name it.");
+                }
+                if (hook.returnCondition != ReturnCondition.NEVER || hook.dispatch != HookDispatch.STATIC ||
+                        hook.aroundExitMethodName != null) {
+                    throw new IllegalStateException("Metric hook can not use return condition, dispatch or " +
+                            "around exit method.");
+                }
+                if (hook.metric == HookMetric.TIMING && hook.injectorFactory != HookInjectorFactory.Around.INSTANCE) {
+                    throw new IllegalStateException("Timing hook can not use another injector factory.");
+                }
+                if (hook.metric == HookMetric.TIMING && hook.sampleRate > 1) {
+                    throw new IllegalStateException("Timing hook can not be sampled.");
+                }
+                if (hook.hasSiteMetric() && hook.injectorFactory != getSiteMetricFactory(hook.metric)) {
+                    throw new IllegalStateException("Metric " + hook.metric + " can not use another injector " +
+                            "factory.");
+                }
+                if (hook.metric == HookMetric.STATIC_INIT && !hook.targetMethodName.equals("*") &&
+                        !hook.targetMethodName.equals("<clinit>")) {
+                    throw new IllegalStateException("Static init hook can target only <clinit> or all methods.");
+                }
+                if (hook.hasSiteMetric() && (hook.sampleRate > 1 || hook.createMethod || hook.replaceBody)) {
+                    throw new IllegalStateException("Metric " + hook.metric + " can not be sampled or used with " +
+                            "createMethod or replaceBody.");
+                }
+            }
+
+            if (hook.memoizeSize > 0) {
+                if (!hook.hasHookMethod()) {
+                    throw new IllegalStateException("Memoize hook needs hook method to name the cache.");
+                }
+                if (hook.returnCondition != ReturnCondition.NEVER || hook.dispatch != HookDispatch.STATIC ||
+                        hook.metric != HookMetric.NONE || hook.aroundExitMethodName != null || hook.createMethod) {
+                    throw new IllegalStateException("Memoize hook can not use return condition, dispatch, metric, " +
+                            "around exit method or createMethod.");
+                }
+                if (hook.targetMethodName.equals("<init>") || hook.targetMethodName.equals("<clinit>") ||
+                        hook.targetMethodReturnType == VOID_TYPE) {
+                    throw new IllegalStateException("Only non-void methods can be memoized.");
+                }
+            }
+
+            if (hook.replaceBody) {
+                if (hook.returnCondition != ReturnCondition.ALWAYS || hook.sampleRate > 1) {
+                    throw new IllegalStateException("Replace body hook must use return condition ALWAYS and can " +
+                            "not be sampled.");
+                }
+                if (!(hook.injectorFactory instanceof MethodEnter) || hook.createMethod || hook.memoizeSize > 0) {
+                    throw new IllegalStateException("Replace body hook can be injected only on method enter and can " +
+                            "not use createMethod or memoize.");
+                }
+                if (hook.targetMethodName.equals("<init>")) {
+                    throw new IllegalStateException("Constructor body can not be replaced.");
+                }
+            }
+
+            if (hook.aroundExitMethodName != null) {
+                if (hook.returnCondition != ReturnCondition.NEVER) {
+                    throw new IllegalStateException("Around hook can not use return condition " +
+                            hook.returnCondition + ".");
+                }
+                if (hook.injectorFactory != HookInjectorFactory.Around.INSTANCE) {
+                    throw new IllegalStateException("Around hook can not use another injector factory.");
+                }
+                if (hook.sampleRate > 1) {
+                    throw new IllegalStateException("Around hook can not be sampled: exit method needs the state " +
+                            "from every enter.");
+                }
+            }
+
+            if (hook.dispatch == HookDispatch.ASYNC || hook.dispatch == HookDispatch.TRACE) {
+                if (!hook.hasHookMethod()) {
+                    throw new IllegalStateException("Dispatch is " + hook.dispatch + ", but hook method is not " +
+                            "specified.");
+                }
+                if (hook.returnCondition != ReturnCondition.NEVER || hook.hookMethodReturnType != VOID_TYPE) {
+                    throw new IllegalStateException("Dispatch " + hook.dispatch + " can be used only with return " +
+                            "condition NEVER and void hook method.");
+                }
+                for (int i = 0; i < hook.hookMethodParameters.length; i++) {
+                    if (!isPrimitive(hook.hookMethodParameters[i]) &&
+                            hook.transmittableVariableIds[i] != 0) {
+                        throw new IllegalStateException("Dispatch " + hook.dispatch + " can pass only primitive " +
+                                "parameters to hook method.");
+                    }
+                }
+                if (hook.aroundExitMethodName != null) {
+                    throw new IllegalStateException("Around hook can not use dispatch " + hook.dispatch + ".");
+                }
+            }
+
+            if (hook.injectorFactory instanceof HookInjectorFactory.InvokeRedirect) {
+                if (!hook.hasHookMethod()) {
+                    throw new IllegalStateException("Redirect hook needs hook method.");
+                }
+                if (hook.returnCondition != ReturnCondition.NEVER || hook.dispatch != HookDispatch.STATIC ||
+                        hook.metric != HookMetric.NONE || hook.memoizeSize > 0 || hook.sampleRate > 1 ||
+                        hook.createMethod) {
+                    throw new IllegalStateException("Redirect hook can not use return condition, dispatch, " +
+                            "metric, memoize, sample rate or createMethod.");
+                }
+            }
+
+            if (hook.injectorFactory instanceof HookInjectorFactory.ConstantModification) {
+                if (!hook.hasHookMethod() && hook.constantReplacement == null) {
+                    throw new IllegalStateException("Constant hook needs hook method or replacement constant.");
+                }
+                if (hook.returnCondition != ReturnCondition.NEVER ||
+                        hook.dispatch != HookDispatch.STATIC && hook.dispatch != HookDispatch.INLINED ||
+                        hook.metric != HookMetric.NONE || hook.memoizeSize > 0 || hook.sampleRate > 1 ||
+                        hook.createMethod) {
+                    throw new IllegalStateException("Constant hook can not use return condition, dispatch other " +
+                            "than STATIC and INLINED, metric, memoize, sample rate or createMethod.");
+                }
+                if (hook.hookMethodParameters.length > 1 || hook.hookMethodParameters.length == 1 &&
+                        !hook.hookMethodParameters[0].equals(hook.hookMethodReturnType)) {
+                    throw new IllegalStateException("Constant hook method can take only the original constant.");
+                }
+            }
+
+            if (hook.injectorFactory instanceof HookInjectorFactory.FieldWrite) {
+                if (hook.returnCondition != ReturnCondition.NEVER || hook.dispatch != HookDispatch.STATIC ||
+                        hook.metric != HookMetric.NONE || hook.memoizeSize > 0 || hook.sampleRate > 1 ||
+                        hook.createMethod || hook.replaceBody) {
+                    throw new IllegalStateException("Field watch hook can not use return condition, dispatch, " +
+                            "metric, memoize, sample rate, createMethod or replaceBody.");
+                }
+                if (hook.hookMethodParameters.length != 2 || hook.hookMethodReturnType != VOID_TYPE ||
+                        hook.hookMethodParameters[0].getSort() != Type.OBJECT) {
+                    throw new IllegalStateException("Field watch hook method must be void and take the owner " +
+                            "object and the new value.");
+                }
+            }
+
+            // хук с шаблоном названия метода попадает в методы с разными параметрами, так что передать в него
+            // можно только this, а хуки со стеком и метрики по местам от параметров метода не зависят
+            boolean stackHook = hook.injectorFactory instanceof HookInjectorFactory.FieldWrite ||
+                    hook.injectorFactory instanceof HookInjectorFactory.InvokeRedirect ||
+                    hook.injectorFactory instanceof HookInjectorFactory.ConstantModification;
+            if (hook.isMethodPattern() && !stackHook && !hook.hasSiteMetric()) {
+                for (int variableId : hook.transmittableVariableIds) {
+                    if (variableId != 0) {
+                        throw new IllegalStateException("Hook with target method pattern can pass only this to " +
+                                "hook method.");
+                    }
+                }
+                if (hook.returnCondition != ReturnCondition.NEVER || hook.memoizeSize > 0 || hook.createMethod ||
+                        hook.replaceBody) {
+                    throw new IllegalStateException("Hook with target method pattern can not use return " +
+                            "condition, memoize, createMethod or replaceBody.");
+                }
+            }
+
+            if (hook.includeOverrides) {
+                if (hook.isClassPattern() || hook.memoizeSize > 0 || hook.createMethod) {
+                    throw new IllegalStateException("Hook with includeOverrides can not use target class pattern, " +
+                            "memoize or createMethod.");
+                }
+                if (hook.targetMethodName.equals("<init>") || hook.targetMethodName.equals("<clinit>")) {
+                    throw new IllegalStateException("Constructors and static initializers have no overrides.");
+                }
+            }
+
+            if (hook.isClassPattern()) {
+                if (hook.memoizeSize > 0 || hook.createMethod) {
+                    throw new IllegalStateException("Hook with target class pattern can not use memoize or " +
+                            "createMethod.");
+                }
+                if (hook.targetClassName.length() < 2 && hook.targetClassName.endsWith("+")) {
+                    throw new IllegalStateException("Target class pattern must name the base class before '+'.");
+                }
+            }
+
+            if (hook.dispatch == HookDispatch.INLINED) {
+                if (!hook.hasHookMethod()) {
+                    throw new IllegalStateException("Dispatch is INLINED, but hook method is not specified.");
+                }
+                hook.inlinedBody = new InlinedBodyHolder();
+            }
+
             return hook;
         }
 
@@ -0,0 +1,59 @@
+package gloomyfolken.hooklib.asm;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Источник байткода классов для ClassMetadataReader.
+ * Стандартная реализация ищет class-файлы через ClassLoader, но её можно подменить
+ * (например, на JarIndexClassDataSource), вызвав ClassMetadataReader#setClassDataSource().
+ */
+public interface ClassDataSource {
+
+    /**
+     * Возвращает байткод класса.
+     *
+     * @param internalName название класса через слэши, например net/minecraft/world/World
+     * @return байткод класса или null, если класс не найден
+     */
+    byte[] getClassData(String internalName) throws IOException;
+
+    /**
+     * Ищет class-файлы через ClassLoader: по умолчанию через тот, которым загружена HookLib.
+     */
+    class ResourceSource implements ClassDataSource {
+
+        private final ClassLoader classLoader;
+
+        public ResourceSource() {
+            this(ClassMetadataReader.class.getClassLoader());
+        }
+
+        /**
+         * @param classLoader загрузчик, через который ищутся class-файлы, null - системный
+         */
+        public ResourceSource(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        public ClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        @Override
+        public byte[] getClassData(String internalName) throws IOException {
+            String resource = internalName + ".class";
+            InputStream input = classLoader == null ? ClassLoader.getSystemResourceAsStream(resource) :
+                    classLoader.getResourceAsStream(resource);
+            if (input == null) return null;
+            try {
+                return IOUtils.toByteArray(input);
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+}
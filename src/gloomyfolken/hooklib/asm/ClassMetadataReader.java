@@ -1,12 +1,12 @@
 package gloomyfolken.hooklib.asm;
 
-import org.apache.commons.io.IOUtils;
 import org.objectweb.asm.*;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Позволяет при помощи велосипеда из костылей искать методы внутри незагруженных классов
@@ -17,18 +17,64 @@ import java.util.Collections;
 public class ClassMetadataReader {
     private static Method m;
 
+    protected ClassDataSource classDataSource = new ClassDataSource.ResourceSource();
+    // источник байткода на время одного вызова в текущем потоке, см. setThreadClassDataSource()
+    private final ThreadLocal<ClassDataSource> threadClassDataSource = new ThreadLocal<ClassDataSource>();
+
+    // индекс иерархии: класс -> суперкласс, оба через слэши, "" - суперкласса нет
+    private final ConcurrentHashMap<String, String> superClasses = new ConcurrentHashMap<String, String>();
+
     static {
         try {
             m = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
             m.setAccessible(true);
-        } catch (NoSuchMethodException e) {
+        } catch (Exception e) {
+            // в новых версиях джавы без --add-opens метод закрыт, тогда классы ищутся только через байткод
+            m = null;
             e.printStackTrace();
         }
     }
 
+    /**
+     * Подменяет источник байткода классов.
+     * По умолчанию классы ищутся через ClassLoader (см. ClassDataSource.ResourceSource).
+     *
+     * @see JarIndexClassDataSource
+     */
+    public void setClassDataSource(ClassDataSource classDataSource) {
+        this.classDataSource = classDataSource;
+    }
+
+    public ClassDataSource getClassDataSource() {
+        return classDataSource;
+    }
+
+    /**
+     * Подменяет источник байткода только в текущем потоке, например, на время трансформации класса, который
+     * загружается другим ClassLoader'ом (см. AgentClassTransformer). Иначе классы, которые видны только этому
+     * ClassLoader'у, не нашлись бы, и их суперклассом считался бы java/lang/Object.
+     *
+     * @param classDataSource источник байткода или null, чтобы снова использовать общий
+     */
+    public void setThreadClassDataSource(ClassDataSource classDataSource) {
+        if (classDataSource == null) {
+            threadClassDataSource.remove();
+        } else {
+            threadClassDataSource.set(classDataSource);
+        }
+    }
+
+    private ClassDataSource getCurrentClassDataSource() {
+        ClassDataSource source = threadClassDataSource.get();
+        return source == null ? classDataSource : source;
+    }
+
     public byte[] getClassData(String className) throws IOException {
-        String classResourceName = '/' + className.replace('.', '/') + ".class";
-        return IOUtils.toByteArray(ClassMetadataReader.class.getResourceAsStream(classResourceName));
+        byte[] data = getCurrentClassDataSource().getClassData(className.replace('.', '/'));
+        if (data == null) {
+            throw new IOException("Class not found: " + className);
+        }
+        return data;
     }
 
     public void acceptVisitor(byte[] classData, ClassVisitor visitor) {
@@ -102,7 +148,10 @@ public class ClassMetadataReader {
     private Class getLoadedClass(String type) {
         if (m != null) {
             try {
-                ClassLoader classLoader = ClassMetadataReader.class.getClassLoader();
+                ClassDataSource source = getCurrentClassDataSource();
+                ClassLoader classLoader = source instanceof ClassDataSource.ResourceSource ?
+                        ((ClassDataSource.ResourceSource) source).getClassLoader() :
+                        ClassMetadataReader.class.getClassLoader();
                 return (Class) m.invoke(classLoader, type.replace('/', '.'));
             } catch (Exception e) {
                 e.printStackTrace();
@@ -111,18 +160,39 @@ public class ClassMetadataReader {
         return null;
     }
 
+    /**
+     * Возвращает суперкласс через слэши или null для java/lang/Object.
+     * Результат запоминается, так что каждый класс читается не больше одного раза, и то только заголовок.
+     */
     public String getSuperClass(String type) {
+        String superClass = superClasses.get(type);
+        if (superClass != null) {
+            return superClass.isEmpty() ? null : superClass;
+        }
         try {
-            return getSuperClassASM(type);
+            superClass = getSuperClassASM(type);
         } catch (Exception e) {
+            // не запоминается: класс, которого пока нет, может появиться позже
             return getSuperClassReflect(type);
         }
+        putSuperClass(type, superClass);
+        return superClass;
+    }
+
+    /**
+     * Добавляет в индекс иерархии суперкласс класса, байткод которого уже есть (например, трансформируемого),
+     * чтобы потом не читать этот класс ещё раз.
+     *
+     * @param type       класс через слэши
+     * @param superClass суперкласс через слэши или null
+     */
+    public void putSuperClass(String type, String superClass) {
+        superClasses.put(type, superClass == null ? "" : superClass);
     }
 
     protected String getSuperClassASM(String type) throws IOException {
-        CheckSuperClassVisitor cv = new CheckSuperClassVisitor();
-        acceptVisitor(type, cv);
-        return cv.superClassName;
+        // для суперкласса хватает заголовка, весь класс разбирать не нужно
+        return new ClassReader(getClassData(type)).getSuperName();
     }
 
     protected String getSuperClassReflect(String type) {
@@ -134,21 +204,6 @@ public class ClassMetadataReader {
         return "java/lang/Object";
     }
 
-    private class CheckSuperClassVisitor extends ClassVisitor {
-
-        String superClassName;
-
-        public CheckSuperClassVisitor() {
-            super(Opcodes.ASM5);
-        }
-
-        @Override
-        public void visit(int version, int access, String name, String signature,
-                          String superName, String[] interfaces) {
-            this.superClassName = superName;
-        }
-    }
-
     protected class FindMethodClassVisitor extends ClassVisitor {
 
         public String targetName;
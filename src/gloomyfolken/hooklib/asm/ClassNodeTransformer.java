@@ -0,0 +1,20 @@
+package gloomyfolken.hooklib.asm;
+
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Трансформер, который умеет работать с уже распарсенным классом.
+ * Если трансформер, зарегистрированный через MinecraftClassTransformer#registerPostTransformer(),
+ * реализует этот интерфейс, то класс не будет заново парситься и сохраняться ради него:
+ * вся цепочка работает с одним и тем же ClassNode, а в байткод он превращается один раз в конце.
+ */
+public interface ClassNodeTransformer {
+
+    /**
+     * @param className название класса через точки
+     * @param classNode класс, который можно менять прямо на месте
+     * @return true, если класс был изменён. Если ни один трансформер в цепочке ничего не поменял,
+     * то возвращается исходный байткод и сохранение класса пропускается.
+     */
+    boolean transform(String className, ClassNode classNode);
+}
@@ -40,6 +40,10 @@ public @interface Hook {
      * По умолчанию используется название хук-метода.
      * Эта опция полезна, когда нужно вставить хук в конструктор или инициализацию класса.
      * Для конструктора targetMethod должен быть "<init>", для инициализации класса - "<clinit>"
+     * Можно указать "*", тогда хук вставляется во все методы целевого класса, или префикс со звёздочкой
+     * ("onUpdate*"), тогда хук вставляется во все методы с таким началом названия. У такого хука единственный
+     * параметр - this, если это не watchField, redirect, constant или метрика по местам внутри метода
+     * (ALLOCATIONS, LOCK_WAIT, LOOPS, STATIC_INIT).
      */
     String targetMethod() default "";
 
@@ -59,6 +63,69 @@ public @interface Hook {
      */
     String returnType() default "";
 
+    /**
+     * Задает целевой класс для хуков, у которых первый параметр хук-метода - не целевой класс
+     * (см. redirect, constant и watchField).
+     * Указывать нужно полное название класса: net.minecraft.world.World
+     * <p/>
+     * Вместо названия можно указать шаблон: "net.minecraft.entity.*" - все классы с таким началом названия,
+     * "net.minecraft.entity.Entity+" - сам класс и все его наследники. У обычного хука первый параметр хук-метода
+     * тогда задаёт тип, под которым приходит this: базовый класс шаблона, Object или общий интерфейс.
+     */
+    String targetClass() default "";
+
+    /**
+     * Задает описание целевого метода в формате JVM, например "(IIIZ)V", для хуков, у которых параметры
+     * хук-метода не совпадают с параметрами целевого метода (см. redirect, constant и watchField).
+     * Если не указано, то хук применяется к первому методу с подходящим названием.
+     */
+    String targetDesc() default "";
+
+    /**
+     * Если указано, то хук не вставляется в начало или конец целевого метода, а заменяет вызовы указанного
+     * метода внутри целевого: "net.minecraft.world.World#getBlock".
+     * Вместо вызова выполняется хук-метод, параметры которого - всё, что лежало на стеке для вызова:
+     * объект, у которого вызывается метод (если метод не static), и параметры метода. Возвращать хук-метод
+     * должен то же, что и заменяемый метод. Целевой класс в этом случае задаётся через targetClass.
+     * Заменяются только вызовы, в которых указан именно этот класс, а не его наследник.
+     * Нельзя использовать вместе с returnCondition, injectOnExit, injectOnLine, aroundExit, dispatch,
+     * metric, memoize, sampleRate и createMethod.
+     */
+    String redirect() default "";
+
+    /**
+     * Номер заменяемого вызова среди всех подходящих вызовов в целевом методе, начиная с нуля.
+     * По умолчанию заменяются все подходящие вызовы.
+     */
+    int redirectOrdinal() default -1;
+
+    /**
+     * Если указано, то хук заменяет константу с этим значением внутри целевого метода (ldc, bipush, sipush,
+     * iconst и т.п.): размеры очередей, лимиты, границы циклов. Тип константы - тип, который возвращает
+     * хук-метод: int, long, float, double или String. Хук-метод вызывается вместо загрузки константы,
+     * может не иметь параметров или принимать один параметр того же типа - исходное значение.
+     * Если при трансформации задано системное свойство hooklib.constant.название.класса.сХуками#названиеХукМетода,
+     * то вместо вызова хук-метода подставляется значение этого свойства.
+     * Целевой класс задаётся через targetClass. Ограничения те же, что и у redirect, но можно использовать
+     * dispatch = INLINED.
+     */
+    String constant() default "";
+
+    /**
+     * Номер заменяемой константы среди всех подходящих в целевом методе, начиная с нуля.
+     * По умолчанию заменяются все подходящие константы.
+     */
+    int constantOrdinal() default -1;
+
+    /**
+     * Если указано, то хук вызывается после каждой записи в это поле внутри целевого метода:
+     * "net.minecraft.entity.Entity#posX". Хук-метод должен возвращать void и принимать объект, в поле
+     * которого записано значение (null для static-поля), и новое значение того же типа, что и поле.
+     * Если targetMethod = "*", то хук вставляется во все методы целевого класса. Целевой класс задаётся
+     * через targetClass. Ограничения те же, что и у redirect, кроме того, нельзя использовать replaceBody.
+     */
+    String watchField() default "";
+
     /**
      * Позволяет не только вставлять хуки в существующие методы, но и добавлять новые. Это может понадобиться,
      * когда нужно переопределить метод суперкласса. Если супер-метод найден, то тело генерируемого метода
@@ -68,6 +135,22 @@ public @interface Hook {
     boolean createMethod() default false;
 
 
+    /**
+     * Если true, то исходное тело целевого метода отбрасывается, и от метода остаётся только вызов хук-метода
+     * и return. Так можно заменить реализацию метода целиком, не оставляя в классе мёртвый исходный код,
+     * который занимает metaspace и мешает JIT-компилятору оценивать размер метода.
+     * Можно использовать только с returnCondition = ALWAYS. Нельзя использовать для конструкторов и вместе с
+     * injectOnExit, injectOnLine, aroundExit, memoize, sampleRate, createMethod, @LocalVariable и @ReturnValue.
+     */
+    boolean replaceBody() default false;
+
+    /**
+     * Если true, то хук вставляется ещё и во все переопределения целевого метода в наследниках целевого класса,
+     * которые будут загружены. Наследники, которые метод не переопределяют, пропускаются без предупреждений.
+     * Нельзя использовать с шаблоном в targetClass, memoize, createMethod, для конструкторов и <clinit>.
+     */
+    boolean includeOverrides() default false;
+
     /**
      * Позволяет объявить хук "обязательным" для запуска игры. В случае неудачи во время вставки такого хука
      * будет не просто выведено сообщение в лог, а крашнется игра.
@@ -89,6 +172,51 @@ public @interface Hook {
      */
     @Deprecated int injectOnLine() default -1;
 
+    /**
+     * Задает способ вызова хук-метода. Например, HookDispatch.SWITCHABLE позволяет включать и выключать хук
+     * во время работы игры через gloomyfolken.hooklib.runtime.SwitchableHooks.
+     */
+    HookDispatch dispatch() default HookDispatch.STATIC;
+
+    /**
+     * Если указано, то вместо вызова хук-метода собирается встроенная метрика: счётчик вызовов или
+     * время выполнения целевого метода. Хук-метод не вызывается, по его названию строится ключ в
+     * gloomyfolken.hooklib.runtime.HookMetrics. Нельзя использовать вместе с returnCondition, dispatch
+     * и aroundExit, а TIMING и метрики по местам внутри метода (ALLOCATIONS, LOCK_WAIT, LOOPS, STATIC_INIT) - ещё и
+     * с injectOnExit и injectOnLine. Для метрик по местам можно указать targetMethod = "*", тогда метрика
+     * собирается во всех методах класса.
+     */
+    HookMetric metric() default HookMetric.NONE;
+
+    /**
+     * Если указать N больше нуля, то целевой метод оборачивается кэшем результатов на N значений,
+     * а хук-метод не вызывается. Подходит только для чистых методов, которые возвращают не void:
+     * ключ кэша - this (для нестатических методов, сравнивается по ссылке и не удерживается в памяти)
+     * и параметры, которые удерживаются и сравниваются через equals(), так что это должны быть значения
+     * вроде чисел и строк, а не миры и сущности. Статистика и сброс значений -
+     * через gloomyfolken.hooklib.runtime.MemoCache по ключу "название.класса.сХуками#названиеХукМетода".
+     * Нельзя использовать вместе с returnCondition, dispatch, metric, aroundExit и createMethod.
+     */
+    int memoize() default 0;
+
+    /**
+     * Если указать N больше единицы, то хук-метод будет вызываться только на каждом N-ном выполнении
+     * точки вставки. В остальных случаях целевой метод выполняет только инкремент счётчика и переход.
+     * Нельзя использовать вместе с aroundExit.
+     */
+    int sampleRate() default 1;
+
+    /**
+     * Если указано это название, то хук становится парным: хук-метод вызывается на входе в целевой метод,
+     * а метод с этим названием - на каждом выходе из него, в том числе через исключение.
+     * Метод выхода должен находиться в том же классе, иметь тот же список параметров, что и хук-метод,
+     * и ещё один последний параметр - то, что вернул хук-метод на входе (если он возвращает не void).
+     * Так можно, например, замерить время выполнения метода без ThreadLocal'ов:
+     * на входе вернуть System.nanoTime(), а на выходе вычесть его из текущего времени.
+     * Нельзя использовать вместе с returnCondition, injectOnExit и injectOnLine.
+     */
+    String aroundExit() default "";
+
     /**
      * Если указано это название, то при вызове return в целевом методе будет сначала вызван этот метод.
      * Он должен находиться в том же классе и иметь тот же список параметров, что и хук-метод.
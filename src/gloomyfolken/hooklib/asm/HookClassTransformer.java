@@ -2,44 +2,339 @@ package gloomyfolken.hooklib.asm;
 
 import gloomyfolken.hooklib.asm.HookLogger.SystemOutLogger;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * Регистрация хуков и трансформация классов могут идти одновременно из разных потоков (например, в агенте
+ * классы загружаются в любом потоке, а хуки добавляются из другого): все операции со списками хуков
+ * синхронизированы на трансформере, а каждая трансформация работает со своей копией хуков класса.
+ * Классы без хуков отсеиваются без блокировки по снимку списка хуков, который обновляется при регистрации.
+ */
 public class HookClassTransformer {
 
     public HookLogger logger = new SystemOutLogger();
     protected HashMap<String, List<AsmHook>> hooksMap = new HashMap<String, List<AsmHook>>();
     private HookContainerParser containerParser = new HookContainerParser(this);
     protected ClassMetadataReader classMetadataReader = new ClassMetadataReader();
+    public InliningBudget inliningBudget = new InliningBudget();
+    public final TransformMetrics metrics = new TransformMetrics();
+    /**
+     * Если true, то вставленные хуки не удаляются из списка хуков класса, и класс можно трансформировать
+     * ещё раз с теми же хуками - например, при Instrumentation.retransformClasses (см. gloomyfolken.hooklib.agent).
+     */
+    public boolean keepInjectedHooks;
+    /**
+     * Если true, то хуки не добавляют в класс поля и методы и не меняют модификаторы методов: так требует
+     * Instrumentation.retransformClasses. Счётчик sampleRate не вставляется (хук вызывается каждый раз),
+     * HookDispatch.OUTLINED, ASYNC и TRACE вставляются как STATIC, а хуки с memoize и createMethod и замер
+     * ожидания монитора synchronized-метода пропускаются с предупреждением.
+     * Ограничение действует и при первой загрузке класса, потому что ретрансформация начинает с исходного
+     * байткода и тоже не может удалить то, что было добавлено при загрузке.
+     */
+    public boolean preserveClassLayout;
+    // хуки с шаблоном целевого класса, в том числе созданные через profile()
+    private HookTargetMatcher targetMatcher = new HookTargetMatcher();
+    // снимок для проверки без блокировки: классы с хуками по точному названию и есть ли хуки с шаблоном
+    private volatile Set<String> hookedClasses = Collections.emptySet();
+    private volatile boolean hasPatternHooks;
+
+    public ClassMetadataReader getClassMetadataReader() {
+        return classMetadataReader;
+    }
 
-    public void registerHook(AsmHook hook) {
-        if (hooksMap.containsKey(hook.getTargetClassName())) {
-            hooksMap.get(hook.getTargetClassName()).add(hook);
+    /**
+     * @return false, если такой же хук уже зарегистрирован: тогда он пропускается, иначе вставился бы дважды
+     */
+    public synchronized boolean registerHook(AsmHook hook) {
+        if (hook.getInjectorFactory() instanceof HookInjectorFactory.FieldWrite) {
+            HookInjectorFactory.FieldWrite fieldWrite = (HookInjectorFactory.FieldWrite) hook.getInjectorFactory();
+            if (!canWatchField(fieldWrite.getOwner(), fieldWrite.getName())) {
+                String message = "Can not resolve name of field " + fieldWrite + " watched by hook " + hook;
+                if (hook.isMandatory()) {
+                    throw new RuntimeException(message + ", but this hook is mandatory");
+                }
+                logger.warning(message + ", it will match only writes to the field with exactly this name");
+            }
+        }
+        boolean added;
+        if (hook.isClassPattern()) {
+            added = targetMatcher.add(hook);
+        } else {
+            List<AsmHook> list = hooksMap.get(hook.getTargetClassName());
+            if (list == null) {
+                list = new ArrayList<AsmHook>(2);
+                hooksMap.put(hook.getTargetClassName(), list);
+            }
+            added = !list.contains(hook) && list.add(hook);
+            if (added && hook.getIncludeOverrides()) {
+                // в сам целевой класс хук вставляется как обычно, а в наследники - копиями из targetMatcher
+                targetMatcher.add(hook);
+            }
+        }
+        if (added) {
+            updateSnapshot();
         } else {
-            List<AsmHook> list = new ArrayList<AsmHook>(2);
-            list.add(hook);
-            hooksMap.put(hook.getTargetClassName(), list);
+            logger.warning("Skipping duplicate hook " + hook);
         }
+        return added;
     }
 
-    public void registerHookContainer(String className) {
-        containerParser.parseHooks(className);
+    /**
+     * Проверяет, что запись в поле можно будет найти по названию, указанному в хуке с watchField.
+     * Переопределяется там, где названия полей в байткоде отличаются от названий в хуках.
+     *
+     * @param owner класс, в котором объявлено поле, через слэши
+     */
+    protected boolean canWatchField(String owner, String name) {
+        return true;
     }
 
-    public void registerHookContainer(byte[] classData) {
-        containerParser.parseHooks(classData);
+    /**
+     * Переносит все хуки, в том числе с шаблоном целевого класса и с includeOverrides, в другой трансформер
+     * и регистрирует их там заново. В этом трансформере после этого хуков не остаётся.
+     */
+    public synchronized void transferHooksTo(HookClassTransformer transformer) {
+        // хук с includeOverrides лежит и в hooksMap, и в targetMatcher
+        Set<AsmHook> hooks = new LinkedHashSet<AsmHook>();
+        for (List<AsmHook> classHooks : hooksMap.values()) {
+            hooks.addAll(classHooks);
+        }
+        targetMatcher.collectHooks(hooks);
+        hooksMap.clear();
+        targetMatcher = new HookTargetMatcher();
+        updateSnapshot();
+        for (AsmHook hook : hooks) {
+            transformer.registerHook(hook);
+        }
     }
 
-    public byte[] transform(String className, byte[] bytecode) {
+    private void updateSnapshot() {
+        hookedClasses = new HashSet<String>(hooksMap.keySet());
+        hasPatternHooks = !targetMatcher.isEmpty();
+    }
+
+    /**
+     * Проверка без блокировки.
+     *
+     * @return false, если в класс точно нечего вставлять
+     */
+    private boolean mayHaveHooks(String className) {
+        return hasPatternHooks || hookedClasses.contains(className);
+    }
+
+    /**
+     * @return хуки, которые были зарегистрированы из этого класса
+     */
+    public synchronized List<AsmHook> registerHookContainer(String className) {
+        return containerParser.parseHooks(className);
+    }
+
+    /**
+     * @return хуки, которые были зарегистрированы из этого класса
+     */
+    public synchronized List<AsmHook> registerHookContainer(byte[] classData) {
+        return containerParser.parseHooks(classData);
+    }
+
+    /**
+     * Удаляет все хуки из класса с хуками, в том числе с шаблоном целевого класса. Классы, в которые хуки уже
+     * вставлены, от этого не меняются: их нужно трансформировать заново (см. getTargetClasses()).
+     *
+     * @param className класс с хуками через точки
+     * @return удалённые хуки
+     */
+    public synchronized List<AsmHook> unregisterHookContainer(String className) {
+        List<AsmHook> removed = new ArrayList<AsmHook>();
+        for (Iterator<List<AsmHook>> it = hooksMap.values().iterator(); it.hasNext(); ) {
+            List<AsmHook> hooks = it.next();
+            for (Iterator<AsmHook> hookIt = hooks.iterator(); hookIt.hasNext(); ) {
+                AsmHook hook = hookIt.next();
+                if (className.equals(hook.getHookClassName())) {
+                    hookIt.remove();
+                    removed.add(hook);
+                }
+            }
+            if (hooks.isEmpty()) it.remove();
+        }
+        for (AsmHook hook : targetMatcher.removeHookContainer(className)) {
+            // хук с includeOverrides лежит и в hooksMap, и в targetMatcher
+            if (!removed.contains(hook)) removed.add(hook);
+        }
+        updateSnapshot();
+        return removed;
+    }
+
+    /**
+     * Включает метрику по местам внутри метода во всех методах классов, название которых начинается
+     * с classPrefix (например, "net.minecraft.world." или полное название класса). Хук-методы не нужны:
+     * регистрируется хук с шаблоном целевого класса "classPrefix*" и targetMethod = "*".
+     * То же самое можно включить системными свойствами, см. profileFromProperties().
+     * Классы самой хуклибы не профилируются. Действует только на классы, которые ещё не были трансформированы.
+     *
+     * @throws IllegalArgumentException если метрика собирается не по местам внутри метода
+     */
+    public void profile(HookMetric metric, String classPrefix) {
+        if (!metric.perSite) {
+            throw new IllegalArgumentException("Metric " + metric + " can not be collected without hook method.");
+        }
+        registerHook(AsmHook.newBuilder().setTargetClass(classPrefix + "*")
+                .setTargetMethod(metric == HookMetric.STATIC_INIT ? "<clinit>" : "*")
+                .setMetric(metric).build());
+    }
+
+    /**
+     * Включает профилирование аллокаций: в каждое место создания объекта или массива вставляется свой
+     * счётчик HookMetrics с ключом "alloc:класс#метод:строка тип". Самые частые места -
+     * HookMetrics.top("alloc:", N).
+     *
+     * @see #profile(HookMetric, String)
+     */
+    public void profileAllocations(String classPrefix) {
+        profile(HookMetric.ALLOCATIONS, classPrefix);
+    }
+
+    /**
+     * @return true, если в класс нужно что-то вставить: хуки, в том числе с шаблоном целевого класса,
+     * или метрики профилирования
+     */
+    public boolean hasHooks(String className) {
+        return mayHaveHooks(className) && hasRegisteredHooks(className);
+    }
+
+    private synchronized boolean hasRegisteredHooks(String className) {
+        return hooksMap.containsKey(className) || targetMatcher.matches(className, classMetadataReader);
+    }
+
+    /**
+     * То же, что и hasHooks(String), но суперкласс для хуков на наследников берётся из заголовка байткода,
+     * а не читается отдельно.
+     */
+    public boolean hasHooks(String className, byte[] bytecode) {
+        if (!mayHaveHooks(className)) return false;
+        synchronized (this) {
+            if (bytecode != null && targetMatcher.needsHierarchy()) {
+                indexSuperClass(className, new ClassReader(bytecode).getSuperName());
+            }
+            return hasRegisteredHooks(className);
+        }
+    }
+
+    private void indexSuperClass(String className, String superName) {
+        classMetadataReader.putSuperClass(className.replace('.', '/'), superName);
+    }
+
+    private synchronized List<AsmHook> getHooks(String className, byte[] bytecode) {
+        if (targetMatcher.needsHierarchy()) {
+            indexSuperClass(className, new ClassReader(bytecode).getSuperName());
+        }
+        return getHooks(className);
+    }
+
+    private synchronized List<AsmHook> getHooks(String className, String superName) {
+        if (targetMatcher.needsHierarchy()) {
+            indexSuperClass(className, superName);
+        }
+        return getHooks(className);
+    }
+
+    /**
+     * Выбирает классы, в которые нужно вставить хотя бы один из хуков: по точному названию, по шаблону или
+     * как наследники для includeOverrides. Нужен, чтобы после регистрации новых хуков трансформировать заново
+     * только затронутые уже загруженные классы.
+     *
+     * @param classNames названия классов через точки
+     * @param hooks      хуки, например, из registerHookContainer()
+     */
+    public List<String> getTargetClasses(Collection<String> classNames, List<AsmHook> hooks) {
+        HashSet<String> exactTargets = new HashSet<String>();
+        HookTargetMatcher matcher = new HookTargetMatcher();
+        for (AsmHook hook : hooks) {
+            if (hook.getIncludeOverrides() || hook.isClassPattern()) {
+                matcher.add(hook);
+            }
+            if (!hook.isClassPattern()) {
+                exactTargets.add(hook.getTargetClassName());
+            }
+        }
+        List<String> result = new ArrayList<String>();
+        for (String className : classNames) {
+            if (exactTargets.contains(className) || matcher.matches(className, classMetadataReader)) {
+                result.add(className);
+            }
+        }
+        return result;
+    }
+
+    private synchronized List<AsmHook> getRegisteredHooks(String className) {
         List<AsmHook> hooks = hooksMap.get(className);
+        // список хуков меняется при трансформации, а зарегистрированный - ещё и из других потоков
+        return hooks == null ? null : new ArrayList<AsmHook>(hooks);
+    }
+
+    /**
+     * Собирает хуки для класса: сначала по точному названию, потом копии подходящих хуков с шаблоном.
+     * Копии не регистрируются, а те из них, которые не были вставлены, отбрасываются в checkNotInjectedHooks().
+     */
+    private synchronized List<AsmHook> getHooks(String className) {
+        List<AsmHook> hooks = getRegisteredHooks(className);
+        List<AsmHook> matched = targetMatcher.getHooks(className, classMetadataReader);
+        if (matched == null) return hooks;
+        if (hooks == null) return matched;
+        hooks.addAll(matched);
+        return hooks;
+    }
+
+    /**
+     * Включает профилирование по системным свойствам со списком префиксов через запятую (см. profile()):
+     * hooklib.profile.allocations для HookMetric.ALLOCATIONS, hooklib.profile.locks для HookMetric.LOCK_WAIT,
+     * hooklib.profile.loops для HookMetric.LOOPS и hooklib.profile.clinit для HookMetric.STATIC_INIT.
+     * Префикс "*" в свойстве означает все классы.
+     * Вызывать нужно только у трансформера, который вставляет хуки последним (MinecraftClassTransformer,
+     * HookAgent): если свойства прочитают несколько трансформеров в одной цепочке, то каждое место будет
+     * посчитано несколько раз.
+     */
+    public void profileFromProperties() {
+        parsePrefixes(HookMetric.ALLOCATIONS, System.getProperty("hooklib.profile.allocations"));
+        parsePrefixes(HookMetric.LOCK_WAIT, System.getProperty("hooklib.profile.locks"));
+        parsePrefixes(HookMetric.LOOPS, System.getProperty("hooklib.profile.loops"));
+        parsePrefixes(HookMetric.STATIC_INIT, System.getProperty("hooklib.profile.clinit"));
+    }
+
+    private void parsePrefixes(HookMetric metric, String property) {
+        if (property == null) return;
+        for (String prefix : property.split(",")) {
+            prefix = prefix.trim();
+            if (prefix.equals("*")) {
+                profile(metric, "");
+            } else if (!prefix.isEmpty()) {
+                profile(metric, prefix);
+            }
+        }
+    }
+
+    public byte[] transform(String className, byte[] bytecode) {
+        if (!mayHaveHooks(className)) return bytecode;
+        // несуществующий класс профилировать нечего
+        List<AsmHook> hooks = bytecode == null ? getRegisteredHooks(className) : getHooks(className, bytecode);
 
         if (hooks != null) {
             Collections.sort(hooks);
             logger.debug("Injecting hooks into class " + className);
+            long startTime = System.nanoTime();
+            String budgetViolation = null;
+            List<AsmHook> injectedHooks = Collections.emptyList();
             try {
                 /*
                  Начиная с седьмой версии джавы, сильно изменился процесс верификации байткода.
@@ -47,50 +342,178 @@ public class HookClassTransformer {
                  На более старых версиях байткода это лишняя трата времени.
                  Подробнее здесь: http://stackoverflow.com/questions/25109942
                 */
-                int majorVersion = ((bytecode[6] & 0xFF) << 8) | (bytecode[7] & 0xFF);
-                boolean java7 = majorVersion > 50;
-
+                boolean java7 = isJava7(bytecode);
 
                 ClassReader cr = new ClassReader(bytecode);
                 ClassWriter cw = createClassWriter(java7 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS);
                 HookInjectorClassVisitor hooksWriter = createInjectorClassVisitor(cw, hooks);
                 cr.accept(hooksWriter, java7 ? ClassReader.SKIP_FRAMES : ClassReader.EXPAND_FRAMES);
                 bytecode = cw.toByteArray();
-                for (AsmHook hook : hooksWriter.injectedHooks) {
-                    logger.debug("Patching method " + hook.getPatchedMethodName());
-                }
-                hooks.removeAll(hooksWriter.injectedHooks);
+                injectedHooks = hooksWriter.injectedHooks;
+                budgetViolation = onHooksInjected(className, hooks, hooksWriter, startTime);
             } catch (Exception e) {
-                logger.severe("A problem has occurred during transformation of class " + className + ".");
-                logger.severe("Attached hooks:");
-                for (AsmHook hook : hooks) {
-                    logger.severe(hook.toString());
-                }
-                logger.severe("Stack trace:", e);
+                onTransformationProblem(className, hooks, e);
             }
 
-            for (AsmHook notInjected : hooks) {
-                if (notInjected.isMandatory()) {
-                    throw new RuntimeException("Can not find target method of mandatory hook " + notInjected);
-                } else {
-                    logger.warning("Can not find target method of hook " + notInjected);
-                }
+            checkNotInjectedHooks(hooks);
+            releaseHooks(className, injectedHooks);
+            if (budgetViolation != null) {
+                throw new RuntimeException(budgetViolation);
             }
         }
         return bytecode;
     }
 
+    /**
+     * То же самое, что и transform(String, byte[]), но для уже распарсенного класса.
+     * Используется, когда класс обрабатывается ещё и другими трансформерами, которые работают с ClassNode:
+     * так класс парсится и сохраняется только один раз на всю цепочку.
+     *
+     * @param classNode класс, прочитанный через readClass()
+     * @return новый ClassNode со вставленными хуками или тот же самый classNode, если хуков для класса нет
+     */
+    public ClassNode transform(String className, ClassNode classNode) {
+        if (!mayHaveHooks(className)) return classNode;
+        List<AsmHook> hooks = getHooks(className, classNode.superName);
+
+        if (hooks != null) {
+            Collections.sort(hooks);
+            logger.debug("Injecting hooks into class " + className);
+            long startTime = System.nanoTime();
+            String budgetViolation = null;
+            List<AsmHook> injectedHooks = Collections.emptyList();
+            try {
+                ClassNode result = new ClassNode();
+                HookInjectorClassVisitor hooksWriter = createInjectorClassVisitor(result, hooks);
+                classNode.accept(hooksWriter);
+                classNode = result;
+                injectedHooks = hooksWriter.injectedHooks;
+                budgetViolation = onHooksInjected(className, hooks, hooksWriter, startTime);
+            } catch (Exception e) {
+                onTransformationProblem(className, hooks, e);
+            }
+
+            checkNotInjectedHooks(hooks);
+            releaseHooks(className, injectedHooks);
+            if (budgetViolation != null) {
+                throw new RuntimeException(budgetViolation);
+            }
+        }
+        return classNode;
+    }
+
+    /**
+     * Парсит класс в ClassNode так же, как это делает transform(String, byte[]):
+     * для классов седьмой версии и выше frame'ы не читаются, потому что они всё равно будут пересчитаны в writeClass().
+     */
+    public ClassNode readClass(byte[] bytecode) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(bytecode).accept(classNode, isJava7(bytecode) ? ClassReader.SKIP_FRAMES : ClassReader.EXPAND_FRAMES);
+        return classNode;
+    }
+
+    /**
+     * Сохраняет ClassNode в байткод через createClassWriter().
+     */
+    public byte[] writeClass(ClassNode classNode) {
+        boolean java7 = (classNode.version & 0xFFFF) > 50;
+        ClassWriter cw = createClassWriter(java7 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS);
+        classNode.accept(cw);
+        return cw.toByteArray();
+    }
+
+    private static boolean isJava7(byte[] bytecode) {
+        int majorVersion = ((bytecode[6] & 0xFF) << 8) | (bytecode[7] & 0xFF);
+        return majorVersion > 50;
+    }
+
+    /**
+     * @return сообщение об ошибке, если обязательный хук вывел метод за пределы InliningBudget и
+     * включён failOnMandatoryHooks, иначе null
+     */
+    private String onHooksInjected(String className, List<AsmHook> hooks, HookInjectorClassVisitor hooksWriter,
+                                   long startTime) {
+        for (AsmHook hook : hooksWriter.injectedHooks) {
+            logger.debug("Patching method " + hook.getPatchedMethodName());
+        }
+        hooks.removeAll(hooksWriter.injectedHooks);
+        metrics.onClassTransformed(hooksWriter.injectedHooks.size(), System.nanoTime() - startTime);
+
+        String budgetViolation = null;
+        for (HookInjectorClassVisitor.PatchedMethod method : hooksWriter.patchedMethods) {
+            int sizeBefore = method.sizeBefore.getMinSize();
+            int sizeAfter = method.sizeAfter.getMinSize();
+            String crossedLimit = inliningBudget.getCrossedLimit(sizeBefore, sizeAfter);
+            MethodSizeReport report = new MethodSizeReport(className, method.name, method.desc,
+                    sizeBefore, sizeAfter, crossedLimit);
+            metrics.onMethodPatched(report);
+            // статический инициализатор выполняется один раз, лимиты JIT для него ничего не значат
+            if (crossedLimit == null || method.name.equals("<clinit>")) continue;
+
+            logger.warning("Hooks made method " + className + '#' + method.name + method.desc + " grow from " +
+                    sizeBefore + " to " + sizeAfter + " bytes, so it crossed " + crossedLimit);
+            if (inliningBudget.failOnMandatoryHooks) {
+                for (AsmHook hook : method.hooks) {
+                    if (hook.isMandatory()) {
+                        budgetViolation = "Mandatory hook " + hook + " made method " + report;
+                    }
+                }
+            }
+        }
+        return budgetViolation;
+    }
+
+    private void onTransformationProblem(String className, List<AsmHook> hooks, Exception e) {
+        logger.severe("A problem has occurred during transformation of class " + className + ".");
+        logger.severe("Attached hooks:");
+        for (AsmHook hook : hooks) {
+            logger.severe(hook.toString());
+        }
+        logger.severe("Stack trace:", e);
+    }
+
+    private void checkNotInjectedHooks(List<AsmHook> hooks) {
+        for (Iterator<AsmHook> it = hooks.iterator(); it.hasNext(); ) {
+            AsmHook notInjected = it.next();
+            // хук с шаблоном целевого класса не обязан находить целевой метод в каждом подходящем классе
+            if (notInjected.isPatternCopy()) {
+                it.remove();
+                continue;
+            }
+            if (notInjected.isMandatory()) {
+                throw new RuntimeException("Can not find target method of mandatory hook " + notInjected);
+            } else {
+                logger.warning("Can not find target method of hook " + notInjected);
+            }
+        }
+    }
+
+    /**
+     * Убирает вставленные хуки из списка хуков класса, а сам список - если в нём ничего не осталось: класс
+     * второй раз не трансформируется, а пустой список держал бы место в hooksMap до конца работы.
+     * С keepInjectedHooks список хуков класса остаётся как был.
+     */
+    private synchronized void releaseHooks(String className, List<AsmHook> injectedHooks) {
+        List<AsmHook> hooks = hooksMap.get(className);
+        if (keepInjectedHooks || hooks == null) return;
+        hooks.removeAll(injectedHooks);
+        if (hooks.isEmpty()) {
+            hooksMap.remove(className);
+            updateSnapshot();
+        }
+    }
+
     /**
      * Создает ClassVisitor для списка хуков.
      * Метод можно переопределить, если в ClassVisitor'e нужна своя логика для проверки,
      * является ли метод целевым (isTargetMethod())
      *
-     * @param cw    ClassWriter, который должен стоять в цепочке после этого ClassVisitor'a
+     * @param cv    ClassVisitor (ClassWriter или ClassNode), который должен стоять в цепочке после этого ClassVisitor'a
      * @param hooks Список хуков, вставляемых в класс
      * @return ClassVisitor, добавляющий хуки
      */
-    protected HookInjectorClassVisitor createInjectorClassVisitor(ClassWriter cw, List<AsmHook> hooks) {
-        return new HookInjectorClassVisitor(this, cw, hooks);
+    protected HookInjectorClassVisitor createInjectorClassVisitor(ClassVisitor cv, List<AsmHook> hooks) {
+        return new HookInjectorClassVisitor(this, cv, hooks);
     }
 
     /**
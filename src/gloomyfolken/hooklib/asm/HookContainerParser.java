@@ -5,7 +5,10 @@ import gloomyfolken.hooklib.asm.Hook.ReturnValue;
 import org.objectweb.asm.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
 public class HookContainerParser {
@@ -29,6 +32,9 @@ public class HookContainerParser {
 
     private boolean inHookAnnotation;
 
+    // хуки, зарегистрированные во время последнего вызова parseHooks()
+    private List<AsmHook> registeredHooks = new ArrayList<AsmHook>();
+
     private static final String HOOK_DESC = Type.getDescriptor(Hook.class);
     private static final String LOCAL_DESC = Type.getDescriptor(LocalVariable.class);
     private static final String RETURN_DESC = Type.getDescriptor(ReturnValue.class);
@@ -37,17 +43,36 @@ public class HookContainerParser {
         this.transformer = transformer;
     }
 
-    protected void parseHooks(String className) {
+    /**
+     * @return хуки, которые были зарегистрированы из этого класса
+     */
+    protected List<AsmHook> parseHooks(String className) {
         transformer.logger.debug("Parsing hooks container " + className);
+        registeredHooks = new ArrayList<AsmHook>();
         try {
             transformer.classMetadataReader.acceptVisitor(className, new HookClassVisitor());
         } catch (IOException e) {
             transformer.logger.severe("Can not parse hooks container " + className, e);
         }
+        return registeredHooks;
     }
 
-    protected void parseHooks(byte[] classData) {
+    /**
+     * То же, что и parseHooks(String), но байткод класса с хуками уже прочитан (например, из нового .class-файла).
+     *
+     * @return хуки, которые были зарегистрированы из этого класса
+     */
+    protected List<AsmHook> parseHooks(byte[] classData) {
+        registeredHooks = new ArrayList<AsmHook>();
+        transformer.classMetadataReader.acceptVisitor(classData, new HookClassVisitor());
+        transformer.logger.debug("Parsed hooks container " + currentClassName);
+        return registeredHooks;
+    }
 
+    private void registerHook(AsmHook hook) {
+        if (transformer.registerHook(hook)) {
+            registeredHooks.add(hook);
+        }
     }
 
     private void invalidHook(String message) {
@@ -65,6 +90,19 @@ public class HookContainerParser {
             return;
         }
 
+        if (annotationValues.containsKey("redirect")) {
+            createRedirectHook(builder, methodType);
+            return;
+        }
+        if (annotationValues.containsKey("constant")) {
+            createConstantHook(builder, methodType);
+            return;
+        }
+        if (annotationValues.containsKey("watchField")) {
+            createFieldWatchHook(builder, methodType);
+            return;
+        }
+
         if (argumentTypes.length < 1) {
             invalidHook("Hook method has no parameters. First parameter of a " +
                     "hook method must belong the type of the target class.");
@@ -77,7 +115,12 @@ public class HookContainerParser {
             return;
         }
 
-        builder.setTargetClass(argumentTypes[0].getClassName());
+        // targetClass может задать шаблон, тогда первый параметр хук-метода - тип, под которым приходит this
+        if (annotationValues.containsKey("targetClass")) {
+            builder.setTargetClass((String) annotationValues.get("targetClass"));
+        } else {
+            builder.setTargetClass(argumentTypes[0].getClassName());
+        }
 
         if (annotationValues.containsKey("targetMethod")) {
             builder.setTargetMethod((String) annotationValues.get("targetMethod"));
@@ -87,7 +130,7 @@ public class HookContainerParser {
 
         builder.setHookClass(currentClassName);
         builder.setHookMethod(currentMethodName);
-        builder.addThisToHookMethodParameters();
+        builder.addHookMethodParameter(argumentTypes[0], 0);
 
         boolean injectOnExit = Boolean.TRUE.equals(annotationValues.get("injectOnExit"));
 
@@ -155,6 +198,106 @@ public class HookContainerParser {
             return;
         }
 
+        if (Boolean.TRUE.equals(annotationValues.get("replaceBody"))) {
+            if (returnCondition != ReturnCondition.ALWAYS) {
+                invalidHook("Replace body hook must use returnCondition ALWAYS.");
+                return;
+            }
+            if (injectOnExit || annotationValues.containsKey("injectOnLine") ||
+                    annotationValues.containsKey("aroundExit") || annotationValues.containsKey("memoize") ||
+                    annotationValues.containsKey("sampleRate") ||
+                    Boolean.TRUE.equals(annotationValues.get("createMethod"))) {
+                invalidHook("Replace body hook can not be used with injectOnExit, injectOnLine, aroundExit, " +
+                        "memoize, sampleRate or createMethod.");
+                return;
+            }
+            if ("<init>".equals(annotationValues.get("targetMethod"))) {
+                invalidHook("Constructor body can not be replaced.");
+                return;
+            }
+            // в новом теле метода есть только его параметры
+            if (!parameterAnnotations.isEmpty()) {
+                invalidHook("Replace body hook can not take local variables or return value.");
+                return;
+            }
+            builder.setReplaceBody(true);
+        }
+
+        if (annotationValues.containsKey("aroundExit")) {
+            if (returnCondition != ReturnCondition.NEVER || injectOnExit ||
+                    annotationValues.containsKey("injectOnLine")) {
+                invalidHook("Around hook can not be used with returnCondition, injectOnExit or injectOnLine.");
+                return;
+            }
+            builder.setAroundExitMethod((String) annotationValues.get("aroundExit"), methodType.getReturnType());
+        }
+
+        if (annotationValues.containsKey("metric")) {
+            HookMetric metric = HookMetric.valueOf((String) annotationValues.get("metric"));
+            if (metric != HookMetric.NONE && (returnCondition != ReturnCondition.NEVER ||
+                    annotationValues.containsKey("dispatch") || annotationValues.containsKey("aroundExit"))) {
+                invalidHook("Metric hook can not be used with returnCondition, dispatch or aroundExit.");
+                return;
+            }
+            if (metric == HookMetric.TIMING && (injectOnExit || annotationValues.containsKey("injectOnLine"))) {
+                invalidHook("Timing hook can not be used with injectOnExit or injectOnLine.");
+                return;
+            }
+            if (metric.perSite && (injectOnExit || annotationValues.containsKey("injectOnLine") ||
+                    annotationValues.containsKey("sampleRate") || annotationValues.containsKey("replaceBody") ||
+                    annotationValues.containsKey("createMethod"))) {
+                invalidHook("Metric " + metric + " can not be used with injectOnExit, injectOnLine, sampleRate, " +
+                        "replaceBody or createMethod.");
+                return;
+            }
+            builder.setMetric(metric);
+        }
+        String targetMethod = (String) annotationValues.get("targetMethod");
+        if (targetMethod != null && targetMethod.endsWith("*") && (!annotationValues.containsKey("metric") ||
+                !HookMetric.valueOf((String) annotationValues.get("metric")).perSite)) {
+            if (argumentTypes.length > 1 || returnCondition != ReturnCondition.NEVER ||
+                    annotationValues.containsKey("memoize") || annotationValues.containsKey("replaceBody") ||
+                    annotationValues.containsKey("createMethod")) {
+                invalidHook("Hook with target method pattern can take only this and can not be used with " +
+                        "returnCondition, memoize, replaceBody or createMethod.");
+                return;
+            }
+        }
+        String targetClass = (String) annotationValues.get("targetClass");
+        if (targetClass != null && (targetClass.endsWith("*") || targetClass.endsWith("+")) &&
+                (annotationValues.containsKey("memoize") || annotationValues.containsKey("createMethod"))) {
+            invalidHook("Hook with target class pattern can not be used with memoize or createMethod.");
+            return;
+        }
+
+        if (annotationValues.containsKey("memoize")) {
+            int memoize = (Integer) annotationValues.get("memoize");
+            if (memoize > 0) {
+                if (returnCondition != ReturnCondition.NEVER || annotationValues.containsKey("dispatch") ||
+                        annotationValues.containsKey("metric") || annotationValues.containsKey("aroundExit") ||
+                        Boolean.TRUE.equals(annotationValues.get("createMethod"))) {
+                    invalidHook("Memoize hook can not be used with returnCondition, dispatch, metric, aroundExit " +
+                            "or createMethod.");
+                    return;
+                }
+                builder.setMemoize(memoize);
+            }
+        }
+
+        if (annotationValues.containsKey("sampleRate")) {
+            int sampleRate = (Integer) annotationValues.get("sampleRate");
+            if (sampleRate < 1) {
+                invalidHook("Sample rate must be positive.");
+                return;
+            }
+            if (sampleRate > 1 && (annotationValues.containsKey("aroundExit") ||
+                    "TIMING".equals(annotationValues.get("metric")))) {
+                invalidHook("Around and timing hooks can not be sampled.");
+                return;
+            }
+            builder.setSampleRate(sampleRate);
+        }
+
         if (annotationValues.containsKey("priority")) {
             builder.setPriority(HookPriority.valueOf((String) annotationValues.get("priority")));
         }
@@ -165,8 +308,225 @@ public class HookContainerParser {
         if (annotationValues.containsKey("isMandatory")) {
             builder.setMandatory(Boolean.TRUE.equals(annotationValues.get("isMandatory")));
         }
+        if (!setIncludeOverrides(builder)) return;
+
+        if (annotationValues.containsKey("dispatch")) {
+            HookDispatch dispatch = HookDispatch.valueOf((String) annotationValues.get("dispatch"));
+            if (dispatch == HookDispatch.SWITCHABLE &&
+                    (returnCondition == ReturnCondition.ALWAYS || returnCondition == ReturnCondition.ON_NULL)) {
+                invalidHook("Dispatch SWITCHABLE can not be used with returnCondition ALWAYS or ON_NULL.");
+                return;
+            }
+            if (dispatch == HookDispatch.ASYNC || dispatch == HookDispatch.TRACE) {
+                if (returnCondition != ReturnCondition.NEVER || methodType.getReturnType() != Type.VOID_TYPE) {
+                    invalidHook("Dispatch " + dispatch + " can be used only with returnCondition NEVER and void " +
+                            "hook method.");
+                    return;
+                }
+                for (int i = 1; i < argumentTypes.length; i++) {
+                    if (argumentTypes[i].getSort() == Type.OBJECT || argumentTypes[i].getSort() == Type.ARRAY) {
+                        invalidHook("Dispatch " + dispatch + " can pass only primitive parameters to hook method, " +
+                                "except the first one.");
+                        return;
+                    }
+                }
+                if (annotationValues.containsKey("aroundExit")) {
+                    invalidHook("Around hook can not use dispatch " + dispatch + ".");
+                    return;
+                }
+            }
+            builder.setDispatch(dispatch);
+        }
+
+        registerHook(builder.build());
+    }
+
+    /**
+     * Хук, заменяющий вызов: параметры хук-метода описывают не целевой метод, а стек заменяемого вызова,
+     * поэтому целевой класс и описание целевого метода берутся из targetClass и targetDesc.
+     */
+    private void createRedirectHook(AsmHook.Builder builder, Type methodType) {
+        if (!checkStackHook("Redirect", "dispatch", "constant", "watchField")) return;
+        String redirect = (String) annotationValues.get("redirect");
+        int separator = redirect.indexOf('#');
+        if (separator <= 0 || separator == redirect.length() - 1) {
+            invalidHook("Redirected method must be specified as package.Class#method, got " + redirect);
+            return;
+        }
 
-        transformer.registerHook(builder.build());
+        if (!setStackHookTarget(builder, methodType)) return;
+        int ordinal = annotationValues.containsKey("redirectOrdinal") ?
+                (Integer) annotationValues.get("redirectOrdinal") : -1;
+        builder.setRedirect(redirect.substring(0, separator), redirect.substring(separator + 1),
+                methodType.getReturnType(), ordinal);
+        registerStackHook(builder);
+    }
+
+    /**
+     * Хук, заменяющий константу: хук-метод возвращает новое значение и может принимать исходное.
+     */
+    private void createConstantHook(AsmHook.Builder builder, Type methodType) {
+        if (!checkStackHook("Constant", "redirect", "watchField")) return;
+        Type constantType = methodType.getReturnType();
+        if (constantType != Type.INT_TYPE && constantType != Type.LONG_TYPE && constantType != Type.FLOAT_TYPE &&
+                constantType != Type.DOUBLE_TYPE && !constantType.equals(Type.getType(String.class))) {
+            invalidHook("Constant hook method must return int, long, float, double or String.");
+            return;
+        }
+        Type[] argumentTypes = methodType.getArgumentTypes();
+        if (argumentTypes.length > 1 || argumentTypes.length == 1 && !argumentTypes[0].equals(constantType)) {
+            invalidHook("Constant hook method can take only the original constant of the same type.");
+            return;
+        }
+        String value = (String) annotationValues.get("constant");
+        Object constant;
+        try {
+            constant = AsmHook.parseConstant(value, constantType);
+        } catch (NumberFormatException e) {
+            invalidHook("Can not parse constant " + value + " as " + constantType.getClassName() + ".");
+            return;
+        }
+        if (!setStackHookTarget(builder, methodType)) return;
+        int ordinal = annotationValues.containsKey("constantOrdinal") ?
+                (Integer) annotationValues.get("constantOrdinal") : -1;
+        builder.setConstantModification(constant, ordinal);
+
+        if (annotationValues.containsKey("dispatch")) {
+            HookDispatch dispatch = HookDispatch.valueOf((String) annotationValues.get("dispatch"));
+            if (dispatch != HookDispatch.STATIC && dispatch != HookDispatch.INLINED) {
+                invalidHook("Constant hook can use only STATIC and INLINED dispatch.");
+                return;
+            }
+            builder.setDispatch(dispatch);
+        }
+        registerStackHook(builder);
+    }
+
+    /**
+     * Хук, следящий за записью в поле: хук-метод принимает объект и новое значение поля.
+     */
+    private void createFieldWatchHook(AsmHook.Builder builder, Type methodType) {
+        if (!checkStackHook("Field watch", "dispatch", "replaceBody")) return;
+        String field = (String) annotationValues.get("watchField");
+        int separator = field.indexOf('#');
+        if (separator <= 0 || separator == field.length() - 1) {
+            invalidHook("Watched field must be specified as package.Class#field, got " + field);
+            return;
+        }
+        Type[] argumentTypes = methodType.getArgumentTypes();
+        if (argumentTypes.length != 2 || argumentTypes[0].getSort() != Type.OBJECT ||
+                methodType.getReturnType() != Type.VOID_TYPE) {
+            invalidHook("Field watch hook method must be void and take the owner object and the new value.");
+            return;
+        }
+
+        if (!setStackHookTarget(builder, methodType)) return;
+        builder.setFieldWatch(field.substring(0, separator), field.substring(separator + 1));
+        registerStackHook(builder);
+    }
+
+    /**
+     * Проверяет общие ограничения хуков, которые работают со стеком внутри целевого метода
+     * (redirect, constant и watchField).
+     *
+     * @param incompatible дополнительные несовместимые элементы аннотации
+     * @return false, если хук невалиден
+     */
+    private boolean checkStackHook(String kind, String... incompatible) {
+        List<String> keys = new ArrayList<String>(Arrays.asList("returnCondition", "injectOnExit", "injectOnLine",
+                "aroundExit", "metric", "memoize", "sampleRate", "createMethod"));
+        keys.addAll(Arrays.asList(incompatible));
+        for (String key : keys) {
+            if (annotationValues.containsKey(key)) {
+                invalidHook(kind + " hook can not be used with " + key + ".");
+                return false;
+            }
+        }
+        if (!parameterAnnotations.isEmpty()) {
+            invalidHook(kind + " hook method gets its parameters from the stack, they can not be annotated.");
+            return false;
+        }
+        if (!annotationValues.containsKey("targetClass")) {
+            invalidHook(kind + " hook must specify targetClass.");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean setStackHookTarget(AsmHook.Builder builder, Type methodType) {
+        builder.setTargetClass((String) annotationValues.get("targetClass"));
+        if (annotationValues.containsKey("targetMethod")) {
+            builder.setTargetMethod((String) annotationValues.get("targetMethod"));
+        } else {
+            builder.setTargetMethod(currentMethodName);
+        }
+        if (!setTargetDescription(builder)) return false;
+
+        builder.setHookClass(currentClassName);
+        builder.setHookMethod(currentMethodName);
+        Type[] argumentTypes = methodType.getArgumentTypes();
+        for (int i = 0; i < argumentTypes.length; i++) {
+            builder.addHookMethodParameter(argumentTypes[i], i);
+        }
+        return true;
+    }
+
+    private void registerStackHook(AsmHook.Builder builder) {
+        if (annotationValues.containsKey("priority")) {
+            builder.setPriority(HookPriority.valueOf((String) annotationValues.get("priority")));
+        }
+        if (annotationValues.containsKey("isMandatory")) {
+            builder.setMandatory(Boolean.TRUE.equals(annotationValues.get("isMandatory")));
+        }
+        if (!setIncludeOverrides(builder)) return;
+        registerHook(builder.build());
+    }
+
+    /**
+     * @return false, если includeOverrides несовместим с остальными элементами аннотации
+     */
+    private boolean setIncludeOverrides(AsmHook.Builder builder) {
+        if (!Boolean.TRUE.equals(annotationValues.get("includeOverrides"))) return true;
+        String targetClass = (String) annotationValues.get("targetClass");
+        if (targetClass != null && (targetClass.endsWith("*") || targetClass.endsWith("+")) ||
+                annotationValues.containsKey("memoize") || Boolean.TRUE.equals(annotationValues.get("createMethod"))) {
+            invalidHook("Hook with includeOverrides can not be used with target class pattern, memoize or " +
+                    "createMethod.");
+            return false;
+        }
+        String targetMethod = (String) annotationValues.get("targetMethod");
+        if ("<init>".equals(targetMethod) || "<clinit>".equals(targetMethod)) {
+            invalidHook("Constructors and static initializers have no overrides.");
+            return false;
+        }
+        builder.setIncludeOverrides(true);
+        return true;
+    }
+
+    /**
+     * Задает описание целевого метода из targetDesc, а если его нет - ищет целевой метод только по названию.
+     *
+     * @return false, если описание невалидно
+     */
+    private boolean setTargetDescription(AsmHook.Builder builder) {
+        if (!annotationValues.containsKey("targetDesc")) {
+            builder.setAnyTargetMethodDescription();
+            return true;
+        }
+        String targetDesc = (String) annotationValues.get("targetDesc");
+        Type[] parameterTypes;
+        Type returnType;
+        try {
+            if (!targetDesc.startsWith("(")) throw new IllegalArgumentException();
+            parameterTypes = Type.getArgumentTypes(targetDesc);
+            returnType = Type.getReturnType(targetDesc);
+        } catch (RuntimeException e) {
+            invalidHook("Target method description is not valid: " + targetDesc);
+            return false;
+        }
+        builder.addTargetMethodParameters(parameterTypes);
+        builder.setTargetMethodReturnType(returnType);
+        return true;
     }
 
     private Object getPrimitiveConstant() {
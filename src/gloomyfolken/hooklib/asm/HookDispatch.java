@@ -0,0 +1,61 @@
+package gloomyfolken.hooklib.asm;
+
+/**
+ * Определяет, каким образом из целевого метода вызывается хук-метод.
+ */
+public enum HookDispatch {
+
+    /**
+     * Обычный вызов через INVOKESTATIC.
+     */
+    STATIC,
+
+    /**
+     * Вызов через invokedynamic. Такой хук можно включать, выключать и подменять прямо во время работы игры
+     * через gloomyfolken.hooklib.runtime.SwitchableHooks. Выключенный хук JIT-компилятор выкидывает целиком.
+     * Можно использовать только с ReturnCondition NEVER, ON_TRUE и ON_NOT_NULL: выключенный хук возвращает
+     * false/0/null, и return в целевом методе не вызывается.
+     * Для классов старее седьмой версии джавы хук вставляется как STATIC.
+     */
+    SWITCHABLE,
+
+    /**
+     * Передача параметров и вызов хук-метода выносятся в отдельный синтетический статический метод-переходник
+     * в целевом классе. В самом целевом методе остаются только загрузка нужных значений, один вызов и
+     * минимальный переход для return. Так маленькие горячие методы меньше разрастаются и продолжают
+     * укладываться в лимиты инлайнинга JIT-компилятора (MaxInlineSize/FreqInlineSize).
+     * Если целевой класс - интерфейс, или если в хук-метод передаётся значение из return вместе с
+     * returnAnotherMethod, то хук вставляется как STATIC.
+     */
+    OUTLINED,
+
+    /**
+     * Байткод хук-метода копируется прямо в целевой метод, вызова и зависимости от класса с хуками не остаётся.
+     * Подходит для крошечных хуков вроде проверки флага или подмены константы.
+     * Хук-метод не должен обращаться к непубличным классам, полям и методам (в том числе своего класса),
+     * содержать try/catch и лямбды, иначе хук вставляется как STATIC с предупреждением в логе.
+     * Условие return и возвращаемое значение работают как обычно.
+     * Изменения в классе с хуками после вставки на целевой метод уже не влияют.
+     */
+    INLINED,
+
+    /**
+     * Хук-метод вызывается не в потоке целевого метода, а позже, в фоновом потоке
+     * gloomyfolken.hooklib.runtime.AsyncHooks. Целевой метод только кладёт примитивные параметры хук-метода
+     * в заранее выделенный кольцевой буфер своего потока - несколько записей в массив без аллокаций.
+     * Подходит для хуков, которые только записывают события (обновления блоков, отправку пакетов и т.п.).
+     * Можно использовать только с ReturnCondition NEVER и хук-методом, который возвращает void.
+     * Все параметры, кроме первого, должны быть примитивами, а вместо первого хук-метод получает null.
+     * Если буфер переполнен, вызов теряется. Для интерфейсов хук вставляется как STATIC.
+     */
+    ASYNC,
+
+    /**
+     * Хук-метод не вызывается вообще: каждое выполнение точки вставки записывается в бинарную трассу
+     * gloomyfolken.hooklib.runtime.HookTrace - номер хука, поток, время и примитивные параметры хук-метода.
+     * Трасса пишется в memory-mapped файлы, её можно прочитать потом через
+     * gloomyfolken.hooklib.helper.TraceDecoder. Ограничения те же, что у ASYNC.
+     */
+    TRACE
+
+}
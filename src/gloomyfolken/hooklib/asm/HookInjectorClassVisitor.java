@@ -1,12 +1,18 @@
 package gloomyfolken.hooklib.asm;
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class HookInjectorClassVisitor extends ClassVisitor {
 
@@ -15,9 +21,24 @@ public class HookInjectorClassVisitor extends ClassVisitor {
     boolean visitingHook;
     HookClassTransformer transformer;
 
+    String className;
     String superName;
+    int classVersion;
+    int classAccess;
 
-    public HookInjectorClassVisitor(HookClassTransformer transformer, ClassWriter cv, List<AsmHook> hooks) {
+    List<PatchedMethod> patchedMethods = new ArrayList<PatchedMethod>(1);
+
+    // хуки, для которых в класс нужно добавить методы-переходники. Хук с шаблоном метода или без описания
+    // целевого метода может попасть и в static, и в обычные методы, а там переходники разные
+    private Map<AsmHook, List<BridgeMethod>> bridgeMethods = new LinkedHashMap<AsmHook, List<BridgeMethod>>(0);
+    private int bridgeMethodCount;
+    // методы, обёрнутые хуками с memoize
+    private List<MemoizedMethod> memoizedMethods = new ArrayList<MemoizedMethod>(0);
+
+    // синтетические статические int-поля хуков: счётчики для sampleRate, номера для HookDispatch.ASYNC
+    private Map<String, Map<AsmHook, String>> staticIntFields = new LinkedHashMap<String, Map<AsmHook, String>>(0);
+
+    public HookInjectorClassVisitor(HookClassTransformer transformer, ClassVisitor cv, List<AsmHook> hooks) {
         super(Opcodes.ASM5, cv);
         this.hooks = hooks;
         this.transformer = transformer;
@@ -25,21 +46,91 @@ public class HookInjectorClassVisitor extends ClassVisitor {
 
     @Override public void visit(int version, int access, String name,
                                 String signature, String superName, String[] interfaces) {
+        this.className = name;
         this.superName = superName;
+        this.classVersion = version;
+        this.classAccess = access;
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc,
                                      String signature, String[] exceptions) {
-        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        MemoizedMethod memoizedMethod = null;
+        for (AsmHook hook : hooks) {
+            if (hook.getMemoizeSize() > 0 && isTargetMethod(hook, name, desc) && !injectedHooks.contains(hook)) {
+                String problem = transformer.preserveClassLayout ?
+                        "Cache field and renamed method can not be added without changing class layout." :
+                        MemoizedMethod.getProblem(classAccess, access, name, desc);
+                if (problem != null) {
+                    transformer.logger.warning("Can not memoize method " + className + "#" + name + desc + ": " +
+                            problem);
+                    continue;
+                }
+                memoizedMethod = new MemoizedMethod(hook, access, name, desc, signature, exceptions);
+                memoizedMethods.add(memoizedMethod);
+                injectedHooks.add(hook);
+                break;
+            }
+        }
+
+        // монитор synchronized-метода захватывает код, вставленный хуком с HookMetric.LOCK_WAIT
+        int removedAccess = 0;
+        if (HookInjectorMethodVisitor.LockWait.isTimedSynchronizedMethod(access, this)) {
+            for (AsmHook hook : hooks) {
+                if (hook.getMetric() == HookMetric.LOCK_WAIT && isTargetMethod(hook, name, desc) &&
+                        (!injectedHooks.contains(hook) || hook.isMethodPattern())) {
+                    removedAccess = Opcodes.ACC_SYNCHRONIZED;
+                    break;
+                }
+            }
+        }
+
+        // исходный метод записывается под другим названием, а обёртка с исходным названием создаётся в visitEnd()
+        MethodVisitor mv = memoizedMethod == null ?
+                super.visitMethod(access & ~removedAccess, name, desc, signature, exceptions) :
+                super.visitMethod(memoizedMethod.getRenamedAccess() & ~removedAccess, memoizedMethod.renamedName,
+                        desc, signature, exceptions);
+        AsmHook replacingHook = null;
+        for (AsmHook hook : hooks) {
+            if (hook.getReplaceBody() && isTargetMethod(hook, name, desc) && !injectedHooks.contains(hook)) {
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                    transformer.logger.warning("Can not replace body of abstract or native method " + className +
+                            "#" + name + desc + ": " + hook);
+                    injectedHooks.add(hook);
+                    continue;
+                }
+                replacingHook = hook;
+                break;
+            }
+        }
+
+        PatchedMethod patchedMethod = null;
         for (AsmHook hook : hooks) {
-            if (isTargetMethod(hook, name, desc) && !injectedHooks.contains(hook)) {
+            // хук с шаблоном названия метода вставляется во все подходящие методы, а не только в первый
+            if (isTargetMethod(hook, name, desc) && (!injectedHooks.contains(hook) || hook.isMethodPattern()) &&
+                    hook.getMemoizeSize() == 0) {
+                if (patchedMethod == null) {
+                    // замеряет размер метода после вставки хуков
+                    patchedMethod = new PatchedMethod(name, desc, new CodeSizeEvaluator(mv));
+                    mv = patchedMethod.sizeAfter;
+                }
                 // добавляет MethodVisitor в цепочку
                 mv = hook.getInjectorFactory().createHookInjector(mv, access, name, desc, hook, this);
-                injectedHooks.add(hook);
+                if (!injectedHooks.contains(hook)) injectedHooks.add(hook);
+                patchedMethod.hooks.add(hook);
             }
         }
+        if (replacingHook != null) {
+            // исходный код отбрасывается, а новое тело записывается, когда класс дочитан до конца метода
+            mv = new BodyReplacer((HookInjectorMethodVisitor) mv, replacingHook);
+        }
+        if (patchedMethod != null) {
+            // замеряет размер исходного метода
+            patchedMethod.sizeBefore = new CodeSizeEvaluator(mv);
+            mv = patchedMethod.sizeBefore;
+            patchedMethods.add(patchedMethod);
+        }
         return mv;
     }
 
@@ -47,13 +138,192 @@ public class HookInjectorClassVisitor extends ClassVisitor {
     public void visitEnd() {
         for (AsmHook hook : hooks) {
             if (hook.getCreateMethod() && !injectedHooks.contains(hook)) {
+                if (transformer.preserveClassLayout) {
+                    transformer.logger.warning("Can not create method in class " + className.replace('/', '.') +
+                            " without changing its layout: " + hook);
+                    continue;
+                }
                 hook.createMethod(this);
             }
         }
+        for (Map.Entry<AsmHook, List<BridgeMethod>> entry : bridgeMethods.entrySet()) {
+            for (BridgeMethod bridge : entry.getValue()) {
+                entry.getKey().createBridgeMethod(this, bridge.name, bridge.desc, bridge.isStatic);
+            }
+        }
+        for (MemoizedMethod method : memoizedMethods) {
+            String fieldName = "hooklib$memo$" + method.name + "$" + memoizedMethods.indexOf(method);
+            cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, fieldName,
+                    "Lgloomyfolken/hooklib/runtime/MemoCache;", null, null).visitEnd();
+            method.generateWrapper(this, fieldName, method.hook.getMemoCacheId(), method.hook.getMemoizeSize());
+        }
+        for (Map<AsmHook, String> fields : staticIntFields.values()) {
+            for (String fieldName : fields.values()) {
+                cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, fieldName, "I",
+                        null, null).visitEnd();
+            }
+        }
         super.visitEnd();
     }
 
+    /**
+     * Возвращает название синтетического метода-переходника для хука, который будет добавлен в класс в visitEnd().
+     * Для каждого описания переходника создаётся свой метод.
+     */
+    String getBridgeMethodName(AsmHook hook, String desc, boolean isStatic) {
+        List<BridgeMethod> bridges = bridgeMethods.get(hook);
+        if (bridges == null) {
+            bridges = new ArrayList<BridgeMethod>(1);
+            bridgeMethods.put(hook, bridges);
+        }
+        for (BridgeMethod bridge : bridges) {
+            if (bridge.isStatic == isStatic && bridge.desc.equals(desc)) {
+                return bridge.name;
+            }
+        }
+        BridgeMethod bridge = new BridgeMethod("hooklib$" + hook.getHookMethodName() + "$" + bridgeMethodCount++,
+                desc, isStatic);
+        bridges.add(bridge);
+        return bridge.name;
+    }
+
+    /**
+     * Возвращает название синтетического private static int поля хука, которое будет добавлено в класс
+     * в visitEnd(). Для каждого хука и каждого вида поля создаётся одно поле.
+     *
+     * @param kind вид поля, входит в название: hooklib$kind$N
+     */
+    String getStaticIntField(String kind, AsmHook hook) {
+        Map<AsmHook, String> fields = staticIntFields.get(kind);
+        if (fields == null) {
+            fields = new LinkedHashMap<AsmHook, String>(1);
+            staticIntFields.put(kind, fields);
+        }
+        String name = fields.get(hook);
+        if (name == null) {
+            name = "hooklib$" + kind + "$" + fields.size();
+            fields.put(hook, name);
+        }
+        return name;
+    }
+
+    /**
+     * Добавляет в класс метод в обход хуков.
+     */
+    MethodVisitor visitSyntheticMethod(int access, String name, String desc) {
+        return visitGeneratedMethod(access | Opcodes.ACC_SYNTHETIC, name, desc, null, null);
+    }
+
+    /**
+     * Добавляет в класс метод в обход хуков, с заданными модификаторами, сигнатурой и исключениями.
+     */
+    MethodVisitor visitGeneratedMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        return cv.visitMethod(access, name, desc, signature, exceptions);
+    }
+
     protected boolean isTargetMethod(AsmHook hook, String name, String desc) {
         return hook.isTargetMethod(name, desc);
     }
+
+    /**
+     * Переводит название метода из байткода в то название, которым метод указывается в хуках.
+     * Используется для вызовов внутри целевого метода (например, при замене вызова), потому что
+     * у них, в отличие от самого целевого метода, нет отдельной проверки через isTargetMethod().
+     */
+    protected String mapMethodName(String name) {
+        return name;
+    }
+
+    /**
+     * То же, что и mapMethodName(), но для полей.
+     */
+    protected String mapFieldName(String name) {
+        return name;
+    }
+
+    static class PatchedMethod {
+        final String name;
+        final String desc;
+        final List<AsmHook> hooks = new ArrayList<AsmHook>(1);
+        final CodeSizeEvaluator sizeAfter;
+        CodeSizeEvaluator sizeBefore;
+
+        PatchedMethod(String name, String desc, CodeSizeEvaluator sizeAfter) {
+            this.name = name;
+            this.desc = desc;
+            this.sizeAfter = sizeAfter;
+        }
+    }
+
+    /**
+     * Пропускает в цепочку аннотации и атрибуты метода, но не его код.
+     * В конце метода вместо исходного кода записывает тело из хука с replaceBody.
+     */
+    private static class BodyReplacer extends MethodVisitor {
+        private final HookInjectorMethodVisitor inj;
+        private final AsmHook hook;
+
+        BodyReplacer(HookInjectorMethodVisitor inj, AsmHook hook) {
+            super(Opcodes.ASM5, inj);
+            this.inj = inj;
+            this.hook = hook;
+        }
+
+        @Override public void visitCode() {}
+        @Override public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {}
+        @Override public void visitInsn(int opcode) {}
+        @Override public void visitIntInsn(int opcode, int operand) {}
+        @Override public void visitVarInsn(int opcode, int var) {}
+        @Override public void visitTypeInsn(int opcode, String type) {}
+        @Override public void visitFieldInsn(int opcode, String owner, String name, String desc) {}
+        @Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {}
+        @Override public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {}
+        @Override public void visitJumpInsn(int opcode, Label label) {}
+        @Override public void visitLabel(Label label) {}
+        @Override public void visitLdcInsn(Object cst) {}
+        @Override public void visitIincInsn(int var, int increment) {}
+        @Override public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {}
+        @Override public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {}
+        @Override public void visitMultiANewArrayInsn(String desc, int dims) {}
+        @Override public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {}
+        @Override public void visitLocalVariable(String name, String desc, String signature,
+                                                 Label start, Label end, int index) {}
+        @Override public void visitLineNumber(int line, Label start) {}
+        @Override public void visitMaxs(int maxStack, int maxLocals) {}
+
+        @Override
+        public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String desc,
+                                                         boolean visible) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start,
+                                                              Label[] end, int[] index, String desc,
+                                                              boolean visible) {
+            return null;
+        }
+
+        @Override
+        public void visitEnd() {
+            hook.replaceMethodBody(inj);
+        }
+    }
+
+    private static class BridgeMethod {
+        final String name;
+        final String desc;
+        final boolean isStatic;
+
+        BridgeMethod(String name, String desc, boolean isStatic) {
+            this.name = name;
+            this.desc = desc;
+            this.isStatic = isStatic;
+        }
+    }
 }
@@ -6,6 +6,11 @@ import org.objectweb.asm.MethodVisitor;
  * Фабрика, задающая тип инжектора хуков. Фактически, от выбора фабрики зависит то, в какие участки кода попадёт хук.
  * "Из коробки" доступно два типа инжекторов: MethodEnter, который вставляет хук на входе в метод,
  * и MethodExit, который вставляет хук на каждом выходе.
+ * Кроме них есть Around, который используется для парных хуков входа и выхода (см. AsmHook.Builder#setAroundExitMethod),
+ * InvokeRedirect, который заменяет вызовы другого метода внутри целевого (см. AsmHook.Builder#setRedirect),
+ * ConstantModification, который заменяет константы (см. AsmHook.Builder#setConstantModification),
+ * и FieldWrite, который вызывает хук после записи в поле (см. AsmHook.Builder#setFieldWatch).
+ * Фабрики с параметрами равны, если равны параметры: по ним в том числе сравниваются хуки (см. AsmHook#equals).
  */
 public abstract class HookInjectorFactory {
 
@@ -49,9 +54,199 @@ public abstract class HookInjectorFactory {
         }
     }
 
+    static class Around extends HookInjectorFactory {
+
+        public static final Around INSTANCE = new Around();
+
+        private Around() {}
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.Around(mv, access, name, desc, hook, cv);
+        }
+    }
+
+    static class InvokeRedirect extends HookInjectorFactory {
+
+        private final String owner;
+        private final String name;
+        private final int ordinal;
+
+        /**
+         * @param owner   класс, в котором находится заменяемый метод, через слэши
+         * @param ordinal номер заменяемого вызова или -1, если заменить нужно все вызовы
+         */
+        public InvokeRedirect(String owner, String name, int ordinal) {
+            this.owner = owner;
+            this.name = name;
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.InvokeRedirect(mv, access, name, desc, hook, cv,
+                    owner, this.name, ordinal);
+        }
+
+        @Override
+        public String toString() {
+            return owner.replace('/', '.') + '#' + name + (ordinal == -1 ? "" : "[" + ordinal + "]");
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof InvokeRedirect)) return false;
+            InvokeRedirect o = (InvokeRedirect) obj;
+            return owner.equals(o.owner) && name.equals(o.name) && ordinal == o.ordinal;
+        }
+
+        @Override
+        public int hashCode() {
+            return (owner.hashCode() * 31 + name.hashCode()) * 31 + ordinal;
+        }
+    }
+
+    static class ConstantModification extends HookInjectorFactory {
+
+        private final Object constant;
+        private final int ordinal;
+
+        /**
+         * @param constant Integer, Long, Float, Double или String
+         * @param ordinal  номер заменяемой константы или -1, если заменить нужно все
+         */
+        public ConstantModification(Object constant, int ordinal) {
+            this.constant = constant;
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.ConstantModification(mv, access, name, desc, hook, cv,
+                    constant, ordinal);
+        }
+
+        @Override
+        public String toString() {
+            return constant + (ordinal == -1 ? "" : "[" + ordinal + "]");
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ConstantModification)) return false;
+            ConstantModification o = (ConstantModification) obj;
+            return constant.equals(o.constant) && ordinal == o.ordinal;
+        }
+
+        @Override
+        public int hashCode() {
+            return constant.hashCode() * 31 + ordinal;
+        }
+    }
+
+    static class FieldWrite extends HookInjectorFactory {
+
+        private final String owner;
+        private final String name;
+
+        /**
+         * @param owner класс, в котором объявлено поле, через слэши
+         */
+        public FieldWrite(String owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.FieldWrite(mv, access, name, desc, hook, cv, owner, this.name);
+        }
+
+        String getOwner() {
+            return owner;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return owner.replace('/', '.') + '#' + name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FieldWrite)) return false;
+            FieldWrite o = (FieldWrite) obj;
+            return owner.equals(o.owner) && name.equals(o.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return owner.hashCode() * 31 + name.hashCode();
+        }
+    }
+
+    static class Allocation extends HookInjectorFactory {
+
+        public static final Allocation INSTANCE = new Allocation();
+
+        private Allocation() {}
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.Allocation(mv, access, name, desc, hook, cv);
+        }
+    }
+
+    static class LockWait extends HookInjectorFactory {
+
+        public static final LockWait INSTANCE = new LockWait();
+
+        private LockWait() {}
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.LockWait(mv, access, name, desc, hook, cv);
+        }
+    }
+
+    static class LoopBackEdge extends HookInjectorFactory {
+
+        public static final LoopBackEdge INSTANCE = new LoopBackEdge();
+
+        private LoopBackEdge() {}
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.LoopBackEdge(mv, access, name, desc, hook, cv);
+        }
+    }
+
+    static class StaticInit extends HookInjectorFactory {
+
+        public static final StaticInit INSTANCE = new StaticInit();
+
+        private StaticInit() {}
+
+        @Override
+        public HookInjectorMethodVisitor createHookInjector(MethodVisitor mv, int access, String name, String desc,
+                                                            AsmHook hook, HookInjectorClassVisitor cv) {
+            return new HookInjectorMethodVisitor.StaticInit(mv, access, name, desc, hook, cv);
+        }
+    }
+
     static class LineNumber extends HookInjectorFactory {
 
-        private int lineNumber;
+        private final int lineNumber;
 
         public LineNumber(int lineNumber) {
             this.lineNumber = lineNumber;
@@ -62,6 +257,16 @@ public abstract class HookInjectorFactory {
                                                             AsmHook hook, HookInjectorClassVisitor cv) {
             return new HookInjectorMethodVisitor.LineNumber(mv, access, name, desc, hook, cv, lineNumber);
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LineNumber && lineNumber == ((LineNumber) obj).lineNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return lineNumber;
+        }
     }
 
 }
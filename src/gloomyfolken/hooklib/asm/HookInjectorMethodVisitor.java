@@ -1,11 +1,17 @@
 package gloomyfolken.hooklib.asm;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Класс, непосредственно вставляющий хук в метод.
  * Чтобы указать конкретное место вставки хука, нужно создать класс extends HookInjector.
@@ -17,6 +23,8 @@ public abstract class HookInjectorMethodVisitor extends AdviceAdapter {
     public final String methodName;
     public final Type methodType;
     public final boolean isStatic;
+    // номер текущей строки исходного кода или -1, если в байткоде нет номеров строк
+    protected int currentLine = -1;
 
     protected HookInjectorMethodVisitor(MethodVisitor mv, int access, String name, String desc,
                                         AsmHook hook, HookInjectorClassVisitor cv) {
@@ -43,6 +51,21 @@ public abstract class HookInjectorMethodVisitor extends AdviceAdapter {
         return mv;
     }
 
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        currentLine = line;
+        super.visitLineNumber(line, start);
+    }
+
+    /**
+     * Ключ метрики для места внутри целевого метода: "kind:класс#метод:строка", а если номеров строк
+     * в байткоде нет - "kind:класс#метод:#ordinal".
+     */
+    protected String getSiteId(String kind, int ordinal) {
+        return kind + ":" + cv.className.replace('/', '.') + "#" + methodName + ":" +
+                (currentLine == -1 ? "#" + ordinal : String.valueOf(currentLine));
+    }
+
     /**
      * Вставляет хук в начале метода.
      */
@@ -78,6 +101,658 @@ public abstract class HookInjectorMethodVisitor extends AdviceAdapter {
         }
     }
 
+    /**
+     * Основа для вставок, которым нужен код на каждом выходе из метода, в том числе через исключение: на обычных
+     * выходах код вставляется перед return, а исключения ловит обработчик, который вызывает тот же код
+     * и перебрасывает исключение дальше. Как и finally у javac, обработчик ловит исключения только из исходного
+     * кода метода: код выхода и сам return в его участки не входят, иначе исключение из кода выхода
+     * вызвало бы его ещё раз.
+     */
+    public static abstract class ExitHandler extends HookInjectorMethodVisitor {
+
+        // начала и концы участков, которые ловит обработчик, парами
+        private final List<Label> ranges = new ArrayList<Label>(4);
+        private boolean rangeOpened;
+        // были ли инструкции с начала текущего участка: пустой участок JVM не принимает
+        private boolean rangeHasCode;
+
+        protected ExitHandler(MethodVisitor mv, int access, String name, String desc,
+                              AsmHook hook, HookInjectorClassVisitor cv) {
+            super(mv, access, name, desc, hook, cv);
+        }
+
+        /**
+         * Вставляет код выхода. Вызывается на каждом обычном выходе и в обработчике исключений.
+         */
+        protected abstract void visitExit();
+
+        /**
+         * Вызывается перед каждой инструкцией, в том числе перед вставленными через этот визитор.
+         */
+        protected void beforeInstruction() {
+
+        }
+
+        /**
+         * Начинает участок, исключения из которого ловит обработчик. Вызывается после кода входа:
+         * исключения из него не ловятся.
+         */
+        protected void beginHandledRange() {
+            Label start = new Label();
+            visitLabel(start);
+            ranges.add(start);
+            rangeOpened = true;
+            rangeHasCode = false;
+        }
+
+        private void endHandledRange() {
+            if (!rangeOpened) return;
+            rangeOpened = false;
+            if (rangeHasCode) {
+                Label end = new Label();
+                visitLabel(end);
+                ranges.add(end);
+            } else {
+                ranges.remove(ranges.size() - 1);
+            }
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            // ATHROW обработает catch-блок, иначе код выхода будет вызван дважды
+            if (opcode != Opcodes.ATHROW && rangeOpened) {
+                endHandledRange();
+                visitExit();
+            }
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            beforeInstruction();
+            boolean exit = opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN && rangeOpened;
+            super.visitInsn(opcode);
+            if (exit) {
+                beginHandledRange();
+            } else {
+                rangeHasCode = true;
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            beforeInstruction();
+            super.visitIntInsn(opcode, operand);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            beforeInstruction();
+            super.visitVarInsn(opcode, var);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            beforeInstruction();
+            super.visitTypeInsn(opcode, type);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            beforeInstruction();
+            super.visitFieldInsn(opcode, owner, name, desc);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            beforeInstruction();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            beforeInstruction();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            beforeInstruction();
+            super.visitJumpInsn(opcode, label);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            beforeInstruction();
+            super.visitLdcInsn(cst);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            beforeInstruction();
+            super.visitIincInsn(var, increment);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            beforeInstruction();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            beforeInstruction();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            beforeInstruction();
+            super.visitMultiANewArrayInsn(desc, dims);
+            rangeHasCode = true;
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            endHandledRange();
+            if (!ranges.isEmpty()) {
+                Label handler = new Label();
+                for (int i = 0; i < ranges.size(); i += 2) {
+                    visitTryCatchBlock(ranges.get(i), ranges.get(i + 1), handler, null);
+                }
+                visitLabel(handler);
+                visitExit();
+                visitInsn(Opcodes.ATHROW);
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
+    }
+
+    /**
+     * Вставляет парный хук: на входе вызывается хук-метод, а на каждом выходе, в том числе через исключение,
+     * вызывается метод выхода, которому передаётся результат хук-метода.
+     * Результат хранится в локальной переменной целевого метода, поэтому ни ThreadLocal'ов, ни аллокаций не нужно.
+     * Выходы через исключение ловятся обработчиком, который вызывает метод выхода и перебрасывает исключение дальше.
+     */
+    public static class Around extends ExitHandler {
+
+        private int stateLocalId = -1;
+
+        public Around(MethodVisitor mv, int access, String name, String desc,
+                      AsmHook hook, HookInjectorClassVisitor cv) {
+            super(mv, access, name, desc, hook, cv);
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            if (!cv.visitingHook) {
+                cv.visitingHook = true;
+                stateLocalId = hook.injectAroundEnter(this);
+                cv.visitingHook = false;
+                // исключения из самого хук-метода входа не ловим: для них метод выхода вызывать нельзя
+                beginHandledRange();
+            }
+        }
+
+        @Override
+        protected void visitExit() {
+            cv.visitingHook = true;
+            hook.injectAroundExit(this, stateLocalId);
+            cv.visitingHook = false;
+        }
+    }
+
+    /**
+     * Заменяет вызовы указанного метода внутри целевого на вызов хук-метода.
+     * Стек при этом не перекладывается: хук-метод принимает ровно то, что лежало на стеке для вызова.
+     */
+    public static class InvokeRedirect extends HookInjectorMethodVisitor {
+
+        private final String owner;
+        private final String name;
+        private final int ordinal;
+        private int found;
+        private int redirected;
+
+        public InvokeRedirect(MethodVisitor mv, int access, String name, String desc,
+                              AsmHook hook, HookInjectorClassVisitor cv, String owner, String redirectName,
+                              int ordinal) {
+            super(mv, access, name, desc, hook, cv);
+            this.owner = owner;
+            this.name = redirectName;
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (!cv.visitingHook && isRedirected(opcode, owner, name, desc) && (ordinal == -1 || ordinal == found++)) {
+                redirected++;
+                cv.visitingHook = true;
+                hook.injectRedirect(this);
+                cv.visitingHook = false;
+            } else {
+                super.visitMethodInsn(opcode, owner, name, desc, itf);
+            }
+        }
+
+        @Override
+        public void visitEnd() {
+            // хук с шаблоном названия метода не обязан находить вызов в каждом методе
+            if (redirected == 0 && !hook.isMethodPattern()) {
+                cv.transformer.logger.warning("Can not find invocation of " + owner + "#" + name + " in method " +
+                        cv.className + "#" + methodName + methodType.getDescriptor() + ": " + hook);
+            }
+            super.visitEnd();
+        }
+
+        private boolean isRedirected(int opcode, String owner, String name, String desc) {
+            if (!owner.equals(this.owner) || !name.equals(this.name) && !cv.mapMethodName(name).equals(this.name)) {
+                return false;
+            }
+            // через INVOKESPECIAL вызываются и private-методы, и super-методы, и конструкторы,
+            // но без последствий можно заменить только вызов private-метода своего класса
+            if (opcode == Opcodes.INVOKESPECIAL && (!owner.equals(cv.className) || name.equals("<init>"))) {
+                return false;
+            }
+            return hook.isRedirectedInvocation(opcode == Opcodes.INVOKESTATIC, desc);
+        }
+    }
+
+    /**
+     * Заменяет загрузку константы с заданным значением внутри целевого метода на то, что вставит хук.
+     * Константы ищутся во всех инструкциях, которые их загружают: ldc, bipush, sipush и xconst_n.
+     */
+    public static class ConstantModification extends HookInjectorMethodVisitor {
+
+        private final Object constant;
+        private final int ordinal;
+        private int found;
+        private int modified;
+
+        public ConstantModification(MethodVisitor mv, int access, String name, String desc,
+                                    AsmHook hook, HookInjectorClassVisitor cv, Object constant, int ordinal) {
+            super(mv, access, name, desc, hook, cv);
+            this.constant = constant;
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode < Opcodes.ICONST_M1 || opcode > Opcodes.DCONST_1 || !modifyConstant(getConstant(opcode))) {
+                super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (opcode == Opcodes.NEWARRAY || !modifyConstant(operand)) {
+                super.visitIntInsn(opcode, operand);
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            if (!modifyConstant(cst)) {
+                super.visitLdcInsn(cst);
+            }
+        }
+
+        @Override
+        public void visitEnd() {
+            if (modified == 0 && !hook.isMethodPattern()) {
+                cv.transformer.logger.warning("Can not find constant " + constant + " in method " +
+                        cv.className + "#" + methodName + methodType.getDescriptor() + ": " + hook);
+            }
+            super.visitEnd();
+        }
+
+        /**
+         * @return true, если вместо константы вставлен хук
+         */
+        private boolean modifyConstant(Object value) {
+            // Float и Double сравниваются побитово, так что 0.0 и -0.0 - разные константы, как и в байткоде
+            if (cv.visitingHook || !constant.equals(value) || ordinal != -1 && ordinal != found++) {
+                return false;
+            }
+            modified++;
+            cv.visitingHook = true;
+            hook.injectConstant(this, constant);
+            cv.visitingHook = false;
+            return true;
+        }
+
+        private static Object getConstant(int opcode) {
+            if (opcode <= Opcodes.ICONST_5) {
+                return opcode - Opcodes.ICONST_0;
+            } else if (opcode <= Opcodes.LCONST_1) {
+                return (long) (opcode - Opcodes.LCONST_0);
+            } else if (opcode <= Opcodes.FCONST_2) {
+                return (float) (opcode - Opcodes.FCONST_0);
+            } else {
+                return (double) (opcode - Opcodes.DCONST_0);
+            }
+        }
+    }
+
+    /**
+     * Вставляет хук после каждой записи в указанное поле (PUTFIELD/PUTSTATIC) внутри целевого метода.
+     * Учитываются и записи через наследников класса, в котором объявлено поле: this.posX = ... в EntityPlayer
+     * компилируется в PUTFIELD EntityPlayer.posX.
+     * В конструкторах записи до вызова super() пропускаются: до него this нельзя передавать в другие методы.
+     */
+    public static class FieldWrite extends HookInjectorMethodVisitor {
+
+        private final String owner;
+        private final String name;
+        private final String desc;
+        private boolean entered;
+        private int watched;
+
+        public FieldWrite(MethodVisitor mv, int access, String name, String desc,
+                          AsmHook hook, HookInjectorClassVisitor cv, String owner, String fieldName) {
+            super(mv, access, name, desc, hook, cv);
+            this.owner = owner;
+            this.name = fieldName;
+            this.desc = hook.getWatchedFieldDescription();
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            entered = true;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (!entered || cv.visitingHook || opcode != Opcodes.PUTFIELD && opcode != Opcodes.PUTSTATIC ||
+                    !isWatched(owner, name, desc)) {
+                super.visitFieldInsn(opcode, owner, name, desc);
+                return;
+            }
+            watched++;
+            cv.visitingHook = true;
+            hook.injectFieldWrite(this, opcode, owner, name, desc);
+            cv.visitingHook = false;
+        }
+
+        @Override
+        public void visitEnd() {
+            // хук с шаблоном названия метода не обязан находить запись в каждом методе
+            if (watched == 0 && !hook.isMethodPattern()) {
+                cv.transformer.logger.warning("Can not find write to field " + owner + "#" + name + " in method " +
+                        cv.className + "#" + methodName + methodType.getDescriptor() + ": " + hook);
+            }
+            super.visitEnd();
+        }
+
+        private boolean isWatched(String owner, String name, String desc) {
+            if (!desc.equals(this.desc) || !name.equals(this.name) && !cv.mapFieldName(name).equals(this.name)) {
+                return false;
+            }
+            return owner.equals(this.owner) || cv.transformer.classMetadataReader.getSuperClasses(owner)
+                    .contains(this.owner);
+        }
+    }
+
+    /**
+     * Считает выполнения каждого места создания объекта или массива внутри целевого метода.
+     * Место определяется номером строки, а если его нет в байткоде - порядковым номером аллокации в методе.
+     * Счётчик вставляется перед самой инструкцией и не трогает стек, поэтому подходит и для аллокаций
+     * в конструкторе до вызова super().
+     */
+    public static class Allocation extends HookInjectorMethodVisitor {
+
+        private static final String[] PRIMITIVE_ARRAYS = {"boolean", "char", "float", "double",
+                "byte", "short", "int", "long"};
+
+        private int allocations;
+
+        public Allocation(MethodVisitor mv, int access, String name, String desc,
+                          AsmHook hook, HookInjectorClassVisitor cv) {
+            super(mv, access, name, desc, hook, cv);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (opcode == Opcodes.NEW) {
+                visitAllocation(Type.getObjectType(type).getClassName());
+            } else if (opcode == Opcodes.ANEWARRAY) {
+                visitAllocation(Type.getObjectType(type).getClassName() + "[]");
+            }
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (opcode == Opcodes.NEWARRAY) {
+                visitAllocation(PRIMITIVE_ARRAYS[operand - Opcodes.T_BOOLEAN] + "[]");
+            }
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            visitAllocation(Type.getType(desc).getClassName());
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        private void visitAllocation(String type) {
+            if (cv.visitingHook) return;
+            cv.visitingHook = true;
+            hook.injectSiteCounter(this, getSiteId("alloc", allocations++) + " " + type);
+            cv.visitingHook = false;
+        }
+    }
+
+    /**
+     * Замеряет ожидание монитора на каждом monitorenter внутри целевого метода.
+     * Если целевой метод synchronized, то HookInjectorClassVisitor снимает с него флаг, а монитор захватывается
+     * на входе вставленным кодом с тем же замером. Освобождается он на каждом выходе и в обработчике,
+     * который ловит все исключения и перебрасывает их дальше, как в synchronized-блоке.
+     */
+    public static class LockWait extends ExitHandler {
+
+        private final boolean isSynchronized;
+        private int lockLocalId = -1;
+        private int startTimeLocalId = -1;
+        private int monitors;
+        // id захвата монитора, время ожидания которого ещё не записано
+        private String pendingWaitId;
+
+        public LockWait(MethodVisitor mv, int access, String name, String desc,
+                        AsmHook hook, HookInjectorClassVisitor cv) {
+            super(mv, access, name, desc, hook, cv);
+            isSynchronized = isTimedSynchronizedMethod(access, cv);
+        }
+
+        /**
+         * @return true, если с метода нужно снять флаг synchronized и захватывать монитор вставленным кодом.
+         * Для static-метода монитор - объект класса, а загрузить его через ldc можно только с пятой джавы.
+         * С HookClassTransformer#preserveClassLayout модификаторы метода менять нельзя.
+         */
+        static boolean isTimedSynchronizedMethod(int access, HookInjectorClassVisitor cv) {
+            return (access & Opcodes.ACC_SYNCHRONIZED) != 0 && !cv.transformer.preserveClassLayout &&
+                    ((access & Opcodes.ACC_STATIC) == 0 || (cv.classVersion & 0xFFFF) >= Opcodes.V1_5);
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            if (!isSynchronized || cv.visitingHook) return;
+            cv.visitingHook = true;
+            if (isStatic) {
+                visitLdcInsn(Type.getObjectType(cv.className));
+            } else {
+                getBasicVisitor().visitVarInsn(Opcodes.ALOAD, 0);
+            }
+            visitInsn(Opcodes.DUP);
+            lockLocalId = newLocal(Type.getType(Object.class));
+            getBasicVisitor().visitVarInsn(Opcodes.ASTORE, lockLocalId);
+            hook.injectMonitorEnter(this, getStartTimeLocalId());
+            beginHandledRange();
+            // запись времени уже внутри участка: если она упадёт, обработчик освободит монитор
+            hook.injectMonitorWait(this, startTimeLocalId,
+                    "lock:" + cv.className.replace('/', '.') + "#" + methodName);
+            cv.visitingHook = false;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode == Opcodes.MONITORENTER && !cv.visitingHook) {
+                beforeInstruction();
+                cv.visitingHook = true;
+                hook.injectMonitorEnter(this, getStartTimeLocalId());
+                cv.visitingHook = false;
+                pendingWaitId = getSiteId("lock", monitors++);
+            } else {
+                super.visitInsn(opcode);
+            }
+        }
+
+        /**
+         * Время ожидания монитора из synchronized-блока пишется перед следующей инструкцией после захвата:
+         * javac начинает участок, исключения из которого освобождают монитор, сразу после monitorenter.
+         */
+        @Override
+        protected void beforeInstruction() {
+            if (pendingWaitId == null) return;
+            String id = pendingWaitId;
+            pendingWaitId = null;
+            boolean visitingHook = cv.visitingHook;
+            cv.visitingHook = true;
+            hook.injectMonitorWait(this, startTimeLocalId, id);
+            cv.visitingHook = visitingHook;
+        }
+
+        /**
+         * Одна переменная на все захваты: время пишется раньше, чем может начаться следующий захват.
+         */
+        private int getStartTimeLocalId() {
+            if (startTimeLocalId == -1) {
+                startTimeLocalId = newLocal(Type.LONG_TYPE);
+            }
+            return startTimeLocalId;
+        }
+
+        @Override
+        protected void visitExit() {
+            getBasicVisitor().visitVarInsn(Opcodes.ALOAD, lockLocalId);
+            getBasicVisitor().visitInsn(Opcodes.MONITOREXIT);
+        }
+    }
+
+    /**
+     * Считает итерации циклов внутри целевого метода. Переход назад - это переход к метке, которая уже
+     * встречалась в методе, а сама метка считается заголовком цикла. Условный переход назад заменяется
+     * на обратный условный переход вперёд, за которым идут счётчик и goto: так считаются только
+     * выполненные переходы, то есть итерации, а не проверки условия.
+     */
+    public static class LoopBackEdge extends HookInjectorMethodVisitor {
+
+        // номер строки для каждой пройденной метки
+        private final Map<Label, Integer> labelLines = new HashMap<Label, Integer>();
+        // ключ счётчика для каждого найденного заголовка цикла
+        private final Map<Label, String> loopIds = new HashMap<Label, String>(4);
+
+        public LoopBackEdge(MethodVisitor mv, int access, String name, String desc,
+                            AsmHook hook, HookInjectorClassVisitor cv) {
+            super(mv, access, name, desc, hook, cv);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            super.visitLabel(label);
+            if (!cv.visitingHook) labelLines.put(label, currentLine);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            super.visitLineNumber(line, start);
+            // номер строки идёт после своей метки
+            if (labelLines.containsKey(start)) labelLines.put(start, line);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if (cv.visitingHook || opcode == Opcodes.JSR || !labelLines.containsKey(label)) {
+                super.visitJumpInsn(opcode, label);
+                return;
+            }
+            cv.visitingHook = true;
+            if (opcode == Opcodes.GOTO) {
+                hook.injectSiteCounter(this, getLoopId(label));
+                super.visitJumpInsn(opcode, label);
+            } else {
+                Label exit = new Label();
+                super.visitJumpInsn(getInvertedJump(opcode), exit);
+                hook.injectSiteCounter(this, getLoopId(label));
+                super.visitJumpInsn(Opcodes.GOTO, label);
+                super.visitLabel(exit);
+            }
+            cv.visitingHook = false;
+        }
+
+        private String getLoopId(Label header) {
+            String id = loopIds.get(header);
+            if (id == null) {
+                int line = labelLines.get(header);
+                id = "loop:" + cv.className.replace('/', '.') + "#" + methodName + ":" +
+                        (line == -1 ? "#" + loopIds.size() : String.valueOf(line));
+                loopIds.put(header, id);
+            }
+            return id;
+        }
+
+        /**
+         * Условные переходы в байткоде идут парами с противоположными условиями: ifeq и ifne, iflt и ifge...
+         */
+        private static int getInvertedJump(int opcode) {
+            if (opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL) {
+                return ((opcode - Opcodes.IFNULL) ^ 1) + Opcodes.IFNULL;
+            }
+            return ((opcode - Opcodes.IFEQ) ^ 1) + Opcodes.IFEQ;
+        }
+    }
+
+    /**
+     * Замеряет время статического инициализатора. Устроен так же, как Around: вызов на входе, вызов на каждом
+     * выходе и обработчик, который ловит исключения, вызывает выход и перебрасывает их дальше.
+     * В остальных методах класса ничего не делает, поэтому его можно вставлять и во все методы.
+     */
+    public static class StaticInit extends ExitHandler {
+
+        private int startTimeLocalId = -1;
+
+        public StaticInit(MethodVisitor mv, int access, String name, String desc,
+                          AsmHook hook, HookInjectorClassVisitor cv) {
+            super(mv, access, name, desc, hook, cv);
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            if (!methodName.equals("<clinit>") || cv.visitingHook) return;
+            cv.visitingHook = true;
+            startTimeLocalId = hook.injectStaticInitEnter(this);
+            cv.visitingHook = false;
+            beginHandledRange();
+        }
+
+        @Override
+        protected void visitExit() {
+            cv.visitingHook = true;
+            hook.injectStaticInitExit(this, startTimeLocalId);
+            cv.visitingHook = false;
+        }
+    }
+
     /**
      * Вставляет хук по номеру строки.
      */
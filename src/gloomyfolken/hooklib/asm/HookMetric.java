@@ -0,0 +1,68 @@
+package gloomyfolken.hooklib.asm;
+
+/**
+ * Встроенная метрика, которую можно собирать вместо вызова хук-метода.
+ * Значения лежат в gloomyfolken.hooklib.runtime.HookMetrics под ключом "название.класса.сХуками#названиеХукМетода".
+ * Сам хук-метод при этом не вызывается, он нужен только чтобы указать целевой метод.
+ */
+public enum HookMetric {
+
+    /**
+     * Обычный хук, метрика не собирается.
+     */
+    NONE(false),
+
+    /**
+     * Счётчик выполнений точки вставки (StripedCounter).
+     */
+    COUNT(false),
+
+    /**
+     * Время выполнения целевого метода в наносекундах (LatencyHistogram). Замеряется от входа до каждого
+     * выхода, в том числе через исключение, так же, как у парных хуков.
+     */
+    TIMING(false),
+
+    /**
+     * Счётчик на каждое место создания объекта или массива внутри целевого метода (new, newarray, anewarray,
+     * multianewarray). Ключ счётчика - "alloc:класс#метод:строка тип", поэтому хук-метод не обязателен,
+     * а targetMethod = "*" охватывает все методы класса. Самые частые места - HookMetrics.top("alloc:", N).
+     */
+    ALLOCATIONS(true),
+
+    /**
+     * Время ожидания монитора в наносекундах (LatencyHistogram) на каждом monitorenter внутри целевого метода
+     * с ключом "lock:класс#метод:строка", а если целевой метод synchronized - ещё и на входе в него
+     * с ключом "lock:класс#метод". У такого метода снимается флаг synchronized, а монитор захватывается
+     * и освобождается вставленным кодом, в том числе при выходе через исключение.
+     * Хук-метод не обязателен, targetMethod = "*" охватывает все методы класса.
+     */
+    LOCK_WAIT(true),
+
+    /**
+     * Счётчик итераций каждого цикла внутри целевого метода: увеличивается на каждом переходе назад
+     * (goto или выполненном условном переходе к уже пройденной метке). Все переходы к одной метке - это один
+     * цикл с ключом "loop:класс#метод:строка", где строка - строка заголовка цикла.
+     * Хук-метод не обязателен, targetMethod = "*" охватывает все методы класса.
+     * Самые горячие циклы - HookMetrics.top("loop:", N).
+     */
+    LOOPS(true),
+
+    /**
+     * Время статического инициализатора класса с учётом вложенных инициализаторов других классов, которые он
+     * запустил (см. gloomyfolken.hooklib.runtime.StaticInitProfiler). Значения лежат не в HookMetrics, а в
+     * StaticInitProfiler, который при завершении джавы выводит самые медленные инициализаторы.
+     * Хук-метод не обязателен, targetMethod должен быть "<clinit>" или "*".
+     */
+    STATIC_INIT(true);
+
+    /**
+     * Метрика собирается по местам внутри целевого метода, а не по самому хуку.
+     */
+    final boolean perSite;
+
+    HookMetric(boolean perSite) {
+        this.perSite = perSite;
+    }
+
+}
@@ -0,0 +1,245 @@
+package gloomyfolken.hooklib.asm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Хуки, у которых вместо названия целевого класса указан шаблон (см. AsmHook.Builder#setTargetClass):
+ * "префикс*" - все классы, название которых начинается с префикса, и "Класс+" - сам класс и все его наследники.
+ * Сюда же попадают хуки с includeOverrides: для них подходят только наследники целевого класса.
+ * <p/>
+ * Префиксы лежат в дереве по символам названия, поэтому название класса проходится один раз, сколько бы ни было
+ * шаблонов, а для класса, который не совпадает ни с одним префиксом, поиск заканчивается на первых символах.
+ * Цепочка суперклассов проходится по индексу иерархии ClassMetadataReader и только если есть хотя бы один
+ * хук на наследников.
+ * Классы самой хуклибы под шаблоны не попадают.
+ */
+class HookTargetMatcher {
+
+    private final PrefixNode root = new PrefixNode();
+    private boolean hasPrefixes;
+    // базовый класс через слэши -> хуки с шаблоном "Класс+"
+    private final HashMap<String, List<AsmHook>> subclassHooks = new HashMap<String, List<AsmHook>>();
+    // целевой класс через слэши -> хуки с includeOverrides
+    private final HashMap<String, List<AsmHook>> overrideHooks = new HashMap<String, List<AsmHook>>();
+
+    /**
+     * @return false, если такой же хук уже добавлен
+     */
+    boolean add(AsmHook hook) {
+        String pattern = hook.getTargetClassName();
+        if (hook.getIncludeOverrides()) {
+            return addToMap(overrideHooks, pattern.replace('.', '/'), hook);
+        }
+        String body = pattern.substring(0, pattern.length() - 1);
+        if (pattern.endsWith("+")) {
+            return addToMap(subclassHooks, body.replace('.', '/'), hook);
+        }
+        PrefixNode node = root;
+        for (int i = 0; i < body.length(); i++) {
+            node = node.getOrCreateChild(body.charAt(i));
+        }
+        if (node.hooks == null) {
+            node.hooks = new ArrayList<AsmHook>(1);
+        } else if (node.hooks.contains(hook)) {
+            return false;
+        }
+        node.hooks.add(hook);
+        hasPrefixes = true;
+        return true;
+    }
+
+    private static boolean addToMap(HashMap<String, List<AsmHook>> map, String className, AsmHook hook) {
+        List<AsmHook> hooks = map.get(className);
+        if (hooks == null) {
+            hooks = new ArrayList<AsmHook>(1);
+            map.put(className, hooks);
+        } else if (hooks.contains(hook)) {
+            return false;
+        }
+        hooks.add(hook);
+        return true;
+    }
+
+    /**
+     * Удаляет хуки, хук-методы которых лежат в классе hookClassName.
+     *
+     * @return удалённые хуки
+     */
+    List<AsmHook> removeHookContainer(String hookClassName) {
+        List<AsmHook> removed = new ArrayList<AsmHook>();
+        removeHookContainer(subclassHooks, hookClassName, removed);
+        removeHookContainer(overrideHooks, hookClassName, removed);
+        hasPrefixes = root.removeHookContainer(hookClassName, removed);
+        return removed;
+    }
+
+    private static void removeHookContainer(HashMap<String, List<AsmHook>> map, String hookClassName,
+                                            List<AsmHook> removed) {
+        for (Iterator<List<AsmHook>> it = map.values().iterator(); it.hasNext(); ) {
+            List<AsmHook> hooks = it.next();
+            removeHookContainer(hooks, hookClassName, removed);
+            if (hooks.isEmpty()) it.remove();
+        }
+    }
+
+    private static void removeHookContainer(List<AsmHook> hooks, String hookClassName, List<AsmHook> removed) {
+        for (Iterator<AsmHook> it = hooks.iterator(); it.hasNext(); ) {
+            AsmHook hook = it.next();
+            if (hookClassName.equals(hook.getHookClassName())) {
+                it.remove();
+                removed.add(hook);
+            }
+        }
+    }
+
+    /**
+     * Добавляет в result все хуки, в том числе с includeOverrides.
+     */
+    void collectHooks(Collection<AsmHook> result) {
+        root.collectHooks(result);
+        for (List<AsmHook> hooks : subclassHooks.values()) {
+            result.addAll(hooks);
+        }
+        for (List<AsmHook> hooks : overrideHooks.values()) {
+            result.addAll(hooks);
+        }
+    }
+
+    boolean isEmpty() {
+        return !hasPrefixes && !needsHierarchy();
+    }
+
+    /**
+     * @return true, если для поиска хуков нужен суперкласс класса
+     */
+    boolean needsHierarchy() {
+        return !subclassHooks.isEmpty() || !overrideHooks.isEmpty();
+    }
+
+    boolean matches(String className, ClassMetadataReader classMetadataReader) {
+        return !isEmpty() && collect(className, classMetadataReader, null);
+    }
+
+    /**
+     * @return копии подходящих хуков для класса (см. AsmHook#copyForClass) или null, если подходящих нет
+     */
+    List<AsmHook> getHooks(String className, ClassMetadataReader classMetadataReader) {
+        if (isEmpty()) return null;
+        List<AsmHook> result = new ArrayList<AsmHook>(2);
+        collect(className, classMetadataReader, result);
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * @param result список для копий подходящих хуков или null, если нужно только узнать, есть ли они
+     * @return true, если нашёлся хотя бы один подходящий хук
+     */
+    private boolean collect(String className, ClassMetadataReader classMetadataReader, List<AsmHook> result) {
+        if (className.startsWith("gloomyfolken.hooklib.")) return false;
+        boolean found = false;
+
+        PrefixNode node = root;
+        for (int i = 0; node != null; i++) {
+            if (copyHooks(node.hooks, className, result)) {
+                if (result == null) return true;
+                found = true;
+            }
+            node = i < className.length() ? node.getChild(className.charAt(i)) : null;
+        }
+
+        if (needsHierarchy()) {
+            String type = className.replace('.', '/');
+            // у самого класса проверяются только шаблоны "Класс+": хук с includeOverrides вставляется
+            // в свой целевой класс как обычный
+            if (copyHooks(subclassHooks.get(type), className, result)) {
+                if (result == null) return true;
+                found = true;
+            }
+            while ((type = classMetadataReader.getSuperClass(type)) != null && !type.equals("java/lang/Object")) {
+                if (copyHooks(subclassHooks.get(type), className, result) |
+                        copyHooks(overrideHooks.get(type), className, result)) {
+                    if (result == null) return true;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param result список для копий или null, если копировать не нужно
+     * @return true, если хуки есть
+     */
+    private static boolean copyHooks(List<AsmHook> hooks, String className, List<AsmHook> result) {
+        if (hooks == null) return false;
+        if (result != null) {
+            for (AsmHook hook : hooks) {
+                result.add(hook.copyForClass(className));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Узел дерева префиксов. Потомков обычно мало, поэтому они лежат в массивах и ищутся перебором.
+     */
+    private static class PrefixNode {
+        char[] keys = new char[0];
+        PrefixNode[] children = new PrefixNode[0];
+        List<AsmHook> hooks;
+
+        PrefixNode getChild(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        /**
+         * Удаляет хуки из этого узла и всех его потомков. Пустые узлы остаются, на поиск они не влияют.
+         *
+         * @return true, если в поддереве ещё остались хуки
+         */
+        boolean removeHookContainer(String hookClassName, List<AsmHook> removed) {
+            boolean hasHooks = false;
+            if (hooks != null) {
+                HookTargetMatcher.removeHookContainer(hooks, hookClassName, removed);
+                if (hooks.isEmpty()) {
+                    hooks = null;
+                } else {
+                    hasHooks = true;
+                }
+            }
+            for (PrefixNode child : children) {
+                hasHooks |= child.removeHookContainer(hookClassName, removed);
+            }
+            return hasHooks;
+        }
+
+        void collectHooks(Collection<AsmHook> result) {
+            if (hooks != null) {
+                result.addAll(hooks);
+            }
+            for (PrefixNode child : children) {
+                child.collectHooks(result);
+            }
+        }
+
+        PrefixNode getOrCreateChild(char c) {
+            PrefixNode child = getChild(c);
+            if (child == null) {
+                child = new PrefixNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package gloomyfolken.hooklib.asm;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Тело хук-метода, которое при HookDispatch.INLINED копируется прямо в целевой метод вместо INVOKESTATIC.
+ * <p/>
+ * Параметры, которые лежат на стеке так же, как перед вызовом хук-метода, сохраняются в новые локальные
+ * переменные целевого метода, локальные переменные хук-метода переносятся в новые локальные переменные,
+ * а return'ы превращаются в переход в конец вставленного кода. После вставленного кода на стеке лежит
+ * то же, что вернул бы хук-метод, поэтому дальше работает обычная логика ReturnCondition.
+ * <p/>
+ * Копировать можно не любой метод. Отказ будет, если хук-метод:
+ * - обращается к непубличным классам, полям и методам, в том числе класса с хуками (из целевого класса, который
+ *   лежит в другом пакете, они недоступны, и JVM бросила бы IllegalAccessError);
+ * - содержит try/catch (обработчик исключения сбросил бы стек целевого метода);
+ * - содержит invokedynamic (лямбды ссылаются на приватные методы класса с хуками) или jsr/ret.
+ */
+class InlinedHookBody {
+
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int FLOAT = 2;
+    private static final int DOUBLE = 3;
+    private static final int OBJECT = 4;
+
+    private final MethodNode method;
+    private final Type[] parameterTypes;
+
+    private InlinedHookBody(MethodNode method) {
+        this.method = method;
+        this.parameterTypes = Type.getArgumentTypes(method.desc);
+    }
+
+    /**
+     * Читает хук-метод из класса с хуками и проверяет, что его можно скопировать в целевой метод.
+     *
+     * @param hookClassName название класса с хуками через точки
+     * @throws IllegalArgumentException если хук-метод нельзя скопировать, в сообщении указана причина
+     */
+    static InlinedHookBody load(ClassMetadataReader classMetadataReader, String hookClassName,
+                                String methodName, String methodDesc) throws IOException {
+        ClassNode classNode = new ClassNode();
+        classMetadataReader.acceptVisitor(hookClassName, classNode);
+
+        MethodNode method = null;
+        for (MethodNode candidate : classNode.methods) {
+            if (candidate.name.equals(methodName) && candidate.desc.equals(methodDesc)) {
+                method = candidate;
+                break;
+            }
+        }
+        if (method == null) {
+            throw new IllegalArgumentException("Hook method " + hookClassName + "#" + methodName + methodDesc +
+                    " not found.");
+        }
+        if (method.tryCatchBlocks != null && !method.tryCatchBlocks.isEmpty()) {
+            throw new IllegalArgumentException("Hook method with try/catch blocks can not be inlined.");
+        }
+
+        AccessChecker accessChecker = new AccessChecker(classMetadataReader, classNode);
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            int opcode = insn.getOpcode();
+            if (opcode == Opcodes.JSR || opcode == Opcodes.RET) {
+                throw new IllegalArgumentException("Hook method with jsr/ret instructions can not be inlined.");
+            }
+            if (opcode == Opcodes.INVOKEDYNAMIC) {
+                throw new IllegalArgumentException("Hook method with invokedynamic can not be inlined.");
+            }
+            if (insn instanceof FieldInsnNode) {
+                FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+                accessChecker.checkMember(fieldInsn.owner, fieldInsn.name, fieldInsn.desc, true);
+            } else if (insn instanceof MethodInsnNode) {
+                MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                accessChecker.checkMember(methodInsn.owner, methodInsn.name, methodInsn.desc, false);
+            } else if (insn instanceof TypeInsnNode) {
+                accessChecker.checkType(Type.getObjectType(((TypeInsnNode) insn).desc));
+            } else if (insn instanceof MultiANewArrayInsnNode) {
+                accessChecker.checkType(Type.getType(((MultiANewArrayInsnNode) insn).desc));
+            } else if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Type) {
+                accessChecker.checkType((Type) ((LdcInsnNode) insn).cst);
+            }
+        }
+        return new InlinedHookBody(method);
+    }
+
+    /**
+     * Проверяет, что классы и их члены, к которым обращается хук-метод, доступны из любого класса:
+     * целевой класс заранее неизвестен и может лежать в другом пакете.
+     */
+    private static class AccessChecker {
+
+        private final ClassMetadataReader classMetadataReader;
+        private final Map<String, ClassNode> classes = new HashMap<String, ClassNode>();
+
+        AccessChecker(ClassMetadataReader classMetadataReader, ClassNode hookClass) {
+            this.classMetadataReader = classMetadataReader;
+            classes.put(hookClass.name, hookClass);
+        }
+
+        void checkType(Type type) throws IOException {
+            if (type.getSort() == Type.ARRAY) type = type.getElementType();
+            if (type.getSort() != Type.OBJECT) return;
+            ClassNode classNode = getClass(type.getInternalName());
+            if ((classNode.access & Opcodes.ACC_PUBLIC) == 0) {
+                throw new IllegalArgumentException("Hook method refers to non-public class " + type.getClassName() +
+                        ", so it can not be inlined.");
+            }
+        }
+
+        void checkMember(String owner, String name, String desc, boolean isField) throws IOException {
+            // методы массивов (например, clone()) публичные
+            if (owner.charAt(0) == '[') {
+                checkType(Type.getType(owner));
+                return;
+            }
+            checkType(Type.getObjectType(owner));
+            int access = findAccess(owner, name, desc, isField);
+            String memberName = (isField ? "field " : "method ") + owner.replace('/', '.') + "#" + name;
+            if (access == -1) {
+                throw new IllegalArgumentException("Hook method refers to " + memberName + " which can not be " +
+                        "found, so it can not be inlined.");
+            }
+            if ((access & Opcodes.ACC_PUBLIC) == 0) {
+                throw new IllegalArgumentException("Hook method refers to non-public " + memberName + ", so it " +
+                        "can not be inlined.");
+            }
+        }
+
+        /**
+         * Ищет член класса так же, как JVM при линковке: в самом классе, в интерфейсах и в суперклассах.
+         *
+         * @return модификаторы или -1, если член класса не найден
+         */
+        private int findAccess(String owner, String name, String desc, boolean isField) throws IOException {
+            ClassNode classNode = getClass(owner);
+            if (isField) {
+                for (FieldNode field : classNode.fields) {
+                    if (field.name.equals(name) && field.desc.equals(desc)) return field.access;
+                }
+            } else {
+                for (MethodNode method : classNode.methods) {
+                    if (method.name.equals(name) && method.desc.equals(desc)) return method.access;
+                }
+            }
+            for (String anInterface : classNode.interfaces) {
+                int access = findAccess(anInterface, name, desc, isField);
+                if (access != -1) return access;
+            }
+            return classNode.superName == null ? -1 : findAccess(classNode.superName, name, desc, isField);
+        }
+
+        private ClassNode getClass(String internalName) throws IOException {
+            ClassNode classNode = classes.get(internalName);
+            if (classNode == null) {
+                classNode = new ClassNode();
+                // для проверки доступа хватает заголовков членов класса
+                new ClassReader(classMetadataReader.getClassData(internalName)).accept(classNode,
+                        ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                classes.put(internalName, classNode);
+            }
+            return classNode;
+        }
+    }
+
+    /**
+     * Вставляет тело хук-метода. На момент вызова на стеке должны лежать параметры хук-метода.
+     */
+    void inject(HookInjectorMethodVisitor inj) {
+        Map<Integer, Integer> locals = new HashMap<Integer, Integer>();
+        // номера из newLocal() уже переназначены, поэтому обращения к ним идут в обход LocalVariablesSorter'a,
+        // иначе они могут совпасть с собственными локальными переменными целевого метода
+        MethodVisitor mv = inj.getBasicVisitor();
+
+        // снимаем параметры со стека в обратном порядке
+        int[] parameterSlots = new int[parameterTypes.length];
+        int slot = 0;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            parameterSlots[i] = slot;
+            slot += parameterTypes[i].getSize();
+        }
+        for (int i = parameterTypes.length - 1; i >= 0; i--) {
+            Type type = parameterTypes[i];
+            int localId = getLocal(inj, locals, parameterSlots[i], getCategory(type));
+            mv.visitVarInsn(type.getOpcode(Opcodes.ISTORE), localId);
+        }
+
+        Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LabelNode) {
+                labels.put((LabelNode) insn, new LabelNode());
+            }
+        }
+
+        AbstractInsnNode lastInsn = method.instructions.getLast();
+        while (lastInsn != null && lastInsn.getOpcode() == -1) {
+            lastInsn = lastInsn.getPrevious();
+        }
+
+        Label end = new Label();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            switch (insn.getType()) {
+                case AbstractInsnNode.LABEL:
+                    inj.visitLabel(labels.get(insn).getLabel());
+                    break;
+                case AbstractInsnNode.LINE:
+                case AbstractInsnNode.FRAME:
+                    // номера строк хук-метода в целевом классе бессмысленны, а frame'ы будут пересчитаны
+                    break;
+                case AbstractInsnNode.VAR_INSN:
+                    VarInsnNode varInsn = (VarInsnNode) insn;
+                    int category = getCategory(varInsn.getOpcode());
+                    mv.visitVarInsn(varInsn.getOpcode(), getLocal(inj, locals, varInsn.var, category));
+                    break;
+                case AbstractInsnNode.IINC_INSN:
+                    IincInsnNode iincInsn = (IincInsnNode) insn;
+                    mv.visitIincInsn(getLocal(inj, locals, iincInsn.var, INT), iincInsn.incr);
+                    break;
+                default:
+                    int opcode = insn.getOpcode();
+                    if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                        // значение остаётся на стеке, как после вызова хук-метода
+                        if (insn != lastInsn) {
+                            inj.visitJumpInsn(Opcodes.GOTO, end);
+                        }
+                    } else {
+                        insn.clone(labels).accept(inj);
+                    }
+                    break;
+            }
+        }
+        inj.visitLabel(end);
+    }
+
+    private static int getLocal(HookInjectorMethodVisitor inj, Map<Integer, Integer> locals, int slot, int category) {
+        Integer key = slot * 8 + category;
+        Integer localId = locals.get(key);
+        if (localId == null) {
+            localId = inj.newLocal(getType(category));
+            locals.put(key, localId);
+        }
+        return localId;
+    }
+
+    private static Type getType(int category) {
+        switch (category) {
+            case INT:
+                return Type.INT_TYPE;
+            case LONG:
+                return Type.LONG_TYPE;
+            case FLOAT:
+                return Type.FLOAT_TYPE;
+            case DOUBLE:
+                return Type.DOUBLE_TYPE;
+            default:
+                return Type.getType(Object.class);
+        }
+    }
+
+    private static int getCategory(Type type) {
+        switch (type.getSort()) {
+            case Type.LONG:
+                return LONG;
+            case Type.FLOAT:
+                return FLOAT;
+            case Type.DOUBLE:
+                return DOUBLE;
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return OBJECT;
+            default:
+                return INT;
+        }
+    }
+
+    private static int getCategory(int varOpcode) {
+        switch (varOpcode) {
+            case Opcodes.LLOAD:
+            case Opcodes.LSTORE:
+                return LONG;
+            case Opcodes.FLOAD:
+            case Opcodes.FSTORE:
+                return FLOAT;
+            case Opcodes.DLOAD:
+            case Opcodes.DSTORE:
+                return DOUBLE;
+            case Opcodes.ALOAD:
+            case Opcodes.ASTORE:
+                return OBJECT;
+            default:
+                return INT;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package gloomyfolken.hooklib.asm;
+
+/**
+ * Пороги размера байткода, после которых HotSpot перестаёт инлайнить или компилировать метод.
+ * HookClassTransformer сравнивает с ними размер каждого пропатченного метода до и после вставки хуков
+ * и пишет в лог, если хуки перетащили метод через какой-нибудь из порогов.
+ * Значения по умолчанию совпадают со значениями по умолчанию у JVM.
+ */
+public class InliningBudget {
+
+    /**
+     * -XX:MaxInlineSize: методы больше этого размера не инлайнятся, если они не горячие.
+     */
+    public int maxInlineSize = 35;
+
+    /**
+     * -XX:FreqInlineSize: методы больше этого размера не инлайнятся вообще.
+     */
+    public int freqInlineSize = 325;
+
+    /**
+     * HugeMethodLimit: методы больше этого размера не компилируются JIT'ом (при -XX:+DontCompileHugeMethods).
+     */
+    public int hugeMethodLimit = 8000;
+
+    /**
+     * Если true, то выход за порог в методе, куда вставлен обязательный (isMandatory) хук, крашит игру.
+     */
+    public boolean failOnMandatoryHooks = false;
+
+    /**
+     * @return описание порога, через который перешёл метод, или null, если метод уложился во все пороги
+     */
+    public String getCrossedLimit(int sizeBefore, int sizeAfter) {
+        if (crosses(sizeBefore, sizeAfter, hugeMethodLimit)) {
+            return "HugeMethodLimit (" + hugeMethodLimit + ")";
+        }
+        if (crosses(sizeBefore, sizeAfter, freqInlineSize)) {
+            return "FreqInlineSize (" + freqInlineSize + ")";
+        }
+        if (crosses(sizeBefore, sizeAfter, maxInlineSize)) {
+            return "MaxInlineSize (" + maxInlineSize + ")";
+        }
+        return null;
+    }
+
+    private static boolean crosses(int sizeBefore, int sizeAfter, int limit) {
+        return sizeBefore <= limit && sizeAfter > limit;
+    }
+}
@@ -0,0 +1,384 @@
+package gloomyfolken.hooklib.asm;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Источник байткода, который один раз читает central directory всех джарников из classpath и запоминает,
+ * по какому смещению лежит каждый class-файл. После этого класс достаётся одним позиционным чтением
+ * (или прямо из memory-mapped файла) без обхода всех URL'ов ClassLoader'a.
+ * <p/>
+ * Папки из classpath проверяются в порядке classpath, как это делает URLClassLoader.
+ * Всё, что не нашлось в индексе (например, джарники, добавленные в classpath позже), ищется через fallback.
+ * Zip64 не поддерживается, такие джарники тоже отдаются fallback'у, как и джарники, которые не удалось прочитать.
+ * Чтобы копия класса из следующего джарника не перекрыла копию из такого джарника, всё, что стоит в classpath
+ * после первого непроиндексированного джарника, тоже ищется через fallback.
+ */
+public class JarIndexClassDataSource implements ClassDataSource, Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    // class-файл, который индекс прочитать не может (другой метод сжатия или слишком большой)
+    private static final int UNSUPPORTED = -1;
+
+    private final HashMap<String, Entry> index = new HashMap<String, Entry>();
+    private final List<JarFile> jars = new ArrayList<JarFile>();
+    private final List<File> directories = new ArrayList<File>();
+    // порядковый номер папки в classpath, нужен чтобы не отдать класс из джарника, который стоит после неё
+    private final List<Integer> directoryOrder = new ArrayList<Integer>();
+    // порядковый номер первого джарника, который не удалось проиндексировать
+    private int firstUnindexedOrder = Integer.MAX_VALUE;
+    private final ClassDataSource fallback;
+    private final HookLogger logger;
+
+    // буферы всех потоков, чтобы в close() освободить нативную память Inflater'ов
+    private final List<ReadBuffers> allBuffers = new ArrayList<ReadBuffers>();
+    private final ThreadLocal<ReadBuffers> buffers = new ThreadLocal<ReadBuffers>() {
+        @Override
+        protected ReadBuffers initialValue() {
+            ReadBuffers readBuffers = new ReadBuffers();
+            synchronized (allBuffers) {
+                allBuffers.add(readBuffers);
+            }
+            return readBuffers;
+        }
+    };
+
+    /**
+     * @param classPath  джарники и папки в порядке classpath
+     * @param useMapping если true, то джарники мапятся в память целиком, иначе читаются позиционно через FileChannel
+     * @param fallback   источник для классов, которых нет в индексе. Может быть null.
+     */
+    public JarIndexClassDataSource(List<File> classPath, boolean useMapping, ClassDataSource fallback)
+            throws IOException {
+        this(classPath, useMapping, fallback, new HookLogger.SystemOutLogger());
+    }
+
+    /**
+     * @param logger сюда пишутся джарники, которые не удалось проиндексировать
+     */
+    public JarIndexClassDataSource(List<File> classPath, boolean useMapping, ClassDataSource fallback,
+                                   HookLogger logger) throws IOException {
+        this.fallback = fallback;
+        this.logger = logger;
+        for (int i = 0; i < classPath.size(); i++) {
+            File file = classPath.get(i);
+            if (file.isDirectory()) {
+                directories.add(file);
+                directoryOrder.add(i);
+            } else if (file.isFile()) {
+                boolean indexed;
+                try {
+                    indexed = indexJar(file, i, useMapping);
+                    if (!indexed) {
+                        logger.warning("Can not index " + file + " (zip64 or broken archive), " +
+                                "it and the rest of classpath will be read via fallback");
+                    }
+                } catch (Exception e) {
+                    // один битый джарник не должен ломать весь индекс: его классы найдутся через fallback
+                    logger.warning("Can not index " + file + ", it and the rest of classpath " +
+                            "will be read via fallback: " + e);
+                    indexed = false;
+                }
+                if (!indexed && firstUnindexedOrder == Integer.MAX_VALUE) {
+                    firstUnindexedOrder = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Строит индекс по java.class.path.
+     */
+    public static JarIndexClassDataSource fromSystemClassPath(ClassDataSource fallback) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (path.length() > 0) files.add(new File(path));
+        }
+        return new JarIndexClassDataSource(files, true, fallback);
+    }
+
+    /**
+     * Строит индекс по списку URL'ов, например, по LaunchClassLoader#getSources().
+     * URL'ы, которые не указывают на локальные файлы, пропускаются.
+     */
+    public static JarIndexClassDataSource fromURLs(Collection<URL> urls, ClassDataSource fallback)
+            throws IOException {
+        List<File> files = new ArrayList<File>(urls.size());
+        for (URL url : urls) {
+            File file = FileUtils.toFile(url);
+            if (file != null) files.add(file);
+        }
+        return new JarIndexClassDataSource(files, true, fallback);
+    }
+
+    @Override
+    public byte[] getClassData(String internalName) throws IOException {
+        String entryName = internalName + ".class";
+        Entry entry = index.get(entryName);
+        int entryOrder = entry == null ? Integer.MAX_VALUE : entry.jar.order;
+        // сами читаем только то, что стоит в classpath раньше первого непроиндексированного джарника
+        int readableOrder = fallback == null ? Integer.MAX_VALUE : firstUnindexedOrder;
+
+        for (int i = 0; i < directories.size() && directoryOrder.get(i) < Math.min(entryOrder, readableOrder); i++) {
+            File file = new File(directories.get(i), entryName);
+            if (file.isFile()) {
+                return FileUtils.readFileToByteArray(file);
+            }
+        }
+
+        if (entry != null && entry.method != UNSUPPORTED && entryOrder < readableOrder) {
+            return read(entry);
+        }
+        return fallback == null ? null : fallback.getClassData(internalName);
+    }
+
+    /**
+     * Количество проиндексированных class-файлов.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Закрывает джарники и освобождает Inflater'ы всех потоков. После этого читать классы нельзя.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (allBuffers) {
+            for (ReadBuffers readBuffers : allBuffers) {
+                readBuffers.inflater.end();
+            }
+            allBuffers.clear();
+        }
+        for (JarFile jar : jars) {
+            jar.channel.close();
+        }
+    }
+
+    /**
+     * @return false, если джарник нельзя проиндексировать, например, это zip64
+     */
+    private boolean indexJar(File file, int order, boolean useMapping) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        boolean indexed = false;
+        try {
+            indexed = indexJar(file, order, useMapping, channel);
+        } finally {
+            if (!indexed) channel.close();
+        }
+        return indexed;
+    }
+
+    /**
+     * @return false, если джарник не проиндексирован и его канал нужно закрыть
+     */
+    private boolean indexJar(File file, int order, boolean useMapping, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < END_HEADER_SIZE) return false;
+
+        // end of central directory лежит в конце файла, но после него может быть комментарий длиной до 64кб
+        int tailSize = (int) Math.min(size, END_HEADER_SIZE + 0xFFFF);
+        ByteBuffer tail = readFully(channel, size - tailSize, tailSize);
+        int endHeader = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER_SIGNATURE) {
+                endHeader = i;
+                break;
+            }
+        }
+        if (endHeader == -1) return false;
+
+        long centralSize = tail.getInt(endHeader + 12) & 0xFFFFFFFFL;
+        long centralOffset = tail.getInt(endHeader + 16) & 0xFFFFFFFFL;
+        if (centralOffset == 0xFFFFFFFFL || centralOffset + centralSize > size) {
+            // zip64 или битый архив
+            return false;
+        }
+
+        JarFile jar = new JarFile(file, order, channel);
+        if (useMapping && size < Integer.MAX_VALUE) {
+            jar.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            jar.mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // в общий индекс записи попадают, только если central directory прочитана целиком
+        HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        ByteBuffer central = readFully(channel, centralOffset, (int) centralSize);
+        int pos = 0;
+        byte[] nameBytes = new byte[256];
+        while (pos + CENTRAL_HEADER_SIZE <= centralSize && central.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            int method = central.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = central.getInt(pos + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = central.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = central.getShort(pos + 28) & 0xFFFF;
+            int extraLength = central.getShort(pos + 30) & 0xFFFF;
+            int commentLength = central.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = central.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            if (nameLength > nameBytes.length) nameBytes = new byte[nameLength];
+            central.position(pos + CENTRAL_HEADER_SIZE);
+            central.get(nameBytes, 0, nameLength);
+            String name = new String(nameBytes, 0, nameLength, "UTF-8");
+
+            if (name.endsWith(".class") && !index.containsKey(name) && !entries.containsKey(name)) {
+                if ((method == STORED || method == DEFLATED) &&
+                        compressedSize < Integer.MAX_VALUE && uncompressedSize < Integer.MAX_VALUE) {
+                    entries.put(name, new Entry(jar, localHeaderOffset, method,
+                            (int) compressedSize, (int) uncompressedSize));
+                } else {
+                    // запись всё равно нужна, иначе класс достался бы из следующего джарника
+                    entries.put(name, new Entry(jar, localHeaderOffset, UNSUPPORTED, 0, 0));
+                }
+            }
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        index.putAll(entries);
+        jars.add(jar);
+        return true;
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        ReadBuffers buffers = this.buffers.get();
+        JarFile jar = entry.jar;
+
+        // размер extra field в локальном заголовке может отличаться от central directory
+        long dataOffset;
+        if (jar.mapped != null) {
+            ByteBuffer header = jar.mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            dataOffset = getDataOffset(header, (int) entry.localHeaderOffset, entry.localHeaderOffset);
+        } else {
+            ByteBuffer header = buffers.header;
+            header.clear();
+            readFully(jar.channel, entry.localHeaderOffset, header);
+            dataOffset = getDataOffset(header, 0, entry.localHeaderOffset);
+        }
+
+        byte[] result = new byte[entry.uncompressedSize];
+        byte[] source;
+        if (entry.method == STORED) {
+            source = result;
+        } else {
+            source = buffers.getCompressed(entry.compressedSize);
+        }
+
+        if (jar.mapped != null) {
+            ByteBuffer data = jar.mapped.duplicate();
+            data.position((int) dataOffset);
+            data.get(source, 0, entry.compressedSize);
+        } else {
+            readFully(jar.channel, dataOffset, ByteBuffer.wrap(source, 0, entry.compressedSize));
+        }
+
+        if (entry.method == DEFLATED) {
+            Inflater inflater = buffers.inflater;
+            inflater.reset();
+            inflater.setInput(source, 0, entry.compressedSize);
+            try {
+                int offset = 0;
+                while (offset < result.length && !inflater.finished()) {
+                    int n = inflater.inflate(result, offset, result.length - offset);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    offset += n;
+                }
+                if (offset != result.length) {
+                    throw new IOException("Unexpected end of compressed data in " + jar.file);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted class data in " + jar.file + ": " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static long getDataOffset(ByteBuffer header, int position, long localHeaderOffset) throws IOException {
+        if (header.getInt(position) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local file header at " + localHeaderOffset);
+        }
+        int nameLength = header.getShort(position + 26) & 0xFFFF;
+        int extraLength = header.getShort(position + 28) & 0xFFFF;
+        return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, position, buffer);
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("Unexpected end of file");
+            position += n;
+        }
+        buffer.flip();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static class JarFile {
+        final File file;
+        final int order;
+        final FileChannel channel;
+        MappedByteBuffer mapped;
+
+        JarFile(File file, int order, FileChannel channel) {
+            this.file = file;
+            this.order = order;
+            this.channel = channel;
+        }
+    }
+
+    private static class Entry {
+        final JarFile jar;
+        final long localHeaderOffset;
+        final int method;
+        final int compressedSize;
+        final int uncompressedSize;
+
+        Entry(JarFile jar, long localHeaderOffset, int method, int compressedSize, int uncompressedSize) {
+            this.jar = jar;
+            this.localHeaderOffset = localHeaderOffset;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+        }
+    }
+
+    /**
+     * Переиспользуемые буферы одного потока.
+     */
+    private static class ReadBuffers {
+        final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE);
+        final Inflater inflater = new Inflater(true);
+        byte[] compressed = new byte[16 * 1024];
+
+        byte[] getCompressed(int size) {
+            if (compressed.length < size) {
+                compressed = new byte[Math.max(size, compressed.length * 2)];
+            }
+            return compressed;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package gloomyfolken.hooklib.asm;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+/**
+ * Целевой метод, обёрнутый хуком с memoize.
+ * Исходный метод переименовывается в private synthetic hooklib$memo$название, а на его месте
+ * генерируется обёртка с тем же названием, описанием и модификаторами, которая сначала ищет результат
+ * в gloomyfolken.hooklib.runtime.MemoCache, а при промахе вызывает исходный метод и кладёт результат в кэш.
+ * Исключения не кэшируются. Аннотации остаются на исходном методе.
+ */
+class MemoizedMethod {
+
+    private static final String MEMO_CACHE = "gloomyfolken/hooklib/runtime/MemoCache";
+    private static final Type MEMO_CACHE_TYPE = Type.getObjectType(MEMO_CACHE);
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+
+    final AsmHook hook;
+    final int access;
+    final String name;
+    final String desc;
+    final String signature;
+    final String[] exceptions;
+    final String renamedName;
+
+    MemoizedMethod(AsmHook hook, int access, String name, String desc, String signature, String[] exceptions) {
+        this.hook = hook;
+        this.access = access;
+        this.name = name;
+        this.desc = desc;
+        this.signature = signature;
+        this.exceptions = exceptions;
+        this.renamedName = "hooklib$memo$" + name;
+    }
+
+    /**
+     * Модификаторы, с которыми в класс записывается исходный метод.
+     */
+    int getRenamedAccess() {
+        return access & ~(Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_VARARGS | Opcodes.ACC_BRIDGE)
+                | Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC;
+    }
+
+    /**
+     * Проверяет, можно ли обернуть метод.
+     *
+     * @return описание проблемы или null, если проблем нет
+     */
+    static String getProblem(int classAccess, int access, String name, String desc) {
+        if (name.equals("<init>") || name.equals("<clinit>")) {
+            return "Constructors and static initializers can not be memoized.";
+        }
+        if (Type.getReturnType(desc) == Type.VOID_TYPE) {
+            return "Void methods can not be memoized.";
+        }
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+            return "Abstract and native methods can not be memoized.";
+        }
+        // private-методы в интерфейсах появились только в девятой джаве
+        if ((classAccess & Opcodes.ACC_INTERFACE) != 0) {
+            return "Interface methods can not be memoized.";
+        }
+        return null;
+    }
+
+    /**
+     * Генерирует обёртку.
+     */
+    void generateWrapper(HookInjectorClassVisitor classVisitor, String fieldName, String cacheId, int maxSize) {
+        String owner = classVisitor.className;
+        boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+        Type returnType = Type.getReturnType(desc);
+
+        MethodVisitor mv = classVisitor.visitGeneratedMethod(access, name, desc, signature, exceptions);
+        GeneratorAdapter ga = new GeneratorAdapter(mv, access, name, desc);
+        ga.visitCode();
+
+        // кэш создаётся при первом вызове и хранится в статическом поле
+        Label ready = ga.newLabel();
+        ga.getStatic(Type.getObjectType(owner), fieldName, MEMO_CACHE_TYPE);
+        ga.dup();
+        ga.ifNonNull(ready);
+        ga.pop();
+        ga.push(cacheId);
+        ga.push(maxSize);
+        ga.push(!isStatic);
+        ga.invokeStatic(MEMO_CACHE_TYPE, new Method("forHook", MEMO_CACHE_TYPE,
+                new Type[]{Type.getType(String.class), Type.INT_TYPE, Type.BOOLEAN_TYPE}));
+        ga.dup();
+        ga.putStatic(Type.getObjectType(owner), fieldName, MEMO_CACHE_TYPE);
+        ga.mark(ready);
+        int cacheLocal = ga.newLocal(MEMO_CACHE_TYPE);
+        ga.storeLocal(cacheLocal);
+
+        // один примитивный параметр статического метода превращается в long без упаковки
+        boolean longKey = isStatic && argumentTypes.length == 1 && isPrimitive(argumentTypes[0]);
+        Type keyType = longKey ? Type.LONG_TYPE : OBJECT_TYPE;
+        if (longKey) {
+            ga.loadArg(0);
+            toLong(ga, argumentTypes[0]);
+        } else {
+            // this передаётся отдельно: в ключе он хранится через WeakReference
+            ga.loadLocal(cacheLocal);
+            if (!isStatic) ga.loadThis();
+            ga.push(argumentTypes.length);
+            ga.newArray(OBJECT_TYPE);
+            for (int i = 0; i < argumentTypes.length; i++) {
+                ga.dup();
+                ga.push(i);
+                ga.loadArg(i);
+                ga.valueOf(argumentTypes[i]);
+                ga.arrayStore(OBJECT_TYPE);
+            }
+            Type arrayType = Type.getType(Object[].class);
+            ga.invokeVirtual(MEMO_CACHE_TYPE, new Method("key", OBJECT_TYPE,
+                    isStatic ? new Type[]{arrayType} : new Type[]{OBJECT_TYPE, arrayType}));
+        }
+        int keyLocal = ga.newLocal(keyType);
+        ga.storeLocal(keyLocal);
+
+        Label miss = ga.newLabel();
+        ga.loadLocal(cacheLocal);
+        ga.loadLocal(keyLocal);
+        ga.invokeVirtual(MEMO_CACHE_TYPE, new Method("get", OBJECT_TYPE, new Type[]{keyType}));
+        ga.dup();
+        ga.getStatic(MEMO_CACHE_TYPE, "MISS", OBJECT_TYPE);
+        ga.ifCmp(OBJECT_TYPE, GeneratorAdapter.EQ, miss);
+        ga.unbox(returnType);
+        ga.returnValue();
+
+        ga.mark(miss);
+        ga.pop();
+        if (!isStatic) ga.loadThis();
+        ga.loadArgs();
+        ga.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL, owner, renamedName, desc, false);
+        int resultLocal = ga.newLocal(returnType);
+        ga.storeLocal(resultLocal);
+
+        ga.loadLocal(cacheLocal);
+        ga.loadLocal(keyLocal);
+        ga.loadLocal(resultLocal);
+        ga.valueOf(returnType);
+        ga.invokeVirtual(MEMO_CACHE_TYPE, new Method("put", Type.VOID_TYPE, new Type[]{keyType, OBJECT_TYPE}));
+        ga.loadLocal(resultLocal);
+        ga.returnValue();
+        ga.endMethod();
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type.getSort() >= Type.BOOLEAN && type.getSort() <= Type.DOUBLE;
+    }
+
+    private static void toLong(GeneratorAdapter ga, Type type) {
+        if (type == Type.LONG_TYPE) return;
+        if (type == Type.FLOAT_TYPE) {
+            ga.invokeStatic(Type.getType(Float.class), Method.getMethod("int floatToRawIntBits(float)"));
+            ga.cast(Type.INT_TYPE, Type.LONG_TYPE);
+        } else if (type == Type.DOUBLE_TYPE) {
+            ga.invokeStatic(Type.getType(Double.class), Method.getMethod("long doubleToRawLongBits(double)"));
+        } else {
+            ga.cast(Type.INT_TYPE, Type.LONG_TYPE);
+        }
+    }
+}
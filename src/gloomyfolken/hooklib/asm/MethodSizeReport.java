@@ -0,0 +1,38 @@
+package gloomyfolken.hooklib.asm;
+
+/**
+ * Размер байткода одного пропатченного метода до и после вставки хуков.
+ */
+public class MethodSizeReport {
+
+    public final String className;
+    public final String methodName;
+    public final String methodDesc;
+    public final int sizeBefore;
+    public final int sizeAfter;
+    /**
+     * Порог из InliningBudget, через который перешёл метод, или null
+     */
+    public final String crossedLimit;
+
+    public MethodSizeReport(String className, String methodName, String methodDesc,
+                            int sizeBefore, int sizeAfter, String crossedLimit) {
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDesc = methodDesc;
+        this.sizeBefore = sizeBefore;
+        this.sizeAfter = sizeAfter;
+        this.crossedLimit = crossedLimit;
+    }
+
+    public boolean isOverBudget() {
+        return crossedLimit != null;
+    }
+
+    @Override
+    public String toString() {
+        String result = className + '#' + methodName + methodDesc + ": " + sizeBefore + " -> " + sizeAfter + " bytes";
+        if (crossedLimit != null) result += ", crossed " + crossedLimit;
+        return result;
+    }
+}
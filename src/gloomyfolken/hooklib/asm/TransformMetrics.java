@@ -0,0 +1,92 @@
+package gloomyfolken.hooklib.asm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Статистика работы HookClassTransformer'a.
+ * Трансформер работает до конца игры, а профилирование затрагивает десятки тысяч методов, поэтому отчёты
+ * о размерах хранятся не все: все методы, которые перешли через порог InliningBudget, и последние
+ * RECENT_METHODS пропатченных методов. Остальные только считаются.
+ */
+public class TransformMetrics {
+
+    /**
+     * Сколько последних отчётов о пропатченных методах хранится для getPatchedMethods().
+     */
+    public static final int RECENT_METHODS = 256;
+
+    private int transformedClasses;
+    private int injectedHooks;
+    private long transformTime;
+    private int patchedMethodCount;
+    private final ArrayDeque<MethodSizeReport> recentMethods = new ArrayDeque<MethodSizeReport>();
+    private final List<MethodSizeReport> overBudgetMethods = new ArrayList<MethodSizeReport>();
+
+    synchronized void onClassTransformed(int injectedHooks, long time) {
+        this.transformedClasses++;
+        this.injectedHooks += injectedHooks;
+        this.transformTime += time;
+    }
+
+    synchronized void onMethodPatched(MethodSizeReport report) {
+        patchedMethodCount++;
+        if (recentMethods.size() == RECENT_METHODS) {
+            recentMethods.removeFirst();
+        }
+        recentMethods.addLast(report);
+        if (report.isOverBudget()) {
+            overBudgetMethods.add(report);
+        }
+    }
+
+    public synchronized int getTransformedClasses() {
+        return transformedClasses;
+    }
+
+    public synchronized int getInjectedHooks() {
+        return injectedHooks;
+    }
+
+    /**
+     * Суммарное время вставки хуков в наносекундах.
+     */
+    public synchronized long getTransformTime() {
+        return transformTime;
+    }
+
+    /**
+     * Количество всех пропатченных методов.
+     */
+    public synchronized int getPatchedMethodCount() {
+        return patchedMethodCount;
+    }
+
+    /**
+     * Размеры последних RECENT_METHODS пропатченных методов до и после вставки хуков.
+     */
+    public synchronized List<MethodSizeReport> getPatchedMethods() {
+        return new ArrayList<MethodSizeReport>(recentMethods);
+    }
+
+    /**
+     * Пропатченные методы, которые из-за хуков перешли через один из порогов InliningBudget.
+     */
+    public synchronized List<MethodSizeReport> getOverBudgetMethods() {
+        return new ArrayList<MethodSizeReport>(overBudgetMethods);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Transformed classes: ").append(transformedClasses);
+        sb.append(", injected hooks: ").append(injectedHooks);
+        sb.append(", patched methods: ").append(patchedMethodCount);
+        sb.append(", time: ").append(transformTime / 1000000).append(" ms");
+        for (MethodSizeReport report : overBudgetMethods) {
+            sb.append('\n').append(report);
+        }
+        return sb.toString();
+    }
+}
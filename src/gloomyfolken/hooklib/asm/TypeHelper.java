@@ -5,6 +5,7 @@ import org.objectweb.asm.Type;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Класс, позволяющий создавать типы из разных входных данных.
@@ -13,6 +14,8 @@ import java.util.Map;
 public class TypeHelper {
 
     private static final Map<String, Type> primitiveTypes = new HashMap<String, Type>(9);
+    // описание -> общий экземпляр типа класса или массива, см. intern()
+    private static final ConcurrentHashMap<String, Type> internedTypes = new ConcurrentHashMap<String, Type>();
 
     static {
         primitiveTypes.put("void", Type.VOID_TYPE);
@@ -68,7 +71,25 @@ public class TypeHelper {
         } else {
             sb.append(primitive.getDescriptor());
         }
-        return Type.getType(sb.toString());
+        return intern(Type.getType(sb.toString()));
+    }
+
+    /**
+     * Возвращает общий экземпляр типа с тем же описанием, чтобы хуки с одинаковыми параметрами не хранили
+     * по своей копии каждого типа. Типы примитивов в ASM и так общие.
+     * Разных типов в хуках немного, поэтому они не удаляются.
+     *
+     * @param type тип или null
+     */
+    static Type intern(Type type) {
+        if (type == null || type.getSort() < Type.ARRAY) return type;
+        String desc = type.getDescriptor();
+        Type interned = internedTypes.get(desc);
+        if (interned == null) {
+            interned = internedTypes.putIfAbsent(desc, type);
+            if (interned == null) interned = type;
+        }
+        return interned;
     }
 
     static Object getStackMapFrameEntry(Type type) {
@@ -12,6 +12,11 @@ import java.util.Map;
 /**
  * Генерирует из mcp-шного methods.csv словарь с названиями методов для хуклибы.
  * Файл methods.csv лежит в mcp/conf/
+ * Если передать аргумент fields, то из fields.csv генерируется словарь fields.bin с названиями полей
+ * (нужен для хуков с watchField). Вторым аргументом можно передать версию майна: тогда словарь пишется
+ * в файл вида fields17.bin, как лежащие рядом methods16.bin - methods18.bin. В мод словарь кладётся
+ * в корень под именем fields.bin, иначе хуки с watchField на майновские поля в обфусцированном майне
+ * не найдут записи в поле.
  *
  * Настоятельно рекомендую сгенерировать methods.bin самостоятельно для своей версии mcp, иначе могут быть
  * внезапные ошибки уровня "can not find target method of hook".
@@ -19,7 +24,9 @@ import java.util.Map;
 public class DictionaryGenerator {
 
     public static void main(String[] args) throws Exception {
-        List<String> lines = FileUtils.readLines(new File("methods.csv"));
+        String kind = args.length > 0 ? args[0] : "methods";
+        String version = args.length > 1 ? args[1] : "";
+        List<String> lines = FileUtils.readLines(new File(kind + ".csv"));
         lines.remove(0);
         HashMap<Integer, String> map = new HashMap<Integer, String>();
         for (String str : lines) {
@@ -30,7 +37,7 @@ public class DictionaryGenerator {
             map.put(id, splitted[1]);
         }
 
-        DataOutputStream out = new DataOutputStream(new FileOutputStream("methods.bin"));
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(kind + version + ".bin"));
         out.writeInt(map.size());
 
         for (Map.Entry<Integer, String> entry : map.entrySet()) {
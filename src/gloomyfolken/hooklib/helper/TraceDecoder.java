@@ -0,0 +1,111 @@
+package gloomyfolken.hooklib.helper;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Читает трассу, записанную хуками с HookDispatch.TRACE, и выводит её в текстовом виде:
+ * номер потока, время в наносекундах, хук и значения его параметров.
+ * Вместо ссылочных параметров, которые в трассу не попадают, выводится "-".
+ * <p/>
+ * Использование: java gloomyfolken.hooklib.helper.TraceDecoder [папка с трассой]
+ * По умолчанию читается папка hooklib-trace.
+ */
+public class TraceDecoder {
+
+    private static final int HEADER_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args.length > 0 ? args[0] : "hooklib-trace");
+        Map<Integer, String[]> schema = readSchema(new File(directory, "schema.txt"));
+
+        PrintStream out = System.out;
+        long records = 0;
+        for (int i = 0; ; i++) {
+            File file = new File(directory, String.format("trace-%05d.bin", i));
+            if (!file.isFile()) break;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            raf.close();
+
+            // нулевой номер хука - конец записанной части сегмента или недописанная запись
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int hookId = buffer.getInt();
+                if (hookId == 0) break;
+                int threadId = buffer.getInt();
+                long time = buffer.getLong();
+                String[] hook = schema.get(hookId);
+                if (hook == null) {
+                    throw new IllegalStateException("Unknown hook id " + hookId + " in " + file);
+                }
+
+                StringBuilder sb = new StringBuilder();
+                sb.append(threadId).append(' ').append(time).append(' ').append(hook[0]).append('(');
+                String desc = hook[1];
+                int pos = 1;
+                boolean first = true;
+                while (desc.charAt(pos) != ')') {
+                    if (!first) sb.append(", ");
+                    first = false;
+                    char c = desc.charAt(pos);
+                    switch (c) {
+                        case 'Z':
+                            sb.append(buffer.get() != 0);
+                            break;
+                        case 'B':
+                            sb.append(buffer.get());
+                            break;
+                        case 'C':
+                            sb.append(buffer.getChar());
+                            break;
+                        case 'S':
+                            sb.append(buffer.getShort());
+                            break;
+                        case 'I':
+                            sb.append(buffer.getInt());
+                            break;
+                        case 'F':
+                            sb.append(buffer.getFloat());
+                            break;
+                        case 'J':
+                            sb.append(buffer.getLong());
+                            break;
+                        case 'D':
+                            sb.append(buffer.getDouble());
+                            break;
+                        default:
+                            sb.append('-');
+                            while (desc.charAt(pos) == '[') pos++;
+                            if (desc.charAt(pos) == 'L') pos = desc.indexOf(';', pos);
+                            break;
+                    }
+                    pos++;
+                }
+                sb.append(')');
+                out.println(sb);
+                records++;
+            }
+        }
+        out.println("Total records: " + records);
+    }
+
+    private static Map<Integer, String[]> readSchema(File file) throws Exception {
+        Map<Integer, String[]> schema = new HashMap<Integer, String[]>();
+        List<String> lines = FileUtils.readLines(file, "UTF-8");
+        for (String line : lines) {
+            if (line.isEmpty()) continue;
+            String[] splitted = line.split(" ");
+            schema.put(Integer.valueOf(splitted[0]), new String[]{splitted[1], splitted[2]});
+        }
+        return schema;
+    }
+}
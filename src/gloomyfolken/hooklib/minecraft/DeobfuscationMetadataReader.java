@@ -2,6 +2,7 @@ package gloomyfolken.hooklib.minecraft;
 
 import cpw.mods.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
 import gloomyfolken.hooklib.asm.ClassMetadataReader;
+import gloomyfolken.hooklib.asm.JarIndexClassDataSource;
 import net.minecraft.launchwrapper.Launch;
 import net.minecraft.launchwrapper.LaunchClassLoader;
 
@@ -55,9 +56,16 @@ public class DeobfuscationMetadataReader extends ClassMetadataReader {
         return bytes;
     }
 
-    private static byte[] getTransformedBytes(String type) throws IOException {
+    private byte[] getTransformedBytes(String type) throws IOException {
         String obfName = unmap(type);
-        byte[] bytes = Launch.classLoader.getClassBytes(obfName);
+        byte[] bytes = null;
+        // без индекса джарников ResourceSource ищет через загрузчик HookLib, а не через LaunchClassLoader
+        if (classDataSource instanceof JarIndexClassDataSource) {
+            bytes = classDataSource.getClassData(obfName.replace('.', '/'));
+        }
+        if (bytes == null) {
+            bytes = Launch.classLoader.getClassBytes(obfName);
+        }
         if (bytes == null) {
             throw new RuntimeException("Bytes for " + obfName + " not found");
         }
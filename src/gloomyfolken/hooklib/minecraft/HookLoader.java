@@ -5,7 +5,10 @@ import cpw.mods.fml.relauncher.IFMLLoadingPlugin;
 import gloomyfolken.hooklib.asm.AsmHook;
 import gloomyfolken.hooklib.asm.ClassMetadataReader;
 import gloomyfolken.hooklib.asm.HookClassTransformer;
+import gloomyfolken.hooklib.asm.JarIndexClassDataSource;
+import net.minecraft.launchwrapper.Launch;
 
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -20,6 +23,15 @@ public abstract class HookLoader implements IFMLLoadingPlugin {
 
     static {
         deobfuscationMetadataReader = new DeobfuscationMetadataReader();
+        // -Dhooklib.jarIndex=true: искать классы по заранее построенному индексу джарников из classpath
+        if (Boolean.getBoolean("hooklib.jarIndex") && Launch.classLoader != null) {
+            try {
+                deobfuscationMetadataReader.setClassDataSource(JarIndexClassDataSource.fromURLs(
+                        Launch.classLoader.getSources(), deobfuscationMetadataReader.getClassDataSource()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public static HookClassTransformer getTransformer() {
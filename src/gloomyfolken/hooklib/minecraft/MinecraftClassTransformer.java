@@ -1,10 +1,12 @@
 package gloomyfolken.hooklib.minecraft;
 
 import gloomyfolken.hooklib.asm.AsmHook;
+import gloomyfolken.hooklib.asm.ClassNodeTransformer;
 import gloomyfolken.hooklib.asm.HookClassTransformer;
 import gloomyfolken.hooklib.asm.HookInjectorClassVisitor;
 import net.minecraft.launchwrapper.IClassTransformer;
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.tree.ClassNode;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
@@ -23,8 +25,10 @@ public class MinecraftClassTransformer extends HookClassTransformer implements I
 
     static MinecraftClassTransformer instance;
     private Map<Integer, String> methodNames;
+    private Map<Integer, String> fieldNames;
 
     private static List<IClassTransformer> postTransformers = new ArrayList<IClassTransformer>();
+    private static boolean hasClassNodeTransformers;
 
     public MinecraftClassTransformer() {
         instance = this;
@@ -38,18 +42,29 @@ public class MinecraftClassTransformer extends HookClassTransformer implements I
             } catch (IOException e) {
                 logger.severe("Can not load obfuscated method names", e);
             }
+            // словарь полей нужен только хукам с watchField, поэтому без него можно обойтись
+            try {
+                fieldNames = loadNames("/fields.bin");
+            } catch (IOException e) {
+                logger.warning("Fields dictionary not found, field watch hooks will match only srg names");
+            }
         }
 
         this.classMetadataReader = HookLoader.getDeobfuscationMetadataReader();
 
-        this.hooksMap.putAll(PrimaryClassTransformer.instance.getHooksMap());
-        PrimaryClassTransformer.instance.getHooksMap().clear();
+        // хуки с шаблонами тоже переносятся: в PrimaryClassTransformer они видели бы обфусцированные названия
+        PrimaryClassTransformer.instance.transferHooksTo(this);
         PrimaryClassTransformer.instance.registeredSecondTransformer = true;
+        profileFromProperties();
     }
 
     private HashMap<Integer, String> loadMethodNames() throws IOException {
-        InputStream resourceStream = getClass().getResourceAsStream("/methods.bin");
-        if (resourceStream == null) throw new IOException("Methods dictionary not found");
+        return loadNames("/methods.bin");
+    }
+
+    private HashMap<Integer, String> loadNames(String resource) throws IOException {
+        InputStream resourceStream = getClass().getResourceAsStream(resource);
+        if (resourceStream == null) throw new IOException("Dictionary " + resource + " not found");
         DataInputStream input = new DataInputStream(new BufferedInputStream(resourceStream));
         int numMethods = input.readInt();
         HashMap<Integer, String> map = new HashMap<Integer, String>(numMethods);
@@ -62,6 +77,9 @@ public class MinecraftClassTransformer extends HookClassTransformer implements I
 
     @Override
     public byte[] transform(String oldName, String newName, byte[] bytecode) {
+        if (hasClassNodeTransformers && bytecode != null) {
+            return transformTree(oldName, newName, bytecode);
+        }
         bytecode = transform(newName, bytecode);
         for (int i = 0; i < postTransformers.size(); i++) {
             bytecode = postTransformers.get(i).transform(oldName, newName, bytecode);
@@ -69,9 +87,44 @@ public class MinecraftClassTransformer extends HookClassTransformer implements I
         return bytecode;
     }
 
+    /**
+     * Класс парсится один раз, после чего хуки и все ClassNodeTransformer'ы работают с одним ClassNode.
+     * Обычные IClassTransformer'ы по-прежнему получают байткод, поэтому перед ними класс приходится сохранять.
+     */
+    private byte[] transformTree(String oldName, String newName, byte[] bytecode) {
+        ClassNode classNode = null;
+        boolean modified = false;
+        if (hasHooks(newName, bytecode)) {
+            classNode = readClass(bytecode);
+            ClassNode transformed = transform(newName, classNode);
+            modified = transformed != classNode;
+            classNode = transformed;
+        }
+
+        for (int i = 0; i < postTransformers.size(); i++) {
+            IClassTransformer transformer = postTransformers.get(i);
+            if (transformer instanceof ClassNodeTransformer) {
+                if (classNode == null) {
+                    if (bytecode == null) continue;
+                    classNode = readClass(bytecode);
+                }
+                modified |= ((ClassNodeTransformer) transformer).transform(newName, classNode);
+            } else {
+                if (modified) {
+                    bytecode = writeClass(classNode);
+                    modified = false;
+                }
+                classNode = null;
+                bytecode = transformer.transform(oldName, newName, bytecode);
+            }
+        }
+
+        return modified ? writeClass(classNode) : bytecode;
+    }
+
     @Override
-    protected HookInjectorClassVisitor createInjectorClassVisitor(ClassWriter cw, List<AsmHook> hooks) {
-        return new HookInjectorClassVisitor(this, cw, hooks) {
+    protected HookInjectorClassVisitor createInjectorClassVisitor(ClassVisitor cv, List<AsmHook> hooks) {
+        return new HookInjectorClassVisitor(this, cv, hooks) {
             @Override
             protected boolean isTargetMethod(AsmHook hook, String name, String desc) {
                 if (HookLibPlugin.getObfuscated()) {
@@ -82,9 +135,41 @@ public class MinecraftClassTransformer extends HookClassTransformer implements I
                 }
                 return super.isTargetMethod(hook, name, desc);
             }
+
+            @Override
+            protected String mapMethodName(String name) {
+                if (HookLibPlugin.getObfuscated()) {
+                    String mcpName = methodNames.get(getMethodId(name));
+                    if (mcpName != null) {
+                        return mcpName;
+                    }
+                }
+                return name;
+            }
+
+            @Override
+            protected String mapFieldName(String name) {
+                if (HookLibPlugin.getObfuscated() && fieldNames != null) {
+                    String mcpName = fieldNames.get(getFieldId(name));
+                    if (mcpName != null) {
+                        return mcpName;
+                    }
+                }
+                return name;
+            }
         };
     }
 
+    /**
+     * Без словаря полей в обфусцированном майне MCP-название майновского поля не с чем сопоставить:
+     * в байткоде оно уже srg-шное. Поля модов и srg-названия в хуках словаря не требуют.
+     */
+    @Override
+    protected boolean canWatchField(String owner, String name) {
+        return !HookLibPlugin.getObfuscated() || fieldNames != null || name.startsWith("field_") ||
+                !owner.startsWith("net/minecraft/");
+    }
+
     public Map<Integer, String> getMethodNames() {
         return methodNames;
     }
@@ -99,10 +184,24 @@ public class MinecraftClassTransformer extends HookClassTransformer implements I
         }
     }
 
+    public static int getFieldId(String srgName) {
+        if (srgName.startsWith("field_")) {
+            int first = srgName.indexOf('_');
+            int second = srgName.indexOf('_', first + 1);
+            return Integer.valueOf(srgName.substring(first + 1, second));
+        } else {
+            return -1;
+        }
+    }
+
     /**
      * Регистрирует трансформер, который будет запущен после обычных, и в том числе после деобфусцирующего трансформера.
+     * Если трансформер реализует ClassNodeTransformer, то он получит уже распарсенный класс.
      */
     public static void registerPostTransformer(IClassTransformer transformer) {
         postTransformers.add(transformer);
+        if (transformer instanceof ClassNodeTransformer) {
+            hasClassNodeTransformers = true;
+        }
     }
 }
@@ -5,10 +5,9 @@ import gloomyfolken.hooklib.asm.AsmHook;
 import gloomyfolken.hooklib.asm.HookClassTransformer;
 import gloomyfolken.hooklib.asm.HookInjectorClassVisitor;
 import net.minecraft.launchwrapper.IClassTransformer;
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Type;
 
-import java.util.HashMap;
 import java.util.List;
 
 /** Этим трансформером трансформятся все классы, которые грузятся раньше майновских.
@@ -27,8 +26,7 @@ public class PrimaryClassTransformer extends HookClassTransformer implements ICl
 
         if (instance != null) {
             // переносим хуки, которые уже успели нарегистрировать
-            this.hooksMap.putAll(PrimaryClassTransformer.instance.getHooksMap());
-            PrimaryClassTransformer.instance.getHooksMap().clear();
+            PrimaryClassTransformer.instance.transferHooksTo(this);
         } else {
             registerHookContainer(SecondaryTransformerHook.class.getName());
         }
@@ -41,10 +39,10 @@ public class PrimaryClassTransformer extends HookClassTransformer implements ICl
     }
 
     @Override
-    protected HookInjectorClassVisitor createInjectorClassVisitor(ClassWriter cw, List<AsmHook> hooks) {
+    protected HookInjectorClassVisitor createInjectorClassVisitor(ClassVisitor cv, List<AsmHook> hooks) {
         // Если ничего не сломается, то никакие майновские классы не должны грузиться этим трансформером -
         // соответственно, и костыли для деобфускации названий методов тут не нужны.
-        return new HookInjectorClassVisitor(this, cw, hooks) {
+        return new HookInjectorClassVisitor(this, cv, hooks) {
             @Override
             protected boolean isTargetMethod(AsmHook hook, String name, String desc) {
                 return super.isTargetMethod(hook, name, mapDesc(desc));
@@ -52,10 +50,6 @@ public class PrimaryClassTransformer extends HookClassTransformer implements ICl
         };
     }
 
-    HashMap<String, List<AsmHook>> getHooksMap() {
-        return hooksMap;
-    }
-
     static String mapDesc(String desc) {
         if (!HookLibPlugin.getObfuscated()) return desc;
 
@@ -0,0 +1,251 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Обработчик хуков, вставленных с HookDispatch.ASYNC.
+ * <p/>
+ * Вставленный код берёт кольцевой буфер своего потока через begin(), кладёт туда примитивные параметры
+ * хук-метода и публикует запись через commit(). Фоновый поток-демон пачками вычитывает записи из буферов
+ * всех потоков и вызывает хук-методы. Вместо целевого объекта и любых других ссылочных параметров
+ * хук-метод получает null.
+ * <p/>
+ * Номер хука выдаётся при первом выполнении точки вставки через register() и запоминается в синтетическом
+ * статическом поле целевого класса.
+ * <p/>
+ * Размер буфера каждого потока в ячейках задаётся через -Dhooklib.async.ringSize (степень двойки,
+ * по умолчанию 16384). Если буфер переполнен, записи отбрасываются.
+ */
+public final class AsyncHooks {
+
+    private static final int RING_SIZE = Integer.getInteger("hooklib.async.ringSize", 1 << 14);
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    private static final List<HookInfo> hooks = new ArrayList<HookInfo>();
+    private static volatile HookInfo[] hooksArray = new HookInfo[0];
+    private static final CopyOnWriteArrayList<HookRing> rings = new CopyOnWriteArrayList<HookRing>();
+    private static final Object drainLock = new Object();
+    private static Thread consumer;
+
+    private static final ThreadLocal<HookRing> currentRing = new ThreadLocal<HookRing>() {
+        @Override
+        protected HookRing initialValue() {
+            HookRing ring = new HookRing(Thread.currentThread(), RING_SIZE);
+            rings.add(ring);
+            startConsumer();
+            return ring;
+        }
+    };
+
+    private static final HookRing.RecordHandler INVOKER = new HookRing.RecordHandler() {
+        @Override
+        public void onRecord(int hookId, long[] values, int size) {
+            hooksArray[hookId - 1].invoke(values);
+        }
+    };
+
+    private AsyncHooks() {}
+
+    /**
+     * Регистрирует хук и возвращает его номер. Повторная регистрация того же хука возвращает тот же номер.
+     * Номера начинаются с единицы, чтобы ноль в поле целевого класса означал "ещё не зарегистрирован".
+     *
+     * @param hookClassName название класса с хуком через слэши
+     * @param targetClass   целевой класс, через его ClassLoader загружается класс с хуком
+     */
+    public static synchronized int register(String hookClassName, String methodName, String methodDesc,
+                                            Class<?> targetClass) {
+        for (int i = 0; i < hooks.size(); i++) {
+            HookInfo hook = hooks.get(i);
+            if (hook.hookClassName.equals(hookClassName) && hook.methodName.equals(methodName) &&
+                    hook.methodDesc.equals(methodDesc) && hook.classLoader == targetClass.getClassLoader()) {
+                return i + 1;
+            }
+        }
+        hooks.add(new HookInfo(hookClassName, methodName, methodDesc, targetClass.getClassLoader()));
+        hooksArray = hooks.toArray(new HookInfo[hooks.size()]);
+        return hooks.size();
+    }
+
+    /**
+     * Начинает запись в буфер текущего потока.
+     *
+     * @param size количество значений, которые будут положены в запись
+     */
+    public static HookRing begin(int hookId, int size) {
+        HookRing ring = currentRing.get();
+        ring.begin(hookId, size);
+        return ring;
+    }
+
+    /**
+     * Синхронно обрабатывает все записи, которые уже опубликованы. Полезно перед выходом из игры.
+     *
+     * @return количество обработанных записей
+     */
+    public static int flush() {
+        synchronized (drainLock) {
+            int count = 0;
+            for (HookRing ring : rings) {
+                count += ring.drain(INVOKER);
+                if (!ring.owner.isAlive() && ring.isEmpty()) {
+                    rings.remove(ring);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Суммарное количество записей, отброшенных из-за переполнения буферов живых потоков.
+     */
+    public static long getDropped() {
+        long dropped = 0;
+        for (HookRing ring : rings) {
+            dropped += ring.getDropped();
+        }
+        return dropped;
+    }
+
+    private static synchronized void startConsumer() {
+        if (consumer != null) return;
+        consumer = new Thread("HookLib async hooks") {
+            @Override
+            public void run() {
+                while (true) {
+                    if (flush() == 0) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    private static class HookInfo {
+        final String hookClassName;
+        final String methodName;
+        final String methodDesc;
+        final ClassLoader classLoader;
+        final char[] parameterSorts;
+        Method method;
+        boolean failed;
+
+        HookInfo(String hookClassName, String methodName, String methodDesc, ClassLoader classLoader) {
+            this.hookClassName = hookClassName;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.classLoader = classLoader;
+            this.parameterSorts = parseParameterSorts(methodDesc);
+        }
+
+        void invoke(long[] values) {
+            if (failed) return;
+            try {
+                if (method == null) {
+                    method = findMethod();
+                }
+                Object[] args = new Object[parameterSorts.length];
+                int valueId = 0;
+                for (int i = 0; i < args.length; i++) {
+                    char sort = parameterSorts[i];
+                    if (sort != 'L') {
+                        args[i] = unpack(sort, values[valueId++]);
+                    }
+                }
+                method.invoke(null, args);
+            } catch (Throwable t) {
+                // хук, который падает, отключаем, чтобы не засыпать лог одной и той же ошибкой
+                failed = true;
+                System.err.println("Async hook " + hookClassName + "#" + methodName + methodDesc +
+                        " failed and will not be called anymore");
+                t.printStackTrace();
+            }
+        }
+
+        private Method findMethod() throws Exception {
+            Class<?> hookClass = Class.forName(hookClassName.replace('/', '.'), true, classLoader);
+            for (Method m : hookClass.getDeclaredMethods()) {
+                if (m.getName().equals(methodName) && getDescriptor(m).equals(methodDesc)) {
+                    m.setAccessible(true);
+                    return m;
+                }
+            }
+            throw new NoSuchMethodException(hookClassName + "#" + methodName + methodDesc);
+        }
+
+        private static Object unpack(char sort, long value) {
+            switch (sort) {
+                case 'Z':
+                    return value != 0;
+                case 'B':
+                    return (byte) value;
+                case 'C':
+                    return (char) value;
+                case 'S':
+                    return (short) value;
+                case 'I':
+                    return (int) value;
+                case 'F':
+                    return Float.intBitsToFloat((int) value);
+                case 'J':
+                    return value;
+                default:
+                    return Double.longBitsToDouble(value);
+            }
+        }
+
+        // 'L' - любой ссылочный тип, в том числе массив
+        private static char[] parseParameterSorts(String desc) {
+            StringBuilder sorts = new StringBuilder();
+            int i = 1;
+            while (desc.charAt(i) != ')') {
+                char c = desc.charAt(i);
+                if (c == '[') {
+                    while (desc.charAt(i) == '[') i++;
+                    if (desc.charAt(i) == 'L') i = desc.indexOf(';', i);
+                    sorts.append('L');
+                } else if (c == 'L') {
+                    i = desc.indexOf(';', i);
+                    sorts.append('L');
+                } else {
+                    sorts.append(c);
+                }
+                i++;
+            }
+            return sorts.toString().toCharArray();
+        }
+
+        private static String getDescriptor(Method method) {
+            StringBuilder sb = new StringBuilder("(");
+            for (Class<?> type : method.getParameterTypes()) {
+                appendDescriptor(sb, type);
+            }
+            sb.append(')');
+            appendDescriptor(sb, method.getReturnType());
+            return sb.toString();
+        }
+
+        private static void appendDescriptor(StringBuilder sb, Class<?> type) {
+            while (type.isArray()) {
+                sb.append('[');
+                type = type.getComponentType();
+            }
+            if (type == void.class) sb.append('V');
+            else if (type == boolean.class) sb.append('Z');
+            else if (type == byte.class) sb.append('B');
+            else if (type == char.class) sb.append('C');
+            else if (type == short.class) sb.append('S');
+            else if (type == int.class) sb.append('I');
+            else if (type == long.class) sb.append('J');
+            else if (type == float.class) sb.append('F');
+            else if (type == double.class) sb.append('D');
+            else sb.append('L').append(type.getName().replace('.', '/')).append(';');
+        }
+    }
+}
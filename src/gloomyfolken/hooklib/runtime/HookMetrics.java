@@ -0,0 +1,149 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Реестр счётчиков и гистограмм, ключ - строка вида "название.класса.сХуками#названиеХукМетода",
+ * как в SwitchableHooks. Сюда же пишут хуки с @Hook(metric = ...), но пользоваться реестром можно
+ * и из обычных хук-методов вместо synchronized-map'ов и AtomicLong'ов.
+ * <p/>
+ * В классы седьмой версии джавы и новее метрики вставляются через invokedynamic, который один раз
+ * привязывается к нужному счётчику, поэтому поиска по ключу на каждом вызове нет.
+ */
+public final class HookMetrics {
+
+    private static final ConcurrentHashMap<String, StripedCounter> counters =
+            new ConcurrentHashMap<String, StripedCounter>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private static final MethodHandle INCREMENT;
+    private static final MethodHandle RECORD;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            INCREMENT = lookup.findVirtual(StripedCounter.class, "increment", MethodType.methodType(void.class));
+            RECORD = lookup.findVirtual(LatencyHistogram.class, "record",
+                    MethodType.methodType(void.class, long.class));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private HookMetrics() {}
+
+    public static StripedCounter counter(String id) {
+        StripedCounter counter = counters.get(id);
+        if (counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = counters.putIfAbsent(id, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+        return counter;
+    }
+
+    public static LatencyHistogram histogram(String id) {
+        LatencyHistogram histogram = histograms.get(id);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(id, newHistogram);
+            if (histogram == null) histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    public static void increment(String id) {
+        counter(id).increment();
+    }
+
+    public static void record(String id, long value) {
+        histogram(id).record(value);
+    }
+
+    /**
+     * Bootstrap-метод для счётчика: привязывает место вызова к StripedCounter#increment() счётчика id.
+     */
+    public static CallSite bootstrapCounter(MethodHandles.Lookup lookup, String name, MethodType type, String id) {
+        return new ConstantCallSite(INCREMENT.bindTo(counter(id)).asType(type));
+    }
+
+    /**
+     * Bootstrap-метод для гистограммы: привязывает место вызова к LatencyHistogram#record(long) гистограммы id.
+     */
+    public static CallSite bootstrapHistogram(MethodHandles.Lookup lookup, String name, MethodType type,
+                                              String id) {
+        return new ConstantCallSite(RECORD.bindTo(histogram(id)).asType(type));
+    }
+
+    public static Map<String, StripedCounter> getCounters() {
+        return new TreeMap<String, StripedCounter>(counters);
+    }
+
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    public static void reset() {
+        for (StripedCounter counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Все счётчики и гистограммы построчно, отсортированные по ключу.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, StripedCounter> entry : getCounters().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Счётчики, ключ которых начинается с prefix, по убыванию значения: например, самые частые места
+     * аллокаций - top("alloc:", 20).
+     *
+     * @param limit максимальное количество строк
+     */
+    public static String top(String prefix, int limit) {
+        List<Map.Entry<String, Long>> sums = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                sums.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(),
+                        entry.getValue().sum()));
+            }
+        }
+        Collections.sort(sums, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sums.size() && i < limit; i++) {
+            Map.Entry<String, Long> entry = sums.get(i);
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
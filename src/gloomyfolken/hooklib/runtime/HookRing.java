@@ -0,0 +1,114 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кольцевой буфер записей одного потока для хуков с HookDispatch.ASYNC.
+ * Пишет в него только поток-владелец, читает только поток-обработчик AsyncHooks.
+ * <p/>
+ * Запись - это заголовок (номер хука в старших 32 битах и количество значений в младших) и сами значения,
+ * каждое в отдельной ячейке long[]. Массив выделяется один раз, поэтому запись не аллоцирует память.
+ * Запись публикуется через lazySet только в commit(), так что обработчик никогда не видит её наполовину.
+ * Если обработчик не успевает и места нет, то запись отбрасывается: поток игры никогда не ждёт.
+ */
+public final class HookRing {
+
+    final Thread owner;
+    private final long[] slots;
+    private final int mask;
+
+    // поля производителя
+    private long writePosition;
+    private long consumedCache;
+    private boolean dropping;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // поле обработчика
+    private long[] values = new long[8];
+
+    HookRing(Thread owner, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        this.owner = owner;
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    void begin(int hookId, int size) {
+        long required = writePosition + size + 1;
+        if (required - consumedCache > slots.length) {
+            consumedCache = consumed.get();
+            if (required - consumedCache > slots.length) {
+                dropping = true;
+                dropped.lazySet(dropped.get() + 1);
+                return;
+            }
+        }
+        dropping = false;
+        slots[(int) writePosition & mask] = ((long) hookId << 32) | size;
+        writePosition++;
+    }
+
+    public void putInt(int value) {
+        if (!dropping) slots[(int) writePosition++ & mask] = value;
+    }
+
+    public void putLong(long value) {
+        if (!dropping) slots[(int) writePosition++ & mask] = value;
+    }
+
+    public void putFloat(float value) {
+        if (!dropping) slots[(int) writePosition++ & mask] = Float.floatToRawIntBits(value);
+    }
+
+    public void putDouble(double value) {
+        if (!dropping) slots[(int) writePosition++ & mask] = Double.doubleToRawLongBits(value);
+    }
+
+    public void commit() {
+        if (!dropping) published.lazySet(writePosition);
+    }
+
+    /**
+     * Количество записей, которые были отброшены из-за нехватки места.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    boolean isEmpty() {
+        return consumed.get() == published.get();
+    }
+
+    /**
+     * Передаёт обработчику все опубликованные записи и освобождает место одним lazySet в конце.
+     *
+     * @return количество обработанных записей
+     */
+    int drain(RecordHandler handler) {
+        long position = consumed.get();
+        long end = published.get();
+        int count = 0;
+        while (position < end) {
+            long header = slots[(int) position++ & mask];
+            int hookId = (int) (header >>> 32);
+            int size = (int) header;
+            if (values.length < size) values = new long[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = slots[(int) position++ & mask];
+            }
+            handler.onRecord(hookId, values, size);
+            count++;
+        }
+        consumed.lazySet(position);
+        return count;
+    }
+
+    interface RecordHandler {
+        void onRecord(int hookId, long[] values, int size);
+    }
+}
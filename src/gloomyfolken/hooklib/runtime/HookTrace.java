@@ -0,0 +1,188 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Бинарная трассировка хуков, вставленных с HookDispatch.TRACE.
+ * <p/>
+ * Каждый вызов - это запись в memory-mapped файл-сегмент: номер хука (int), номер потока (int),
+ * System.nanoTime() (long) и примитивные параметры хук-метода в их родном размере, big-endian.
+ * Место под запись резервируется одним getAndAdd на позиции сегмента, дальше поток пишет сам.
+ * Когда сегмент заканчивается, открывается следующий. После hooklib.trace.maxSegments сегментов
+ * трассировка останавливается, а записи считаются отброшенными.
+ * <p/>
+ * Рядом с сегментами пишется schema.txt, строка на хук: "номер название/класса#метод описание".
+ * Прочитать трассу можно через gloomyfolken.hooklib.helper.TraceDecoder.
+ * <p/>
+ * Настройки (системные свойства):
+ * hooklib.trace.dir - папка для трассы, по умолчанию hooklib-trace
+ * hooklib.trace.segmentSize - размер сегмента в байтах, по умолчанию 64 мегабайта
+ * hooklib.trace.maxSegments - максимальное количество сегментов, по умолчанию 16
+ */
+public final class HookTrace {
+
+    static final int HEADER_SIZE = 16;
+
+    private static final File directory = new File(System.getProperty("hooklib.trace.dir", "hooklib-trace"));
+    private static final int segmentSize = Integer.getInteger("hooklib.trace.segmentSize", 64 << 20);
+    private static final int maxSegments = Integer.getInteger("hooklib.trace.maxSegments", 16);
+
+    private static final Map<String, Integer> hookIds = new HashMap<String, Integer>();
+    private static final List<Segment> segments = new ArrayList<Segment>();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Segment current;
+    private static Writer schema;
+
+    private static final ThreadLocal<TraceCursor> cursors = new ThreadLocal<TraceCursor>() {
+        @Override
+        protected TraceCursor initialValue() {
+            return new TraceCursor((int) Thread.currentThread().getId());
+        }
+    };
+
+    static {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can not create directory " + directory);
+            }
+            schema = new OutputStreamWriter(new FileOutputStream(new File(directory, "schema.txt")), "UTF-8");
+            current = openSegment();
+        } catch (IOException e) {
+            System.err.println("Can not open hook trace, tracing is disabled");
+            e.printStackTrace();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("HookLib trace shutdown") {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    private HookTrace() {}
+
+    /**
+     * Регистрирует хук и записывает его в схему. Повторная регистрация возвращает тот же номер.
+     * Номера начинаются с единицы: ноль в заголовке записи означает, что запись не дописана.
+     *
+     * @param hookClassName название класса с хуком через слэши
+     */
+    public static synchronized int register(String hookClassName, String methodName, String methodDesc) {
+        String key = hookClassName + '#' + methodName + ' ' + methodDesc;
+        Integer id = hookIds.get(key);
+        if (id == null) {
+            id = hookIds.size() + 1;
+            hookIds.put(key, id);
+            if (schema != null) {
+                try {
+                    schema.write(id + " " + key + "\n");
+                    schema.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Резервирует место под запись и возвращает курсор текущего потока.
+     *
+     * @param size суммарный размер параметров в байтах
+     */
+    public static TraceCursor begin(int hookId, int size) {
+        TraceCursor cursor = cursors.get();
+        int recordSize = HEADER_SIZE + size;
+        Segment segment = current;
+        while (segment != null) {
+            int position = segment.position.getAndAdd(recordSize);
+            if (position >= 0 && position + recordSize <= segmentSize) {
+                cursor.begin(hookId, segment.buffer, position);
+                return cursor;
+            }
+            segment = nextSegment(segment);
+        }
+        dropped.incrementAndGet();
+        cursor.begin(hookId, null, 0);
+        return cursor;
+    }
+
+    /**
+     * Количество записей, которые не попали в трассу.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Останавливает трассировку и сбрасывает сегменты на диск. Вызывается автоматически при выходе.
+     */
+    public static synchronized void close() {
+        current = null;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        if (schema != null) {
+            try {
+                schema.close();
+            } catch (IOException ignored) {
+            }
+            schema = null;
+        }
+    }
+
+    private static synchronized Segment nextSegment(Segment full) {
+        if (current != full) {
+            return current;
+        }
+        if (segments.size() >= maxSegments) {
+            current = null;
+        } else {
+            try {
+                current = openSegment();
+            } catch (IOException e) {
+                System.err.println("Can not open next hook trace segment, tracing is stopped");
+                e.printStackTrace();
+                current = null;
+            }
+        }
+        return current;
+    }
+
+    private static Segment openSegment() throws IOException {
+        File file = new File(directory, String.format("trace-%05d.bin", segments.size()));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            Segment segment = new Segment(buffer);
+            segments.add(segment);
+            return segment;
+        } finally {
+            // отображение остаётся рабочим и после закрытия файла
+            raf.close();
+        }
+    }
+
+    private static class Segment {
+        final MappedByteBuffer buffer;
+        final AtomicInteger position = new AtomicInteger();
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
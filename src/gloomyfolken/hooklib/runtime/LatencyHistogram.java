@@ -0,0 +1,92 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Лог-линейная гистограмма неотрицательных значений, например, времени выполнения в наносекундах.
+ * Каждая степень двойки делится на 32 равных интервала, поэтому относительная погрешность не больше 1/32,
+ * а весь диапазон long помещается в ~2000 ячеек. Запись - один инкремент ячейки без блокировок.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter total = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.getAndIncrement(getBucket(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Возвращает значение, меньше которого percentile процентов записанных значений (с точностью до ячейки).
+     *
+     * @param percentile от 0 до 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) return 0;
+        long threshold = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= threshold) {
+                return getBucketUpperBound(i);
+            }
+        }
+        return getBucketUpperBound(BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getValueAtPercentile(50) +
+                ", p99=" + getValueAtPercentile(99) + ", max=" + getValueAtPercentile(100);
+    }
+
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        long lowerBound = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,291 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Кэш результатов метода, обёрнутого хуком с @Hook(memoize = N).
+ * <p/>
+ * Если у целевого метода нет this и ровно один примитивный параметр, то используется путь без упаковки:
+ * массив на N ячеек с прямой адресацией по хэшу ключа. Чтение не блокируется и ничего не аллоцирует,
+ * при коллизии старое значение просто вытесняется.
+ * Иначе ключ - this (для нестатических методов) и массив параметров, а значения лежат в сегментах,
+ * каждый из которых - LinkedHashMap в порядке доступа со своей блокировкой и вытеснением самых старых (LRU).
+ * <p/>
+ * this сравнивается по ссылке и хранится через WeakReference: кэш не держит в памяти миры и сущности,
+ * у которых вызывался метод, а значения для собранного сборщиком мусора this просто ждут вытеснения.
+ * Параметры же хранятся обычными ссылками и сравниваются через equals(), поэтому memoize подходит для методов
+ * с параметрами-значениями (числами, строками, enum'ами, неизменяемыми ключами), но не с мирами и сущностями.
+ * <p/>
+ * Кэши регистрируются по ключу "название.класса.сХуками#названиеХукМетода", как в SwitchableHooks.
+ * Через invalidate() можно сбросить одно значение или весь кэш, например, когда меняются рецепты.
+ */
+public final class MemoCache {
+
+    /**
+     * Возвращается из get(), если значения нет в кэше.
+     */
+    public static final Object MISS = new Object();
+    // так в кэше хранится null, чтобы отличать его от отсутствия значения
+    private static final Object NULL = new Object();
+    private static final int SEGMENTS = 16;
+
+    private static final ConcurrentHashMap<String, MemoCache> caches = new ConcurrentHashMap<String, MemoCache>();
+
+    private final int maxSize;
+    private final boolean hasReceiver;
+    private final LongEntry[] longEntries;
+    private final Segment[] segments;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    private MemoCache(int maxSize, boolean hasReceiver) {
+        this.maxSize = maxSize;
+        this.hasReceiver = hasReceiver;
+        int capacity = 1;
+        while (capacity < maxSize) capacity <<= 1;
+        longEntries = new LongEntry[capacity];
+        segments = new Segment[SEGMENTS];
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Возвращает кэш хука, создавая его при первом обращении.
+     *
+     * @param hasReceiver true, если обёрнутый метод нестатический и ключ начинается с this
+     */
+    public static MemoCache forHook(String id, int maxSize, boolean hasReceiver) {
+        MemoCache cache = caches.get(id);
+        if (cache == null) {
+            MemoCache newCache = new MemoCache(maxSize, hasReceiver);
+            cache = caches.putIfAbsent(id, newCache);
+            if (cache == null) cache = newCache;
+        }
+        return cache;
+    }
+
+    /**
+     * Возвращает кэш хука или null, если обёрнутый метод ещё ни разу не вызывался.
+     */
+    public static MemoCache getCache(String id) {
+        return caches.get(id);
+    }
+
+    public static Map<String, MemoCache> getCaches() {
+        return new LinkedHashMap<String, MemoCache>(caches);
+    }
+
+    /**
+     * Составляет ключ из параметров обёрнутого статического метода.
+     */
+    public Object key(Object[] arguments) {
+        return new Key(null, arguments);
+    }
+
+    /**
+     * Составляет ключ из this и параметров обёрнутого нестатического метода.
+     */
+    public Object key(Object receiver, Object[] arguments) {
+        return new Key(receiver, arguments);
+    }
+
+    public Object get(long key) {
+        LongEntry entry = longEntries[index(key)];
+        if (entry != null && entry.key == key) {
+            hits.increment();
+            return entry.value == NULL ? null : entry.value;
+        }
+        misses.increment();
+        return MISS;
+    }
+
+    public void put(long key, Object value) {
+        longEntries[index(key)] = new LongEntry(key, value == null ? NULL : value);
+    }
+
+    public Object get(Object key) {
+        Object value = segment(key).get(key);
+        if (value == null) {
+            misses.increment();
+            return MISS;
+        }
+        hits.increment();
+        return value == NULL ? null : value;
+    }
+
+    public void put(Object key, Object value) {
+        segment(key).put(key, value == null ? NULL : value);
+    }
+
+    /**
+     * Сбрасывает значение для ключа из одного примитивного параметра.
+     */
+    public void invalidate(long key) {
+        int index = index(key);
+        LongEntry entry = longEntries[index];
+        if (entry != null && entry.key == key) {
+            longEntries[index] = null;
+        }
+    }
+
+    /**
+     * Сбрасывает значение для this (если метод нестатический) и параметров, переданных в том же порядке.
+     * Примитивы передаются в обёртках, в том числе единственный примитивный параметр статического метода.
+     */
+    public void invalidate(Object... values) {
+        if (!hasReceiver && values.length == 1 && isPrimitiveWrapper(values[0])) {
+            invalidate(toLongKey(values[0]));
+            return;
+        }
+        Key key = hasReceiver ? new Key(values[0], Arrays.copyOfRange(values, 1, values.length)) :
+                new Key(null, values);
+        segment(key).remove(key);
+    }
+
+    private static boolean isPrimitiveWrapper(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short ||
+                value instanceof Byte || value instanceof Character || value instanceof Boolean ||
+                value instanceof Float || value instanceof Double;
+    }
+
+    /**
+     * Переводит примитив в long так же, как это делает обёртка метода (см. MemoizedMethod).
+     */
+    private static long toLongKey(Object value) {
+        if (value instanceof Float) {
+            return Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Double) {
+            return Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof Character) {
+            return (Character) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        return ((Number) value).longValue();
+    }
+
+    public void invalidateAll() {
+        Arrays.fill(longEntries, null);
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", hitRate=" + getHitRate();
+    }
+
+    private int index(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (longEntries.length - 1);
+    }
+
+    private Segment segment(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    private static class LongEntry {
+        final long key;
+        final Object value;
+
+        LongEntry(long key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * LRU-часть кэша. Карта не наследуется, а хранится внутри, чтобы к ней нельзя было обратиться
+     * мимо синхронизации.
+     */
+    private static class Segment {
+        private final LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>(16, 0.75F, true);
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized Object get(Object key) {
+            return map.get(key);
+        }
+
+        synchronized void put(Object key, Object value) {
+            map.put(key, value);
+            if (map.size() > maxSize) {
+                // в access-order карте первым идёт самый давно использованный ключ
+                Iterator<Object> eldest = map.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+
+        synchronized void remove(Object key) {
+            map.remove(key);
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+    }
+
+    private static class Key {
+        // null у статических методов
+        private final WeakReference<Object> receiver;
+        private final Object[] arguments;
+        private final int hash;
+
+        Key(Object receiver, Object[] arguments) {
+            this.receiver = receiver == null ? null : new WeakReference<Object>(receiver);
+            this.arguments = arguments;
+            this.hash = 31 * System.identityHashCode(receiver) + Arrays.deepHashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && isSameReceiver(key) && Arrays.deepEquals(arguments, key.arguments);
+        }
+
+        private boolean isSameReceiver(Key key) {
+            if (receiver == null || key.receiver == null) return receiver == key.receiver;
+            Object value = receiver.get();
+            // ключ с собранным this не равен никакому другому, даже такому же
+            return value != null && value == key.receiver.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Время статических инициализаторов (<clinit>), в которые вставлен HookMetric.STATIC_INIT.
+ * Инициализация одного класса часто запускает инициализацию других, поэтому для каждого класса
+ * запоминается полное время, собственное время (без вложенных инициализаторов) и цепочка классов,
+ * инициализация которых к нему привела.
+ * <p/>
+ * Класс загружается только вставленным кодом, и при завершении джавы выводит в System.err самые медленные
+ * инициализаторы. Количество строк задаётся свойством hooklib.profile.clinit.top, по умолчанию 50.
+ */
+public final class StaticInitProfiler {
+
+    private static final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    private static final ThreadLocal<Frame> frames = new ThreadLocal<Frame>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("HookLib static init report") {
+            @Override
+            public void run() {
+                if (!records.isEmpty()) {
+                    System.err.println("Slowest static initializers:");
+                    System.err.print(report(Integer.getInteger("hooklib.profile.clinit.top", 50)));
+                }
+            }
+        });
+    }
+
+    private StaticInitProfiler() {}
+
+    /**
+     * Вызывается в начале <clinit>.
+     *
+     * @return время начала, которое нужно передать в exit()
+     */
+    public static long enter(String className) {
+        frames.set(new Frame(className, frames.get()));
+        return System.nanoTime();
+    }
+
+    /**
+     * Вызывается на каждом выходе из <clinit>, в том числе через исключение.
+     */
+    public static void exit(String className, long startTime) {
+        long time = System.nanoTime() - startTime;
+        Frame frame = frames.get();
+        // кадр мог не совпасть, только если enter() не был вызван из-за ошибки в нём самом
+        if (frame == null || !frame.className.equals(className)) return;
+        frames.set(frame.parent);
+
+        StringBuilder chain = new StringBuilder();
+        for (Frame parent = frame.parent; parent != null; parent = parent.parent) {
+            chain.append(" <- ").append(parent.className);
+        }
+        if (frame.parent != null) {
+            frame.parent.childTime += time;
+        }
+        records.put(className, new Record(className, time, time - frame.childTime, chain.toString()));
+    }
+
+    /**
+     * Самые медленные инициализаторы по полному времени, по строке на класс:
+     * "класс: полное мс (собственное мс) <- класс, который его инициализировал <- ...".
+     *
+     * @param limit максимальное количество строк
+     */
+    public static String report(int limit) {
+        List<Record> sorted = new ArrayList<Record>(records.values());
+        Collections.sort(sorted, new Comparator<Record>() {
+            @Override
+            public int compare(Record o1, Record o2) {
+                return o1.totalTime < o2.totalTime ? 1 : o1.totalTime > o2.totalTime ? -1 : 0;
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sorted.size() && i < limit; i++) {
+            Record record = sorted.get(i);
+            sb.append(record.className).append(": ")
+                    .append(String.format("%.3f ms (self %.3f ms)", record.totalTime / 1e6, record.selfTime / 1e6))
+                    .append(record.chain).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static void reset() {
+        records.clear();
+    }
+
+    private static class Frame {
+        final String className;
+        final Frame parent;
+        long childTime;
+
+        Frame(String className, Frame parent) {
+            this.className = className;
+            this.parent = parent;
+        }
+    }
+
+    private static class Record {
+        final String className;
+        final long totalTime;
+        final long selfTime;
+        final String chain;
+
+        Record(String className, long totalTime, long selfTime, String chain) {
+            this.className = className;
+            this.totalTime = totalTime;
+            this.selfTime = selfTime;
+            this.chain = chain;
+        }
+    }
+}
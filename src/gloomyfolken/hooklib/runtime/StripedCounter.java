@@ -0,0 +1,62 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Счётчик, разбитый на несколько ячеек, как LongAdder из восьмой джавы.
+ * Каждый поток увеличивает свою ячейку, поэтому потоки сервера не дерутся за одну кэш-линию.
+ * Ячейки разнесены на 64 байта друг от друга. Чтение суммирует все ячейки и поэтому дороже записи.
+ */
+public final class StripedCounter {
+
+    // 8 long'ов - 64 байта, типичный размер кэш-линии
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        cells.getAndIncrement(stripe());
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(stripe(), value);
+    }
+
+    /**
+     * Возвращает сумму всех ячеек. Если счётчик в это время увеличивают, то результат может не включать
+     * последние изменения.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int stripe() {
+        // умножение на золотое сечение перемешивает последовательные номера потоков
+        int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripeCount() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
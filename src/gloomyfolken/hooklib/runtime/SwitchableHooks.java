@@ -0,0 +1,215 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.lang.invoke.WrongMethodTypeException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Управление хуками, вставленными с HookDispatch.SWITCHABLE.
+ * <p/>
+ * Каждый вызов такого хука - это invokedynamic, который привязывается через bootstrap() к хук-методу,
+ * обёрнутому в SwitchPoint. Пока состояние хука не меняется, вызов ничем не отличается от обычного
+ * INVOKESTATIC, а выключенный хук - это константа, которую JIT выкидывает. При изменении состояния
+ * SwitchPoint инвалидируется, и при следующем вызове каждое место вызова перепривязывается заново.
+ * <p/>
+ * Хук идентифицируется строкой "название.класса.сХуком#названиеХукМетода". Перегруженные хук-методы
+ * с одинаковым названием управляются вместе.
+ */
+public final class SwitchableHooks {
+
+    private static final ConcurrentHashMap<String, HookState> states = new ConcurrentHashMap<String, HookState>();
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle NOOP;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            RELINK = lookup.findVirtual(HookCallSite.class, "relinkAndInvoke",
+                    MethodType.methodType(Object.class, Object[].class));
+            NOOP = lookup.findStatic(SwitchableHooks.class, "noop", MethodType.methodType(void.class));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private SwitchableHooks() {}
+
+    /**
+     * Bootstrap-метод, на который ссылается каждый вставленный invokedynamic.
+     *
+     * @param hookClassName название класса с хуком через слэши
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type,
+                                     String hookClassName) throws Exception {
+        Class<?> hookClass = Class.forName(hookClassName.replace('/', '.'), false,
+                lookup.lookupClass().getClassLoader());
+        MethodHandle hook = lookup.findStatic(hookClass, name, type);
+        return new HookCallSite(getState(hookClass.getName() + '#' + name), hook);
+    }
+
+    /**
+     * Включает или выключает хук. Выключенный хук не вызывается и возвращает false/0/null.
+     */
+    public static void setEnabled(String hookId, boolean enabled) {
+        HookState state = getState(hookId);
+        synchronized (state) {
+            if (state.enabled != enabled) {
+                state.enabled = enabled;
+                state.invalidate();
+            }
+        }
+    }
+
+    public static void enable(String hookId) {
+        setEnabled(hookId, true);
+    }
+
+    public static void disable(String hookId) {
+        setEnabled(hookId, false);
+    }
+
+    public static boolean isEnabled(String hookId) {
+        HookState state = states.get(hookId);
+        return state == null || state.enabled;
+    }
+
+    /**
+     * Подменяет хук-метод другим MethodHandle'ом. Его тип должен приводиться через asType()
+     * к типу хук-метода. Проверяется это по уже привязанным местам вызова хука: если в них тип не подходит,
+     * то ничего не меняется. Место вызова с другим типом (например, перегруженного хук-метода),
+     * привязанное позже, к которому обработчик не подходит, вызывает исходный хук-метод.
+     *
+     * @param target новый обработчик или null, чтобы вернуть исходный хук-метод
+     * @throws IllegalArgumentException если тип обработчика не приводится к типу уже привязанного места вызова
+     */
+    public static void retarget(String hookId, MethodHandle target) {
+        HookState state = getState(hookId);
+        synchronized (state) {
+            if (target != null) {
+                for (MethodType type : state.callSiteTypes) {
+                    try {
+                        target.asType(type);
+                    } catch (WrongMethodTypeException e) {
+                        throw new IllegalArgumentException("Handle of type " + target.type() + " can not replace " +
+                                "hook " + hookId + " of type " + type, e);
+                    }
+                }
+            }
+            state.replacement = target;
+            state.invalidate();
+        }
+    }
+
+    /**
+     * Включает хук и возвращает исходный хук-метод.
+     */
+    public static void reset(String hookId) {
+        HookState state = getState(hookId);
+        synchronized (state) {
+            state.enabled = true;
+            state.replacement = null;
+            state.invalidate();
+        }
+    }
+
+    private static HookState getState(String hookId) {
+        HookState state = states.get(hookId);
+        if (state == null) {
+            HookState newState = new HookState();
+            state = states.putIfAbsent(hookId, newState);
+            if (state == null) state = newState;
+        }
+        return state;
+    }
+
+    private static MethodHandle createDisabledTarget(MethodType type) {
+        Class<?> returnType = type.returnType();
+        MethodHandle constant;
+        if (returnType == void.class) {
+            constant = NOOP;
+        } else if (!returnType.isPrimitive()) {
+            constant = MethodHandles.constant(returnType, null);
+        } else if (returnType == boolean.class) {
+            constant = MethodHandles.constant(boolean.class, false);
+        } else if (returnType == char.class) {
+            constant = MethodHandles.constant(char.class, (char) 0);
+        } else if (returnType == long.class) {
+            constant = MethodHandles.constant(long.class, 0L);
+        } else if (returnType == float.class) {
+            constant = MethodHandles.constant(float.class, 0F);
+        } else if (returnType == double.class) {
+            constant = MethodHandles.constant(double.class, 0D);
+        } else {
+            constant = MethodHandles.constant(int.class, 0).asType(MethodType.methodType(returnType));
+        }
+        return MethodHandles.dropArguments(constant, 0, type.parameterList());
+    }
+
+    private static void noop() {}
+
+    private static class HookState {
+        volatile boolean enabled = true;
+        volatile MethodHandle replacement;
+        volatile SwitchPoint switchPoint = new SwitchPoint();
+        // типы всех привязанных мест вызова, по ним проверяется обработчик в retarget(); меняется под synchronized
+        final Set<MethodType> callSiteTypes = new HashSet<MethodType>(2);
+
+        // вызывается под synchronized (this)
+        void invalidate() {
+            SwitchPoint old = switchPoint;
+            switchPoint = new SwitchPoint();
+            SwitchPoint.invalidateAll(new SwitchPoint[]{old});
+        }
+    }
+
+    private static class HookCallSite extends MutableCallSite {
+
+        private final HookState state;
+        private final MethodHandle hook;
+        private final MethodHandle relink;
+
+        HookCallSite(HookState state, MethodHandle hook) {
+            super(hook.type());
+            this.state = state;
+            synchronized (state) {
+                state.callSiteTypes.add(hook.type());
+            }
+            this.hook = hook;
+            this.relink = RELINK.bindTo(this).asCollector(Object[].class, hook.type().parameterCount())
+                    .asType(hook.type());
+            setTarget(createTarget());
+        }
+
+        private MethodHandle createTarget() {
+            // SwitchPoint и состояние читаются вместе, иначе можно привязаться к уже инвалидированному SwitchPoint'у
+            synchronized (state) {
+                MethodHandle target = hook;
+                if (!state.enabled) {
+                    target = createDisabledTarget(type());
+                } else if (state.replacement != null) {
+                    try {
+                        target = state.replacement.asType(type());
+                    } catch (WrongMethodTypeException e) {
+                        // retarget() проверяет только места вызова, привязанные до него, а это привязалось позже
+                    }
+                }
+                return state.switchPoint.guardWithTest(target, relink);
+            }
+        }
+
+        @SuppressWarnings("unused")
+        Object relinkAndInvoke(Object[] args) throws Throwable {
+            MethodHandle target = createTarget();
+            setTarget(target);
+            return target.invokeWithArguments(args);
+        }
+    }
+}
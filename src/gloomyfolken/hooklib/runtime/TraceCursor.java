@@ -0,0 +1,91 @@
+package gloomyfolken.hooklib.runtime;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Курсор записи одного потока для хуков с HookDispatch.TRACE.
+ * Место под запись резервируется в общем сегменте HookTrace, после чего поток пишет в него сам,
+ * абсолютными put'ами в свою область, без блокировок и аллокаций.
+ * <p/>
+ * Номер хука пишется в заголовок последним, в commit(). Пока его нет, в заголовке ноль, и декодер считает,
+ * что дальше в сегменте записей нет. Так после падения процесса недописанная запись не читается как мусор.
+ */
+public final class TraceCursor {
+
+    private final int threadId;
+    private ByteBuffer buffer;
+    private int recordStart;
+    private int offset;
+    private int hookId;
+
+    TraceCursor(int threadId) {
+        this.threadId = threadId;
+    }
+
+    void begin(int hookId, ByteBuffer buffer, int recordStart) {
+        this.hookId = hookId;
+        this.buffer = buffer;
+        this.recordStart = recordStart;
+        if (buffer != null) {
+            buffer.putInt(recordStart + 4, threadId);
+            buffer.putLong(recordStart + 8, System.nanoTime());
+            offset = recordStart + HookTrace.HEADER_SIZE;
+        }
+    }
+
+    public void putByte(byte value) {
+        if (buffer != null) {
+            buffer.put(offset, value);
+            offset++;
+        }
+    }
+
+    public void putChar(char value) {
+        if (buffer != null) {
+            buffer.putChar(offset, value);
+            offset += 2;
+        }
+    }
+
+    public void putShort(short value) {
+        if (buffer != null) {
+            buffer.putShort(offset, value);
+            offset += 2;
+        }
+    }
+
+    public void putInt(int value) {
+        if (buffer != null) {
+            buffer.putInt(offset, value);
+            offset += 4;
+        }
+    }
+
+    public void putFloat(float value) {
+        if (buffer != null) {
+            buffer.putFloat(offset, value);
+            offset += 4;
+        }
+    }
+
+    public void putLong(long value) {
+        if (buffer != null) {
+            buffer.putLong(offset, value);
+            offset += 8;
+        }
+    }
+
+    public void putDouble(double value) {
+        if (buffer != null) {
+            buffer.putDouble(offset, value);
+            offset += 8;
+        }
+    }
+
+    public void commit() {
+        if (buffer != null) {
+            buffer.putInt(recordStart, hookId);
+            buffer = null;
+        }
+    }
+}